@@ -25,6 +25,8 @@ import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
 import android.util.Log;
 
+import com.android.phone.BackgroundExecutor;
+
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -215,12 +217,12 @@ public final class SipAccountRegistry {
             final Context context, final String sipProfileName, final boolean enableProfile) {
         if (VERBOSE) log("startSipProfiles, start auto registration");
 
-        new Thread(new Runnable() {
+        BackgroundExecutor.submit(BackgroundExecutor.LANE_SIP, new Runnable() {
             @Override
             public void run() {
                 startSipProfiles(context, sipProfileName, enableProfile);
-            }}
-        ).start();
+            }
+        });
     }
 
     /**
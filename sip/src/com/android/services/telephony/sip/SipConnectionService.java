@@ -38,6 +38,7 @@ import android.util.Log;
 import com.android.internal.telephony.CallStateException;
 import com.android.internal.telephony.PhoneFactory;
 import com.android.internal.telephony.sip.SipPhone;
+import com.android.phone.BackgroundExecutor;
 import com.android.services.telephony.DisconnectCauseUtil;
 
 import java.util.List;
@@ -206,7 +207,7 @@ public final class SipConnectionService extends ConnectionService {
      */
     private void findProfile(final String profileName, final IProfileFinderCallback callback) {
         if (VERBOSE) log("findProfile");
-        new Thread(new Runnable() {
+        BackgroundExecutor.submit(BackgroundExecutor.LANE_SIP, new Runnable() {
             @Override
             public void run() {
                 SipProfile profileToUse = null;
@@ -228,7 +229,7 @@ public final class SipConnectionService extends ConnectionService {
                     }
                 });
             }
-        }).start();
+        });
     }
 
     private SipPhone findPhoneForProfile(SipProfile profile) {
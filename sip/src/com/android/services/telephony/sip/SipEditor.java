@@ -37,6 +37,8 @@ import android.view.MenuItem;
 import android.widget.Button;
 import android.widget.Toast;
 
+import com.android.phone.BackgroundExecutor;
+
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.util.Arrays;
@@ -405,7 +407,7 @@ public class SipEditor extends PreferenceActivity
         // storage; do finish() once everything goes fine.
         // newProfile may be null if the old profile is to be deleted rather
         // than being modified.
-        new Thread(new Runnable() {
+        BackgroundExecutor.submit(BackgroundExecutor.LANE_SIP, new Runnable() {
             public void run() {
                 try {
                     deleteAndUnregisterProfile(oldProfile);
@@ -417,7 +419,7 @@ public class SipEditor extends PreferenceActivity
                     showAlert(e);
                 }
             }
-        }, "SipEditor").start();
+        });
     }
 
     private String getProfileName() {
@@ -46,6 +46,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import com.android.phone.BackgroundExecutor;
 import com.android.phone.R;
 
 /**
@@ -156,7 +157,7 @@ public class SipSettings extends PreferenceActivity {
     protected void onActivityResult(final int requestCode, final int resultCode,
             final Intent intent) {
         if (resultCode != RESULT_OK && resultCode != RESULT_FIRST_USER) return;
-        new Thread() {
+        BackgroundExecutor.submit(BackgroundExecutor.LANE_SIP, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -175,11 +176,11 @@ public class SipSettings extends PreferenceActivity {
                     log("onActivityResult, can not handle the profile:  " + e);
                 }
             }
-        }.start();
+        });
     }
 
     private void updateProfilesStatus() {
-        new Thread(new Runnable() {
+        BackgroundExecutor.submit(BackgroundExecutor.LANE_SIP, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -188,7 +189,7 @@ public class SipSettings extends PreferenceActivity {
                     log("updateProfilesStatus, exception: " + e);
                 }
             }
-        }).start();
+        });
     }
 
     private String getProfileName(SipProfile profile) {
@@ -303,7 +304,7 @@ public class SipSettings extends PreferenceActivity {
 
     private void unregisterProfile(final SipProfile p) {
         // run it on background thread for better UI response
-        new Thread(new Runnable() {
+        BackgroundExecutor.submit(BackgroundExecutor.LANE_SIP, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -312,7 +313,7 @@ public class SipSettings extends PreferenceActivity {
                     log("unregisterProfile, unregister failed, SipService died? Exception: " + e);
                 }
             }
-        }, "unregisterProfile").start();
+        });
     }
 
     void deleteProfile(SipProfile p) {
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the one-off background work of the phone process on a few small thread pools, one per
+ * lane, instead of starting a new thread for each piece of work.
+ *
+ * <p>Each lane has a bounded number of threads and a thread priority suited to its work, so a
+ * burst of work in one lane neither creates threads without bound nor delays the other lanes.
+ * Work is submitted with {@link #submit}, whose {@link Future} serves as the cancellation token:
+ * cancelling it drops the work if it has not started yet and interrupts it otherwise. Threads of
+ * an idle lane exit after a while.
+ */
+public final class BackgroundExecutor {
+    private static final String LOG_TAG = "BackgroundExecutor";
+
+    /** Disk and database access. */
+    public static final int LANE_IO = 0;
+    /** Talking to the SIP service and the SIP profile database. */
+    public static final int LANE_SIP = 1;
+    /** Contacts provider queries. */
+    public static final int LANE_CONTACTS = 2;
+    /** Work whose result a visible UI is waiting for. */
+    public static final int LANE_UI = 3;
+
+    private static final String[] LANE_NAMES = {"io", "sip", "contacts", "ui"};
+    private static final int[] LANE_THREADS = {2, 2, 1, 2};
+    private static final int[] LANE_PRIORITIES = {
+            Process.THREAD_PRIORITY_BACKGROUND,
+            Process.THREAD_PRIORITY_BACKGROUND,
+            Process.THREAD_PRIORITY_BACKGROUND,
+            Process.THREAD_PRIORITY_DEFAULT,
+    };
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final Lane[] sLanes = new Lane[LANE_NAMES.length];
+
+    private BackgroundExecutor() {}
+
+    /**
+     * Runs {@code task} on {@code lane}.
+     *
+     * @return a future that can be used to cancel the task.
+     */
+    public static Future<?> submit(int lane, Runnable task) {
+        return getLane(lane).submit(task);
+    }
+
+    /**
+     * Returns an {@link Executor} for {@code lane}, e.g. for
+     * {@link android.os.AsyncTask#executeOnExecutor}.
+     */
+    public static Executor getExecutor(int lane) {
+        return getLane(lane);
+    }
+
+    private static Lane getLane(int lane) {
+        synchronized (sLanes) {
+            if (sLanes[lane] == null) {
+                sLanes[lane] = new Lane(lane);
+            }
+            return sLanes[lane];
+        }
+    }
+
+    public static void dump(IndentingPrintWriter pw) {
+        pw.println("------- Background executor -------");
+        pw.increaseIndent();
+        for (int i = 0; i < sLanes.length; i++) {
+            Lane lane;
+            synchronized (sLanes) {
+                lane = sLanes[i];
+            }
+            if (lane != null) {
+                lane.dump(pw);
+            } else {
+                pw.println(LANE_NAMES[i] + ": unused");
+            }
+        }
+        pw.decreaseIndent();
+    }
+
+    /**
+     * The pool of one lane, which keeps counts of the work that went through it.
+     */
+    private static final class Lane extends ThreadPoolExecutor {
+        private final String mName;
+        private final AtomicInteger mSubmitted = new AtomicInteger();
+        private final AtomicInteger mCompleted = new AtomicInteger();
+        private final AtomicInteger mFailed = new AtomicInteger();
+        private final AtomicInteger mMaxQueued = new AtomicInteger();
+        // Total time spent queued, and the longest such time.
+        private volatile long mTotalWaitMillis;
+        private volatile long mMaxWaitMillis;
+
+        Lane(int lane) {
+            super(LANE_THREADS[lane], LANE_THREADS[lane], KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), newThreadFactory(lane));
+            mName = LANE_NAMES[lane];
+            allowCoreThreadTimeOut(true);
+        }
+
+        private static ThreadFactory newThreadFactory(final int lane) {
+            final AtomicInteger count = new AtomicInteger();
+            return runnable -> new Thread(() -> {
+                Process.setThreadPriority(LANE_PRIORITIES[lane]);
+                runnable.run();
+            }, "PhoneBg-" + LANE_NAMES[lane] + "-" + count.incrementAndGet());
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            mSubmitted.incrementAndGet();
+            super.execute(new Timed(command));
+            mMaxQueued.accumulateAndGet(getQueue().size(), Math::max);
+        }
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            super.afterExecute(r, t);
+            Throwable failure = t;
+            if (failure == null && r instanceof Timed && ((Timed) r).mTask instanceof Future) {
+                Future<?> future = (Future<?>) ((Timed) r).mTask;
+                if (future.isDone() && !future.isCancelled()) {
+                    try {
+                        future.get();
+                    } catch (Exception e) {
+                        failure = e.getCause() != null ? e.getCause() : e;
+                    }
+                }
+            }
+            if (failure != null) {
+                mFailed.incrementAndGet();
+                Log.w(LOG_TAG, "Task on lane " + mName + " failed", failure);
+            } else {
+                mCompleted.incrementAndGet();
+            }
+        }
+
+        void dump(IndentingPrintWriter pw) {
+            int submitted = mSubmitted.get();
+            pw.println(mName + ": submitted=" + submitted
+                    + " completed=" + mCompleted.get()
+                    + " failed=" + mFailed.get()
+                    + " queued=" + getQueue().size()
+                    + " maxQueued=" + mMaxQueued.get()
+                    + " active=" + getActiveCount()
+                    + " avgWaitMs=" + (submitted == 0 ? 0 : mTotalWaitMillis / submitted)
+                    + " maxWaitMs=" + mMaxWaitMillis);
+        }
+
+        /**
+         * Records how long a task waited in the queue.
+         */
+        private final class Timed implements Runnable {
+            final Runnable mTask;
+            final long mQueuedAt = SystemClock.elapsedRealtime();
+
+            Timed(Runnable task) {
+                mTask = task;
+            }
+
+            @Override
+            public void run() {
+                long waitMillis = SystemClock.elapsedRealtime() - mQueuedAt;
+                synchronized (Lane.this) {
+                    mTotalWaitMillis += waitMillis;
+                    mMaxWaitMillis = Math.max(mMaxWaitMillis, waitMillis);
+                }
+                mTask.run();
+            }
+        }
+    }
+}
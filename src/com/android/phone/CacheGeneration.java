@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+/**
+ * Invalidation generation and hit counters for a cache that loads its values outside of its
+ * lock.
+ *
+ * <p>A load takes {@link #current()} before it starts and stores its result only if
+ * {@link #isCurrent} still holds when it is done, so that a load racing with an invalidation
+ * does not store what it read before it. Hits and misses can be counted under one or more
+ * names, e.g. one per kind of value.
+ *
+ * <p>Not thread safe; every call must be made under the lock of the cache.
+ */
+public final class CacheGeneration {
+    private final String[] mNames;
+    private final int[] mHits;
+    private final int[] mMisses;
+    private long mGeneration;
+
+    /**
+     * @param names the names to count hits and misses under; none for a single, unnamed count.
+     */
+    public CacheGeneration(String... names) {
+        mNames = names;
+        int counters = Math.max(1, names.length);
+        mHits = new int[counters];
+        mMisses = new int[counters];
+    }
+
+    /** Returns the generation to pass to {@link #isCurrent} once a load is done. */
+    public long current() {
+        return mGeneration;
+    }
+
+    /** Returns whether the cache was not invalidated since {@code generation} was taken. */
+    public boolean isCurrent(long generation) {
+        return generation == mGeneration;
+    }
+
+    /** Makes every load in progress discard its result. */
+    public void invalidate() {
+        mGeneration++;
+    }
+
+    public void hit() {
+        hit(0);
+    }
+
+    public void miss() {
+        miss(0);
+    }
+
+    /** Counts a hit under the name at {@code index}. */
+    public void hit(int index) {
+        mHits[index]++;
+    }
+
+    /** Counts a miss under the name at {@code index}. */
+    public void miss(int index) {
+        mMisses[index]++;
+    }
+
+    public int getHitCount(int index) {
+        return mHits[index];
+    }
+
+    public int getMissCount(int index) {
+        return mMisses[index];
+    }
+
+    /**
+     * Prints one line of counts per name, or a single line without a name.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        for (int i = 0; i < mHits.length; i++) {
+            int total = mHits[i] + mMisses[i];
+            pw.println((mNames.length == 0 ? "" : mNames[i] + ": ") + "hits=" + mHits[i]
+                    + " misses=" + mMisses[i]
+                    + " hitRate=" + (total == 0 ? 0 : (100 * mHits[i] / total)) + "%");
+        }
+    }
+}
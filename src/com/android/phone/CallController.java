@@ -21,6 +21,7 @@ import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneConstants;
 import com.android.phone.CallGatewayManager.RawGatewayInfo;
 import com.android.phone.Constants.CallStatusCode;
+import com.android.services.telephony.EmergencyNumberClassifier;
 
 import android.content.ComponentName;
 import android.content.Intent;
@@ -337,9 +338,9 @@ public class CallController extends Handler {
         // (This is just a sanity-check; this policy *should* really be
         // enforced in OutgoingCallBroadcaster.onCreate(), which is the
         // main entry point for the CALL and CALL_* intents.)
-        boolean isEmergencyNumber = PhoneNumberUtils.isLocalEmergencyNumber(mApp, number);
-        boolean isPotentialEmergencyNumber =
-                PhoneNumberUtils.isPotentialLocalEmergencyNumber(mApp, number);
+        EmergencyNumberClassifier classifier = EmergencyNumberClassifier.getInstance(mApp);
+        boolean isEmergencyNumber = classifier.isLocalEmergencyNumber(number);
+        boolean isPotentialEmergencyNumber = classifier.isPotentialLocalEmergencyNumber(number);
         boolean isEmergencyIntent = Intent.ACTION_CALL_EMERGENCY.equals(intent.getAction());
 
         if (isPotentialEmergencyNumber && !isEmergencyIntent) {
@@ -90,8 +90,8 @@ public class CallerInfoCache {
         private PowerManager.WakeLock mWakeLock;
 
         /**
-         * Call {@link PowerManager.WakeLock#acquire} and call {@link AsyncTask#execute(Object...)},
-         * guaranteeing the lock is held during the asynchronous task.
+         * Call {@link PowerManager.WakeLock#acquire} and run the task on the contacts lane of
+         * {@link BackgroundExecutor}, guaranteeing the lock is held during the asynchronous task.
          */
         public void acquireWakeLockAndExecute() {
             // Prepare a separate partial WakeLock than what PhoneApp has so to avoid
@@ -99,7 +99,7 @@ public class CallerInfoCache {
             PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
             mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, LOG_TAG);
             mWakeLock.acquire();
-            execute();
+            executeOnExecutor(BackgroundExecutor.getExecutor(BackgroundExecutor.LANE_CONTACTS));
         }
 
         @Override
@@ -33,10 +33,13 @@ import android.content.pm.PackageManager;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.PersistableBundle;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.preference.PreferenceManager;
 import android.service.carrier.CarrierIdentifier;
@@ -45,8 +48,10 @@ import android.service.carrier.ICarrierService;
 import android.telephony.CarrierConfigManager;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
+import android.util.ArrayMap;
 import android.util.Log;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.ICarrierConfigLoader;
 import com.android.internal.telephony.IccCardConstants;
 import com.android.internal.telephony.Phone;
@@ -70,6 +75,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * CarrierConfigLoader binds to privileged carrier apps to fetch carrier config overlays.
@@ -78,6 +88,14 @@ import java.util.List;
 public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     private static final String LOG_TAG = "CarrierConfigLoader";
 
+    /**
+     * String array extra of {@link CarrierConfigManager#ACTION_CARRIER_CONFIG_CHANGED} listing the
+     * keys whose values changed since the previous broadcast for the same phone and subscription.
+     * Absent if that is not known, in which case every key should be treated as changed.
+     */
+    public static final String EXTRA_CHANGED_KEYS =
+            "com.android.phone.extra.CHANGED_CARRIER_CONFIG_KEYS";
+
     // Package name for platform carrier config app, bundled with system image.
     private final String mPlatformCarrierConfigPackage;
 
@@ -89,10 +107,22 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     private PersistableBundle[] mConfigFromDefaultApp;
     // Carrier configs from privileged carrier config app, indexed by phoneID.
     private PersistableBundle[] mConfigFromCarrierApp;
-    // Service connection for binding to config app.
-    private CarrierServiceConnection[] mServiceConnection;
+    // The load in progress for each phone id, or null.
+    private ConfigLoad[] mLoads;
+    // Timings of the last completed load for each phone id, or null.
+    private LoadTimings[] mLastLoadTimings;
     // Whether we have sent config change bcast for each phone id.
     private boolean[] mHasSentConfigChange;
+    // The subId and loaded config the last config change bcast was sent with, for each phone id.
+    // A null config means the next bcast is sent whether or not anything changed.
+    private int[] mBroadcastSubIds;
+    private PersistableBundle[] mBroadcastConfigs;
+    // The config files saved or restored since boot.
+    private final SavedConfigIndex mSavedConfigs = new SavedConfigIndex();
+    // Runs the blocking part of each fetch: file I/O, binding and the binder call. Bounded, so
+    // that fetches stuck in a hung config app cannot keep adding threads to the phone process;
+    // fetches beyond the bound wait in the queue.
+    private final ThreadPoolExecutor mFetchExecutor;
 
     // Broadcast receiver for Boot intents, register intent filter in construtor.
     private final BroadcastReceiver mBootReceiver = new ConfigLoaderBroadcastReceiver();
@@ -102,30 +132,35 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     // Message codes; see mHandler below.
     // Request from SubscriptionInfoUpdater when SIM becomes absent or error.
     private static final int EVENT_CLEAR_CONFIG = 0;
-    // Has connected to default app.
-    private static final int EVENT_CONNECTED_TO_DEFAULT = 3;
-    // Has connected to carrier app.
-    private static final int EVENT_CONNECTED_TO_CARRIER = 4;
-    // Config has been loaded from default app.
+    // Fetch from the default app has finished, successfully or not.
     private static final int EVENT_LOADED_FROM_DEFAULT = 5;
-    // Config has been loaded from carrier app.
+    // Fetch from the carrier app has finished, successfully or not.
     private static final int EVENT_LOADED_FROM_CARRIER = 6;
-    // Attempt to fetch from default app or read from XML.
-    private static final int EVENT_FETCH_DEFAULT = 7;
-    // Attempt to fetch from carrier app or read from XML.
-    private static final int EVENT_FETCH_CARRIER = 8;
     // A package has been installed, uninstalled, or updated.
     private static final int EVENT_PACKAGE_CHANGED = 9;
-    // Bind timed out for the default app.
-    private static final int EVENT_BIND_DEFAULT_TIMEOUT = 10;
-    // Bind timed out for a carrier app.
-    private static final int EVENT_BIND_CARRIER_TIMEOUT = 11;
     // Check if the system fingerprint has changed.
     private static final int EVENT_CHECK_SYSTEM_UPDATE = 12;
     // Rerun carrier config binding after system is unlocked.
     private static final int EVENT_SYSTEM_UNLOCKED = 13;
+    // Start fetching from the default app and the carrier app.
+    private static final int EVENT_UPDATE_CONFIG = 14;
 
     private static final int BIND_TIMEOUT_MILLIS = 30000;
+    // How long an idle fetch thread is kept.
+    private static final long FETCH_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    // The apps config is fetched from, in the order their configs are applied.
+    private static final int SOURCE_DEFAULT = 0;
+    private static final int SOURCE_CARRIER = 1;
+    private static final int NUM_SOURCES = 2;
+    private static final String[] SOURCE_NAMES = {"default", "carrier"};
+
+    // Stages of fetching from one source that are timed.
+    private static final int STAGE_BIND = 0;
+    private static final int STAGE_FETCH = 1;
+    private static final int STAGE_PERSIST = 2;
+    private static final int NUM_STAGES = 3;
+    private static final String[] STAGE_NAMES = {"bind", "fetch", "persist"};
 
     // Tags used for saving and restoring XML documents.
     private static final String TAG_DOCUMENT = "carrier_config";
@@ -135,33 +170,25 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     // SharedPreferences key for last known build fingerprint.
     private static final String KEY_FINGERPRINT = "build_fingerprint";
 
-    // Handler to process various events.
+    // Handler to process various events. It runs on its own thread, so that slow config apps and
+    // file I/O do not hold up the main thread of the phone process.
     //
-    // For each phoneId, the event sequence should be:
-    //     fetch default, connected to default, loaded from default,
-    //     fetch carrier, connected to carrier, loaded from carrier.
+    // For each phoneId, a load fetches from the default app and, if there is one, the privileged
+    // carrier app at the same time, on mFetchExecutor. Each fetch uses the saved config file for
+    // the app if there is one, else binds to the app. Loads of different phones run in parallel.
     //
-    // If there is a saved config file for either the default app or the carrier app, we skip
-    // binding to the app and go straight from fetch to loaded.
-    //
-    // At any time, at most one connection is active. If events are not in this order, previous
-    // connection will be unbound, so only latest event takes effect.
+    // Starting a new load for a phone cancels the one in progress, whose results are dropped.
     //
     // We broadcast ACTION_CARRIER_CONFIG_CHANGED after:
-    // 1. loading from carrier app (even if read from a file)
-    // 2. loading from default app if there is no carrier app (even if read from a file)
-    // 3. clearing config (e.g. due to sim removal)
-    // 4. encountering bind or IPC error
-    private Handler mHandler = new Handler() {
+    // 1. both fetches of a load have finished, whether they succeeded or not (even if read from a
+    //    file)
+    // 2. clearing config (e.g. due to sim removal)
+    private final Handler mHandler = new Handler(newLoaderLooper()) {
             @Override
         public void handleMessage(Message msg) {
             int phoneId = msg.arg1;
             log("mHandler: " + msg.what + " phoneId: " + phoneId);
-            String iccid;
-            CarrierIdentifier carrierId;
             String carrierPackageName;
-            CarrierServiceConnection conn;
-            PersistableBundle config;
             switch (msg.what) {
                 case EVENT_CLEAR_CONFIG:
 
@@ -173,13 +200,13 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                         }
                     }
 
+                    cancelLoad(phoneId);
                     if (mConfigFromDefaultApp[phoneId] == null &&
                         mConfigFromCarrierApp[phoneId] == null)
                         break;
 
                     mConfigFromDefaultApp[phoneId] = null;
                     mConfigFromCarrierApp[phoneId] = null;
-                    mServiceConnection[phoneId] = null;
                     broadcastConfigChangedIntent(phoneId);
                     break;
 
@@ -189,155 +216,39 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                         // we have sent it before unlock. This will avoid we try to load carrier
                         // config when SIM is still loading when unlock happens.
                         if (mHasSentConfigChange[i]) {
-                            updateConfigForPhoneId(i);
+                            // Broadcasts before boot only reached registered receivers, so this
+                            // one has to be sent even if the config is unchanged.
+                            mBroadcastConfigs[i] = null;
+                            startLoad(i);
                         }
                     }
                     break;
 
                 case EVENT_PACKAGE_CHANGED:
                     carrierPackageName = (String) msg.obj;
-                    // Only update if there are cached config removed to avoid updating config
-                    // for unrelated packages.
-                    if (clearCachedConfigForPackage(carrierPackageName)) {
+                    // Only update the phones whose cached config was removed to avoid updating
+                    // config for unrelated packages and phones.
+                    List<String> staleIccids = clearStaleConfigForPackage(carrierPackageName);
+                    if (!staleIccids.isEmpty()) {
                         int numPhones = TelephonyManager.from(mContext).getPhoneCount();
                         for (int i = 0; i < numPhones; ++i) {
-                            updateConfigForPhoneId(i);
-                        }
-                    }
-                    break;
-
-                case EVENT_FETCH_DEFAULT:
-                    iccid = getIccIdForPhoneId(phoneId);
-                    config = restoreConfigFromXml(mPlatformCarrierConfigPackage, iccid);
-                    if (config != null) {
-                        log("Loaded config from XML. package=" + mPlatformCarrierConfigPackage
-                                + " phoneId=" + phoneId);
-                        mConfigFromDefaultApp[phoneId] = config;
-                        Message newMsg = obtainMessage(EVENT_LOADED_FROM_DEFAULT, phoneId, -1);
-                        newMsg.getData().putBoolean("loaded_from_xml", true);
-                        mHandler.sendMessage(newMsg);
-                    } else {
-                        if (bindToConfigPackage(mPlatformCarrierConfigPackage,
-                                phoneId, EVENT_CONNECTED_TO_DEFAULT)) {
-                            sendMessageDelayed(obtainMessage(EVENT_BIND_DEFAULT_TIMEOUT, phoneId, -1),
-                                    BIND_TIMEOUT_MILLIS);
-                        } else {
-                            // Send bcast if bind fails
-                            broadcastConfigChangedIntent(phoneId);
+                            if (staleIccids.contains(getIccIdForPhoneId(i))) {
+                                startLoad(i);
+                            }
                         }
                     }
                     break;
 
-                case EVENT_CONNECTED_TO_DEFAULT:
-                    removeMessages(EVENT_BIND_DEFAULT_TIMEOUT);
-                    carrierId = getCarrierIdForPhoneId(phoneId);
-                    conn = (CarrierServiceConnection) msg.obj;
-                    // If new service connection has been created, unbind.
-                    if (mServiceConnection[phoneId] != conn || conn.service == null) {
-                        mContext.unbindService(conn);
-                        break;
-                    }
-                    try {
-                        ICarrierService carrierService = ICarrierService.Stub
-                                .asInterface(conn.service);
-                        config = carrierService.getCarrierConfig(carrierId);
-                        iccid = getIccIdForPhoneId(phoneId);
-                        saveConfigToXml(mPlatformCarrierConfigPackage, iccid, config);
-                        mConfigFromDefaultApp[phoneId] = config;
-                        sendMessage(obtainMessage(EVENT_LOADED_FROM_DEFAULT, phoneId, -1));
-                    } catch (Exception ex) {
-                        // The bound app could throw exceptions that binder will pass to us.
-                        loge("Failed to get carrier config: " + ex.toString());
-                    } finally {
-                        mContext.unbindService(mServiceConnection[phoneId]);
-                    }
-                    break;
-
-                case EVENT_BIND_DEFAULT_TIMEOUT:
-                    mContext.unbindService(mServiceConnection[phoneId]);
-                    broadcastConfigChangedIntent(phoneId);
+                case EVENT_UPDATE_CONFIG:
+                    startLoad(phoneId);
                     break;
 
                 case EVENT_LOADED_FROM_DEFAULT:
-                    // If we attempted to bind to the app, but the service connection is null, then
-                    // config was cleared while we were waiting and we should not continue.
-                    if (!msg.getData().getBoolean("loaded_from_xml", false)
-                            && mServiceConnection[phoneId] == null) {
-                        break;
-                    }
-                    carrierPackageName = getCarrierPackageForPhoneId(phoneId);
-                    if (carrierPackageName != null) {
-                        log("Found carrier config app: " + carrierPackageName);
-                        sendMessage(obtainMessage(EVENT_FETCH_CARRIER, phoneId));
-                    } else {
-                        broadcastConfigChangedIntent(phoneId);
-                    }
-                    break;
-
-                case EVENT_FETCH_CARRIER:
-                    carrierPackageName = getCarrierPackageForPhoneId(phoneId);
-                    iccid = getIccIdForPhoneId(phoneId);
-                    config = restoreConfigFromXml(carrierPackageName, iccid);
-                    if (config != null) {
-                        log("Loaded config from XML. package=" + carrierPackageName + " phoneId="
-                                + phoneId);
-                        mConfigFromCarrierApp[phoneId] = config;
-                        Message newMsg = obtainMessage(EVENT_LOADED_FROM_CARRIER, phoneId, -1);
-                        newMsg.getData().putBoolean("loaded_from_xml", true);
-                        sendMessage(newMsg);
-                    } else {
-                        if (carrierPackageName != null
-                            && bindToConfigPackage(carrierPackageName, phoneId,
-                                    EVENT_CONNECTED_TO_CARRIER)) {
-                            sendMessageDelayed(obtainMessage(EVENT_BIND_CARRIER_TIMEOUT, phoneId, -1),
-                                    BIND_TIMEOUT_MILLIS);
-                        } else {
-                            // Send bcast if bind fails
-                            broadcastConfigChangedIntent(phoneId);
-                        }
-                    }
-                    break;
-
-                case EVENT_CONNECTED_TO_CARRIER:
-                    removeMessages(EVENT_BIND_CARRIER_TIMEOUT);
-                    carrierId = getCarrierIdForPhoneId(phoneId);
-                    conn = (CarrierServiceConnection) msg.obj;
-                    // If new service connection has been created, unbind.
-                    if (mServiceConnection[phoneId] != conn ||
-                            conn.service == null) {
-                        mContext.unbindService(conn);
-                        break;
-                    }
-                    try {
-                        ICarrierService carrierService = ICarrierService.Stub
-                                .asInterface(conn.service);
-                        config = carrierService.getCarrierConfig(carrierId);
-                        carrierPackageName = getCarrierPackageForPhoneId(phoneId);
-                        iccid = getIccIdForPhoneId(phoneId);
-                        saveConfigToXml(carrierPackageName, iccid, config);
-                        mConfigFromCarrierApp[phoneId] = config;
-                        sendMessage(obtainMessage(EVENT_LOADED_FROM_CARRIER, phoneId, -1));
-                    } catch (Exception ex) {
-                        // The bound app could throw exceptions that binder will pass to us.
-                        loge("Failed to get carrier config: " + ex.toString());
-                    } finally {
-                        mContext.unbindService(mServiceConnection[phoneId]);
-                    }
-                    break;
-
-                case EVENT_BIND_CARRIER_TIMEOUT:
-                    mContext.unbindService(mServiceConnection[phoneId]);
-                    broadcastConfigChangedIntent(phoneId);
+                    onFetchFinished((ConfigLoad) msg.obj, SOURCE_DEFAULT);
                     break;
 
                 case EVENT_LOADED_FROM_CARRIER:
-                    // If we attempted to bind to the app, but the service connection is null, then
-                    // config was cleared while we were waiting and we should not continue.
-                    if (!msg.getData().getBoolean("loaded_from_xml", false)
-                            && mServiceConnection[phoneId] == null) {
-                        break;
-                    }
-                    broadcastConfigChangedIntent(phoneId);
+                    onFetchFinished((ConfigLoad) msg.obj, SOURCE_CARRIER);
                     break;
 
                 case EVENT_CHECK_SYSTEM_UPDATE:
@@ -355,6 +266,12 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         }
     };
 
+    private static Looper newLoaderLooper() {
+        HandlerThread thread = new HandlerThread(LOG_TAG);
+        thread.start();
+        return thread.getLooper();
+    }
+
     /**
      * Constructs a CarrierConfigLoader, registers it as a service, and registers a broadcast
      * receiver for relevant events.
@@ -380,8 +297,16 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         int numPhones = TelephonyManager.from(context).getPhoneCount();
         mConfigFromDefaultApp = new PersistableBundle[numPhones];
         mConfigFromCarrierApp = new PersistableBundle[numPhones];
-        mServiceConnection = new CarrierServiceConnection[numPhones];
+        mLoads = new ConfigLoad[numPhones];
+        mLastLoadTimings = new LoadTimings[numPhones];
         mHasSentConfigChange = new boolean[numPhones];
+        mBroadcastSubIds = new int[numPhones];
+        mBroadcastConfigs = new PersistableBundle[numPhones];
+        // One thread per source and phone is enough for all loads to run at once.
+        mFetchExecutor = new ThreadPoolExecutor(NUM_SOURCES * numPhones, NUM_SOURCES * numPhones,
+                FETCH_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                r -> new Thread(r, "CarrierConfigFetch"));
+        mFetchExecutor.allowCoreThreadTimeOut(true);
         // Make this service available through ServiceManager.
         ServiceManager.addService(Context.CARRIER_CONFIG_SERVICE, this);
         log("CarrierConfigLoader has started");
@@ -405,24 +330,219 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         }
     }
 
+    /**
+     * Broadcasts ACTION_CARRIER_CONFIG_CHANGED for {@code phoneId}, unless neither its
+     * subscription nor its loaded config changed since the last broadcast for it.
+     */
     private void broadcastConfigChangedIntent(int phoneId) {
+        int[] subIds = SubscriptionManager.getSubId(phoneId);
+        int subId = subIds != null && subIds.length > 0
+                ? subIds[0] : SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+        PersistableBundle config = new PersistableBundle();
+        if (mConfigFromDefaultApp[phoneId] != null) {
+            config.putAll(mConfigFromDefaultApp[phoneId]);
+        }
+        if (mConfigFromCarrierApp[phoneId] != null) {
+            config.putAll(mConfigFromCarrierApp[phoneId]);
+        }
+
         Intent intent = new Intent(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
         intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT |
                 Intent.FLAG_RECEIVER_INCLUDE_BACKGROUND);
-        SubscriptionManager.putPhoneIdAndSubIdExtra(intent, phoneId);
+        PersistableBundle previous = mBroadcastConfigs[phoneId];
+        if (previous != null && mBroadcastSubIds[phoneId] == subId) {
+            List<String> changedKeys = getChangedKeys(previous, config);
+            if (changedKeys.isEmpty()) {
+                log("Config unchanged, not broadcasting. phoneId=" + phoneId);
+                return;
+            }
+            intent.putExtra(EXTRA_CHANGED_KEYS, changedKeys.toArray(new String[0]));
+        }
+        SubscriptionManager.putPhoneIdAndSubIdExtra(intent, phoneId, subId);
         ActivityManager.broadcastStickyIntent(intent, UserHandle.USER_ALL);
         mHasSentConfigChange[phoneId] = true;
+        mBroadcastSubIds[phoneId] = subId;
+        mBroadcastConfigs[phoneId] = config;
+    }
+
+    /**
+     * Returns the keys that are in only one of the bundles or have different values in them.
+     */
+    @VisibleForTesting
+    static List<String> getChangedKeys(PersistableBundle a, PersistableBundle b) {
+        List<String> changedKeys = new ArrayList<>();
+        for (String key : a.keySet()) {
+            if (!b.containsKey(key) || !valuesEqual(a.get(key), b.get(key))) {
+                changedKeys.add(key);
+            }
+        }
+        for (String key : b.keySet()) {
+            if (!a.containsKey(key)) {
+                changedKeys.add(key);
+            }
+        }
+        return changedKeys;
+    }
+
+    private static boolean valuesEqual(Object a, Object b) {
+        // PersistableBundle does not implement equals, and config values may be nested bundles.
+        if (a instanceof PersistableBundle && b instanceof PersistableBundle) {
+            return getChangedKeys((PersistableBundle) a, (PersistableBundle) b).isEmpty();
+        }
+        return Objects.deepEquals(a, b);
+    }
+
+    /**
+     * Starts a new load of the config of {@code phoneId}, replacing the one in progress. Must be
+     * called on the handler thread.
+     */
+    private void startLoad(int phoneId) {
+        cancelLoad(phoneId);
+        String carrierPackageName = getCarrierPackageForPhoneId(phoneId);
+        // Clear in-memory cache for carrier app config, so when carrier app gets uninstalled, no
+        // stale config is left.
+        if (carrierPackageName == null) {
+            mConfigFromCarrierApp[phoneId] = null;
+        } else {
+            log("Found carrier config app: " + carrierPackageName);
+        }
+        final ConfigLoad load = new ConfigLoad(phoneId, getIccIdForPhoneId(phoneId),
+                getCarrierIdForPhoneId(phoneId));
+        load.packages[SOURCE_DEFAULT] = mPlatformCarrierConfigPackage;
+        load.packages[SOURCE_CARRIER] = carrierPackageName;
+        mLoads[phoneId] = load;
+        for (int source = 0; source < NUM_SOURCES; source++) {
+            if (load.packages[source] == null) {
+                load.done[source] = true;
+                continue;
+            }
+            final int fetchSource = source;
+            mFetchExecutor.execute(() -> fetchConfig(load, fetchSource));
+        }
+    }
+
+    private void cancelLoad(int phoneId) {
+        ConfigLoad load = mLoads[phoneId];
+        if (load != null) {
+            mLoads[phoneId] = null;
+            load.cancel();
+        }
+    }
+
+    /**
+     * Fetches the config of {@code source} for {@code load} and reports the result to the handler.
+     * The saved config file is used if it is current; otherwise the config is fetched from the app
+     * and saved. Runs on {@link #mFetchExecutor}.
+     */
+    private void fetchConfig(ConfigLoad load, int source) {
+        final String packageName = load.packages[source];
+        final long[] stageMillis = load.timings.stageMillis[source];
+        PersistableBundle config = null;
+        try {
+            if (load.isCancelled()) {
+                // Queued behind other fetches until after the load was replaced.
+                return;
+            }
+            long start = SystemClock.elapsedRealtime();
+            config = restoreConfigFromXml(packageName, load.iccid);
+            if (config != null) {
+                stageMillis[STAGE_FETCH] = SystemClock.elapsedRealtime() - start;
+                log("Loaded config from XML. package=" + packageName + " phoneId="
+                        + load.phoneId);
+            } else {
+                config = fetchConfigFromPackage(load, packageName, stageMillis);
+            }
+        } finally {
+            // Always report back, so that the load does not wait on this fetch forever.
+            load.configs[source] = config;
+            mHandler.sendMessage(mHandler.obtainMessage(source == SOURCE_DEFAULT
+                    ? EVENT_LOADED_FROM_DEFAULT : EVENT_LOADED_FROM_CARRIER, load.phoneId, -1,
+                    load));
+        }
+    }
+
+    /**
+     * Binds to {@code packageName}, gets its config and saves it to XML.
+     *
+     * @return the config, or null if binding or the call failed, or the load was cancelled.
+     */
+    private PersistableBundle fetchConfigFromPackage(ConfigLoad load, String packageName,
+            long[] stageMillis) {
+        long start = SystemClock.elapsedRealtime();
+        CarrierServiceConnection conn = new CarrierServiceConnection();
+        if (!load.addConnection(conn) || !bindToConfigPackage(packageName, load.phoneId, conn)) {
+            return null;
+        }
+        try {
+            if (!conn.awaitConnected(BIND_TIMEOUT_MILLIS)) {
+                loge("Bind to " + packageName + " timed out or was cancelled");
+                return null;
+            }
+            stageMillis[STAGE_BIND] = SystemClock.elapsedRealtime() - start;
+
+            start = SystemClock.elapsedRealtime();
+            ICarrierService carrierService = ICarrierService.Stub.asInterface(conn.service);
+            PersistableBundle config = carrierService.getCarrierConfig(load.carrierId);
+            stageMillis[STAGE_FETCH] = SystemClock.elapsedRealtime() - start;
+
+            // A cancelled load may be racing with the cached files being cleared.
+            if (!load.isCancelled()) {
+                start = SystemClock.elapsedRealtime();
+                saveConfigToXml(packageName, load.iccid, config);
+                stageMillis[STAGE_PERSIST] = SystemClock.elapsedRealtime() - start;
+            }
+            return config;
+        } catch (Exception ex) {
+            // The bound app could throw exceptions that binder will pass to us.
+            loge("Failed to get carrier config: " + ex.toString());
+            return null;
+        } finally {
+            mContext.unbindService(conn);
+        }
+    }
+
+    /**
+     * Applies the result of a fetch, and broadcasts once every fetch of the load has finished.
+     * Results of a load that has been replaced or cancelled are dropped.
+     */
+    private void onFetchFinished(ConfigLoad load, int source) {
+        int phoneId = load.phoneId;
+        if (mLoads[phoneId] != load) {
+            log("Dropping " + SOURCE_NAMES[source] + " config of a stale load, phoneId="
+                    + phoneId);
+            return;
+        }
+        PersistableBundle config = load.configs[source];
+        if (config != null) {
+            if (source == SOURCE_DEFAULT) {
+                mConfigFromDefaultApp[phoneId] = config;
+            } else {
+                mConfigFromCarrierApp[phoneId] = config;
+            }
+        }
+        load.done[source] = true;
+        for (boolean done : load.done) {
+            if (!done) {
+                return;
+            }
+        }
+        mLoads[phoneId] = null;
+        long start = SystemClock.elapsedRealtime();
+        broadcastConfigChangedIntent(phoneId);
+        load.timings.broadcastMillis = SystemClock.elapsedRealtime() - start;
+        load.timings.totalMillis = SystemClock.elapsedRealtime() - load.startMillis;
+        mLastLoadTimings[phoneId] = load.timings;
+        log("Loaded config for phoneId=" + phoneId + " in " + load.timings);
     }
 
     /** Binds to the default or carrier config app. */
-    private boolean bindToConfigPackage(String pkgName, int phoneId, int eventId) {
+    private boolean bindToConfigPackage(String pkgName, int phoneId,
+            CarrierServiceConnection conn) {
         log("Binding to " + pkgName + " for phone " + phoneId);
         Intent carrierService = new Intent(CarrierService.CARRIER_SERVICE_INTERFACE);
         carrierService.setPackage(pkgName);
-        mServiceConnection[phoneId] = new CarrierServiceConnection(phoneId, eventId);
         try {
-            return mContext.bindService(carrierService, mServiceConnection[phoneId],
-                    Context.BIND_AUTO_CREATE);
+            return mContext.bindService(carrierService, conn, Context.BIND_AUTO_CREATE);
         } catch (SecurityException ex) {
             return false;
         }
@@ -525,6 +645,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             out.endDocument();
             out.flush();
             outFile.close();
+            mSavedConfigs.put(packageName, iccid, version);
         }
         catch (IOException e) {
             loge(e.toString());
@@ -594,6 +715,9 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             loge(e.toString());
         }
 
+        if (restoredBundle != null) {
+            mSavedConfigs.put(packageName, iccid, version);
+        }
         return restoredBundle;
     }
 
@@ -617,6 +741,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                 }
             }
         });
+        mSavedConfigs.remove(packageName);
         if (packageFiles == null || packageFiles.length < 1) return false;
         for (File f : packageFiles) {
             log("deleting " + f.getName());
@@ -625,6 +750,24 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         return true;
     }
 
+    /**
+     * Deletes the config files known to have been saved from a different version of the given
+     * package than the installed one, without listing the files dir. Files that were neither
+     * saved nor restored since boot are left alone; restoring checks the version anyway.
+     *
+     * @return the ICCIDs whose config file was deleted.
+     */
+    private List<String> clearStaleConfigForPackage(String packageName) {
+        List<String> staleIccids =
+                mSavedConfigs.removeStale(packageName, getPackageVersion(packageName));
+        for (String iccid : staleIccids) {
+            String filename = getFilenameForConfig(packageName, iccid);
+            log("deleting " + filename);
+            new File(mContext.getFilesDir(), filename).delete();
+        }
+        return staleIccids;
+    }
+
     /** Builds a canonical file name for a config file. */
     private String getFilenameForConfig(@NonNull String packageName, @NonNull String iccid) {
         return "carrierconfig-" + packageName + "-" + iccid + ".xml";
@@ -647,13 +790,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
      * have a saved config file to use instead.
      */
     private void updateConfigForPhoneId(int phoneId) {
-        // Clear in-memory cache for carrier app config, so when carrier app gets uninstalled, no
-        // stale config is left.
-        if (mConfigFromCarrierApp[phoneId] != null &&
-                getCarrierPackageForPhoneId(phoneId) == null) {
-            mConfigFromCarrierApp[phoneId] = null;
-        }
-        mHandler.sendMessage(mHandler.obtainMessage(EVENT_FETCH_DEFAULT, phoneId, -1));
+        mHandler.sendMessage(mHandler.obtainMessage(EVENT_UPDATE_CONFIG, phoneId, -1));
     }
 
     @Override public
@@ -741,20 +878,114 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             return;
         }
         pw.println("CarrierConfigLoader: " + this);
-        for (int i = 0; i < TelephonyManager.getDefault().getPhoneCount(); i++) {
-            pw.println("Phone Id = " + i);
-            // display default values in CarrierConfigManager
-            printConfig(CarrierConfigManager.getDefaultConfig(), pw,
-                    "Default Values from CarrierConfigManager");
-            pw.println("");
-            // display ConfigFromDefaultApp
-            printConfig(mConfigFromDefaultApp[i], pw, "mConfigFromDefaultApp");
+        // Only the values that override the defaults are printed unless "--all" is given; the
+        // defaults are the same for every phone and make up the bulk of the output.
+        final boolean dumpAll = args != null && Arrays.asList(args).contains("--all");
+        final PersistableBundle defaults = CarrierConfigManager.getDefaultConfig();
+        if (dumpAll) {
+            printConfig(defaults, pw, "Default Values from CarrierConfigManager");
             pw.println("");
-            // display ConfigFromCarrierApp
-            printConfig(mConfigFromCarrierApp[i], pw, "mConfigFromCarrierApp");
+        }
+        dumpOverrides(new IndentingPrintWriter(pw, "    "), defaults);
+        pw.println("Last load timings (ms):");
+        for (int i = 0; i < mLastLoadTimings.length; i++) {
+            pw.println("    Phone Id = " + i + " : " + mLastLoadTimings[i]);
         }
     }
 
+    /**
+     * Receives the carrier config values that differ from the platform defaults.
+     */
+    interface OverrideVisitor {
+        /**
+         * @param phoneId the phone the config belongs to.
+         * @param source "mConfigFromDefaultApp" or "mConfigFromCarrierApp".
+         * @param config the config, or {@code null} if none is loaded; if {@code null}, this is
+         *        the only call for this phone and source.
+         * @param key the overridden key, or {@code null} if {@code config} is {@code null}.
+         */
+        void visit(int phoneId, String source, PersistableBundle config, String key);
+    }
+
+    /**
+     * Calls {@code visitor} for every key of every loaded config that differs from
+     * {@code defaults}, in key order.
+     */
+    void visitOverrides(PersistableBundle defaults, OverrideVisitor visitor) {
+        for (int i = 0; i < TelephonyManager.getDefault().getPhoneCount(); i++) {
+            visitOverrides(i, "mConfigFromDefaultApp", mConfigFromDefaultApp[i], defaults,
+                    visitor);
+            visitOverrides(i, "mConfigFromCarrierApp", mConfigFromCarrierApp[i], defaults,
+                    visitor);
+        }
+    }
+
+    private static void visitOverrides(int phoneId, String source, PersistableBundle config,
+            PersistableBundle defaults, OverrideVisitor visitor) {
+        if (config == null) {
+            visitor.visit(phoneId, source, null, null);
+            return;
+        }
+        List<String> overriddenKeys = new ArrayList<>();
+        for (String key : config.keySet()) {
+            if (!defaults.containsKey(key)
+                    || !Objects.deepEquals(config.get(key), defaults.get(key))) {
+                overriddenKeys.add(key);
+            }
+        }
+        Collections.sort(overriddenKeys);
+        for (String key : overriddenKeys) {
+            visitor.visit(phoneId, source, config, key);
+        }
+    }
+
+    /**
+     * Prints the values of each loaded config that differ from {@code defaults}.
+     */
+    void dumpOverrides(IndentingPrintWriter pw, PersistableBundle defaults) {
+        final int[] current = {-1};
+        final String[] currentSource = {null};
+        visitOverrides(defaults, (phoneId, source, config, key) -> {
+            if (phoneId != current[0]) {
+                if (current[0] != -1) {
+                    pw.decreaseIndent();
+                }
+                current[0] = phoneId;
+                currentSource[0] = null;
+                pw.println("Phone Id = " + phoneId);
+                pw.increaseIndent();
+            }
+            if (!source.equals(currentSource[0])) {
+                currentSource[0] = source;
+                pw.println(source + (config == null ? " : null" : " overrides :"));
+            }
+            if (key != null) {
+                pw.print("    ");
+                pw.print(key);
+                pw.print(" = ");
+                pw.println(valueToString(config.get(key)));
+            }
+        });
+        if (current[0] != -1) {
+            pw.decreaseIndent();
+        }
+    }
+
+    static String valueToString(Object value) {
+        if (value instanceof Object[]) {
+            return Arrays.toString((Object[]) value);
+        } else if (value instanceof int[]) {
+            return Arrays.toString((int[]) value);
+        } else if (value instanceof long[]) {
+            return Arrays.toString((long[]) value);
+        } else if (value instanceof double[]) {
+            return Arrays.toString((double[]) value);
+        } else if (value instanceof boolean[]) {
+            return Arrays.toString((boolean[]) value);
+        }
+        return String.valueOf(value);
+    }
+
     private void printConfig(PersistableBundle configApp, PrintWriter pw, String name) {
         IndentingPrintWriter indentPW = new IndentingPrintWriter(pw, "    ");
         if (configApp == null) {
@@ -769,38 +1000,167 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         indentPW.increaseIndent();
         indentPW.increaseIndent();
         for (String key : sortedKeys) {
-            if (configApp.get(key) != null && configApp.get(key) instanceof Object[]) {
-                indentPW.println(key + " = " +
-                        Arrays.toString((Object[]) configApp.get(key)));
-            } else if (configApp.get(key) != null && configApp.get(key) instanceof int[]) {
-                indentPW.println(key + " = " + Arrays.toString((int[]) configApp.get(key)));
+            indentPW.print(key);
+            indentPW.print(" = ");
+            indentPW.println(valueToString(configApp.get(key)));
+        }
+    }
+
+    /**
+     * One load of the config of a phone from its config apps.
+     */
+    private static class ConfigLoad {
+        final int phoneId;
+        final String iccid;
+        final CarrierIdentifier carrierId;
+        final long startMillis = SystemClock.elapsedRealtime();
+        // Per source: the package to fetch from, or null if there is none; whether the fetch has
+        // finished, only used on the handler thread; and the fetched config, or null.
+        final String[] packages = new String[NUM_SOURCES];
+        final boolean[] done = new boolean[NUM_SOURCES];
+        final PersistableBundle[] configs = new PersistableBundle[NUM_SOURCES];
+        final LoadTimings timings = new LoadTimings();
+        private final List<CarrierServiceConnection> mConnections = new ArrayList<>();
+        private boolean mCancelled;
+
+        ConfigLoad(int phoneId, String iccid, CarrierIdentifier carrierId) {
+            this.phoneId = phoneId;
+            this.iccid = iccid;
+            this.carrierId = carrierId;
+        }
+
+        /** Returns false, without adding it, if the load has been cancelled. */
+        synchronized boolean addConnection(CarrierServiceConnection conn) {
+            if (mCancelled) {
+                return false;
+            }
+            mConnections.add(conn);
+            return true;
+        }
+
+        synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /** Stops the fetches of this load from waiting for their binds. */
+        synchronized void cancel() {
+            mCancelled = true;
+            for (CarrierServiceConnection conn : mConnections) {
+                conn.mConnected.countDown();
+            }
+        }
+    }
+
+    /**
+     * Which config files exist, by package and ICCID, and the package version each was saved
+     * with. Only knows the files saved or restored since boot.
+     */
+    private static class SavedConfigIndex {
+        private final ArrayMap<String, ArrayMap<String, String>> mVersions = new ArrayMap<>();
+
+        synchronized void put(String packageName, String iccid, String version) {
+            ArrayMap<String, String> versions = mVersions.get(packageName);
+            if (versions == null) {
+                versions = new ArrayMap<>();
+                mVersions.put(packageName, versions);
+            }
+            versions.put(iccid, version);
+        }
+
+        /** Forgets the files of {@code packageName}, or all files if it is null. */
+        synchronized void remove(String packageName) {
+            if (packageName == null) {
+                mVersions.clear();
             } else {
-                indentPW.println(key + " = " + configApp.get(key));
+                mVersions.remove(packageName);
+            }
+        }
+
+        /**
+         * Forgets the files of {@code packageName} that were not saved with {@code version}.
+         *
+         * @return the ICCIDs of the forgotten files.
+         */
+        synchronized List<String> removeStale(String packageName, String version) {
+            List<String> staleIccids = new ArrayList<>();
+            ArrayMap<String, String> versions = mVersions.get(packageName);
+            if (versions == null) {
+                return staleIccids;
+            }
+            for (int i = versions.size() - 1; i >= 0; i--) {
+                if (!Objects.equals(version, versions.valueAt(i))) {
+                    staleIccids.add(versions.keyAt(i));
+                    versions.removeAt(i);
+                }
             }
+            if (versions.isEmpty()) {
+                mVersions.remove(packageName);
+            }
+            return staleIccids;
         }
     }
 
-    private class CarrierServiceConnection implements ServiceConnection {
-        int phoneId;
-        int eventId;
-        IBinder service;
+    /**
+     * How long the stages of a load took. The fetches from the default and carrier app overlap,
+     * so the total can be less than the sum of the stages.
+     */
+    private static class LoadTimings {
+        // Per source and stage, in milliseconds; -1 if the stage did not run.
+        final long[][] stageMillis = new long[NUM_SOURCES][NUM_STAGES];
+        long broadcastMillis = -1;
+        long totalMillis = -1;
+
+        LoadTimings() {
+            for (long[] stages : stageMillis) {
+                Arrays.fill(stages, -1);
+            }
+        }
 
-        public CarrierServiceConnection(int phoneId, int eventId) {
-            this.phoneId = phoneId;
-            this.eventId = eventId;
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int source = 0; source < NUM_SOURCES; source++) {
+                sb.append(SOURCE_NAMES[source]).append('[');
+                for (int stage = 0; stage < NUM_STAGES; stage++) {
+                    if (stage > 0) {
+                        sb.append(' ');
+                    }
+                    sb.append(STAGE_NAMES[stage]).append('=');
+                    long millis = stageMillis[source][stage];
+                    sb.append(millis < 0 ? "-" : Long.toString(millis));
+                }
+                sb.append("] ");
+            }
+            sb.append("broadcast=").append(broadcastMillis);
+            sb.append(" total=").append(totalMillis);
+            return sb.toString();
         }
+    }
+
+    private static class CarrierServiceConnection implements ServiceConnection {
+        final CountDownLatch mConnected = new CountDownLatch(1);
+        volatile IBinder service;
 
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
             log("Connected to config app: " + name.flattenToString());
             this.service = service;
-            mHandler.sendMessage(mHandler.obtainMessage(eventId, phoneId, -1, this));
+            mConnected.countDown();
         }
 
         @Override
         public void onServiceDisconnected(ComponentName name) {
             this.service = null;
         }
+
+        /**
+         * Waits until the service is connected or the load is cancelled.
+         *
+         * @return whether the service is connected.
+         */
+        boolean awaitConnected(long timeoutMillis) throws InterruptedException {
+            return mConnected.await(timeoutMillis, TimeUnit.MILLISECONDS) && service != null;
+        }
     }
 
     private class ConfigLoaderBroadcastReceiver extends BroadcastReceiver {
@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.UserHandle;
+import android.telephony.TelephonyManager;
+import android.util.ArraySet;
+import android.util.Log;
+
+import com.android.internal.telephony.uicc.UiccCard;
+import com.android.internal.telephony.uicc.UiccController;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Maintains, for each slot, the set of installed packages that have carrier privileges according
+ * to the access rules of the UICC in that slot.
+ *
+ * <p>A slot is indexed with a single scan of the installed packages when the access rules of its
+ * card load, on the {@link BackgroundExecutor#LANE_IO} lane, and then kept up to date from package
+ * broadcasts by checking only the package that changed. Rule reloads and card changes start a
+ * new scan. Until a slot's scan is done, {@link #isKnownPrivileged} and
+ * {@link #getPackageNamesForIntent} leave the answer to the card, and
+ * {@link #getPrivilegedPackages} waits for the scan.
+ */
+public class CarrierPrivilegedPackageIndex {
+    private static final String LOG_TAG = "CarrierPrivPkgIndex";
+
+    private static final int EVENT_RULES_LOADED = 1;
+
+    private final Context mContext;
+    private final PackageManager mPackageManager;
+    private final Object mLock = new Object();
+    // Per slot: the card the index was built against, and the privileged packages, or null if
+    // the slot has not been scanned since its card or rules changed.
+    private final UiccCard[] mCards;
+    private final ArraySet<String>[] mPackages;
+    // Per slot: the scan in progress, if any, and the packages that changed while it runs, which
+    // are checked again before its result is used. A new scan replaces both, which makes an
+    // older scan discard its result.
+    private final FutureTask<ArraySet<String>>[] mScans;
+    private final ArraySet<String>[] mChangedDuringScan;
+    // Per slot: whether the notification that registering for the rules sends when they are
+    // already loaded may still arrive. It does not need a new scan if the slot was indexed or is
+    // being indexed already.
+    private final boolean[] mAwaitingFirstLoad;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case EVENT_RULES_LOADED:
+                    onRulesLoaded((Integer) ((AsyncResult) msg.obj).userObj);
+                    break;
+                default:
+                    Log.w(LOG_TAG, "Unexpected message: " + msg.what);
+                    break;
+            }
+        }
+    };
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri uri = intent.getData();
+            String packageName = uri == null ? null : uri.getSchemeSpecificPart();
+            if (packageName == null) {
+                return;
+            }
+            if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())) {
+                if (!intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+                    onPackageChanged(packageName, true /* removed */);
+                }
+            } else {
+                onPackageChanged(packageName, false /* removed */);
+            }
+        }
+    };
+
+    /**
+     * Scans the installed packages for those privileged on the card of one slot.
+     */
+    private final class Scan implements Callable<ArraySet<String>> {
+        final int mSlot;
+        final UiccCard mCard;
+        final ArraySet<String> mChanged = new ArraySet<>();
+
+        Scan(int slot, UiccCard card) {
+            mSlot = slot;
+            mCard = card;
+        }
+
+        @Override
+        public ArraySet<String> call() {
+            ArraySet<String> privileged = null;
+            try {
+                // Only check packages in user 0 for now
+                List<PackageInfo> installed = mPackageManager.getInstalledPackagesAsUser(
+                        PackageManager.MATCH_DISABLED_COMPONENTS
+                        | PackageManager.MATCH_DISABLED_UNTIL_USED_COMPONENTS
+                        | PackageManager.GET_SIGNATURES, UserHandle.USER_SYSTEM);
+                privileged = scan(mCard, installed);
+                return privileged;
+            } finally {
+                synchronized (mLock) {
+                    if (mChangedDuringScan[mSlot] == mChanged) {
+                        mScans[mSlot] = null;
+                        mChangedDuringScan[mSlot] = null;
+                        if (privileged != null) {
+                            for (int i = 0; i < mChanged.size(); i++) {
+                                updatePackageLocked(privileged, mCard, mChanged.valueAt(i));
+                            }
+                            mPackages[mSlot] = privileged;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public CarrierPrivilegedPackageIndex(Context context) {
+        mContext = context;
+        mPackageManager = context.getPackageManager();
+        int phoneCount = TelephonyManager.getDefault().getPhoneCount();
+        mCards = new UiccCard[phoneCount];
+        mPackages = new ArraySet[phoneCount];
+        mScans = new FutureTask[phoneCount];
+        mChangedDuringScan = new ArraySet[phoneCount];
+        mAwaitingFirstLoad = new boolean[phoneCount];
+    }
+
+    /**
+     * Start listening for package changes and for the access rules of the cards present. Must be
+     * called on the main thread.
+     */
+    public void register() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        mContext.registerReceiver(mPackageReceiver, filter);
+
+        synchronized (mLock) {
+            for (int slot = 0; slot < mCards.length; slot++) {
+                refreshCardLocked(slot);
+            }
+        }
+    }
+
+    /**
+     * Returns the packages with carrier privileges on any slot. Waits for the scan of slots that
+     * have not been indexed yet, so must not be called on the main thread.
+     */
+    public List<String> getPrivilegedPackages() {
+        List<String> privilegedPackages = new ArrayList<>();
+        List<FutureTask<ArraySet<String>>> pending = new ArrayList<>();
+        synchronized (mLock) {
+            for (int slot = 0; slot < mPackages.length; slot++) {
+                if (!refreshCardLocked(slot)) {
+                    continue;
+                }
+                if (mPackages[slot] != null) {
+                    privilegedPackages.addAll(mPackages[slot]);
+                } else {
+                    pending.add(mScans[slot] != null ? mScans[slot] : startScanLocked(slot));
+                }
+            }
+        }
+        for (FutureTask<ArraySet<String>> scan : pending) {
+            privilegedPackages.addAll(await(scan));
+        }
+        return privilegedPackages;
+    }
+
+    /**
+     * Returns whether {@code packageName} is known to have carrier privileges on {@code slot}.
+     * A {@code false} result is not authoritative; the caller should fall back to asking the
+     * card, since a package may be installed before its broadcast reaches us.
+     */
+    public boolean isKnownPrivileged(int slot, String packageName) {
+        synchronized (mLock) {
+            if (!refreshCardLocked(slot) || mPackages[slot] == null) {
+                return false;
+            }
+            return mPackages[slot].contains(packageName);
+        }
+    }
+
+    /**
+     * Returns the privileged packages on {@code slot} that handle {@code intent}, or {@code null}
+     * if the slot has not been indexed yet and the caller should ask the card instead.
+     */
+    public List<String> getPackageNamesForIntent(int slot, Intent intent) {
+        synchronized (mLock) {
+            if (!refreshCardLocked(slot) || mPackages[slot] == null) {
+                return null;
+            }
+        }
+        List<ResolveInfo> receivers = new ArrayList<>();
+        receivers.addAll(mPackageManager.queryBroadcastReceivers(intent, 0));
+        receivers.addAll(mPackageManager.queryIntentContentProviders(intent, 0));
+        receivers.addAll(mPackageManager.queryIntentActivities(intent, 0));
+        receivers.addAll(mPackageManager.queryIntentServices(intent, 0));
+
+        List<String> packageNames = new ArrayList<>();
+        synchronized (mLock) {
+            ArraySet<String> privileged = mPackages[slot];
+            if (privileged == null) {
+                return null;
+            }
+            for (ResolveInfo resolveInfo : receivers) {
+                String packageName = getPackageName(resolveInfo);
+                if (packageName != null && privileged.contains(packageName)
+                        && !packageNames.contains(packageName)) {
+                    packageNames.add(packageName);
+                }
+            }
+        }
+        return packageNames;
+    }
+
+    /**
+     * Makes sure the index of {@code slot} belongs to the card currently in it.
+     *
+     * @return whether the slot has a card with access rules.
+     */
+    private boolean refreshCardLocked(int slot) {
+        if (slot < 0 || slot >= mCards.length) {
+            return false;
+        }
+        UiccCard card = UiccController.getInstance().getUiccCard(slot);
+        if (card != mCards[slot]) {
+            if (mCards[slot] != null) {
+                mCards[slot].unregisterForCarrierPrivilegeRulesLoaded(mHandler);
+            }
+            mCards[slot] = card;
+            mPackages[slot] = null;
+            mScans[slot] = null;
+            mChangedDuringScan[slot] = null;
+            mAwaitingFirstLoad[slot] = card != null;
+            if (card != null) {
+                // Notifies right away if the rules are already loaded, which starts the scan.
+                card.registerForCarrierPrivilegeRulesLoaded(mHandler, EVENT_RULES_LOADED, slot);
+            }
+        }
+        return card != null && card.hasCarrierPrivilegeRules();
+    }
+
+    private void onRulesLoaded(int slot) {
+        synchronized (mLock) {
+            if (mCards[slot] == null || !mCards[slot].hasCarrierPrivilegeRules()) {
+                return;
+            }
+            if (mAwaitingFirstLoad[slot]) {
+                mAwaitingFirstLoad[slot] = false;
+                if (mPackages[slot] != null || mScans[slot] != null) {
+                    return;
+                }
+            }
+            startScanLocked(slot);
+        }
+    }
+
+    private FutureTask<ArraySet<String>> startScanLocked(int slot) {
+        Scan scan = new Scan(slot, mCards[slot]);
+        FutureTask<ArraySet<String>> task = new FutureTask<>(scan);
+        mPackages[slot] = null;
+        mScans[slot] = task;
+        mChangedDuringScan[slot] = scan.mChanged;
+        BackgroundExecutor.getExecutor(BackgroundExecutor.LANE_IO).execute(task);
+        return task;
+    }
+
+    private static ArraySet<String> await(FutureTask<ArraySet<String>> scan) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return scan.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static ArraySet<String> scan(UiccCard card, List<PackageInfo> installed) {
+        ArraySet<String> privileged = new ArraySet<>();
+        for (int p = installed.size() - 1; p >= 0; p--) {
+            PackageInfo pkgInfo = installed.get(p);
+            if (pkgInfo != null && pkgInfo.packageName != null
+                    && card.getCarrierPrivilegeStatus(pkgInfo)
+                        == TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS) {
+                privileged.add(pkgInfo.packageName);
+            }
+        }
+        return privileged;
+    }
+
+    private void updatePackageLocked(ArraySet<String> packages, UiccCard card,
+            String packageName) {
+        if (card.getCarrierPrivilegeStatus(mPackageManager, packageName)
+                == TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS) {
+            packages.add(packageName);
+        } else {
+            packages.remove(packageName);
+        }
+    }
+
+    private void onPackageChanged(String packageName, boolean removed) {
+        synchronized (mLock) {
+            for (int slot = 0; slot < mPackages.length; slot++) {
+                if (mChangedDuringScan[slot] != null) {
+                    mChangedDuringScan[slot].add(packageName);
+                }
+                if (mPackages[slot] == null || mCards[slot] == null) {
+                    continue;
+                }
+                if (removed) {
+                    mPackages[slot].remove(packageName);
+                } else {
+                    updatePackageLocked(mPackages[slot], mCards[slot], packageName);
+                }
+            }
+        }
+    }
+
+    private static String getPackageName(ResolveInfo resolveInfo) {
+        if (resolveInfo.activityInfo != null) {
+            return resolveInfo.activityInfo.packageName;
+        } else if (resolveInfo.serviceInfo != null) {
+            return resolveInfo.serviceInfo.packageName;
+        } else if (resolveInfo.providerInfo != null) {
+            return resolveInfo.providerInfo.packageName;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.os.WorkSource;
+import android.telephony.CellInfo;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.Phone;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the cell info of all phones for {@link PhoneInterfaceManager#getAllCellInfo}.
+ *
+ * <p>The cell info of each phone is kept for a short while after it was read, and calls within
+ * that window are answered from it. When a phone's cell info has to be read again, callers that
+ * arrive while the read is running wait for it instead of starting their own, and the phones
+ * that need a read are read in parallel. The window defaults to {@link #DEFAULT_MAX_AGE_MILLIS}
+ * and can be changed with the {@link #PROPERTY_MAX_AGE_MILLIS} system property; 0 turns the
+ * caching off but keeps the merging of concurrent reads.
+ */
+public class CellInfoAggregator {
+    static final String PROPERTY_MAX_AGE_MILLIS = "persist.radio.cellinfo_max_age_ms";
+    static final long DEFAULT_MAX_AGE_MILLIS = 2000;
+    private static final long QUERY_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * The last cell info read from one phone.
+     */
+    private static final class Snapshot {
+        final List<CellInfo> mCellInfo;
+        final long mReadAt;
+
+        Snapshot(List<CellInfo> cellInfo, long readAt) {
+            mCellInfo = cellInfo;
+            mReadAt = readAt;
+        }
+    }
+
+    private final Object mLock = new Object();
+    // Per phone id: the last cell info read, and the read in progress, if any.
+    private final SparseArray<Snapshot> mSnapshots = new SparseArray<>();
+    private final SparseArray<FutureTask<List<CellInfo>>> mInFlight = new SparseArray<>();
+    private final Executor mQueryExecutor;
+
+    private int mHits;
+    private int mMisses;
+    private int mMerged;
+    private int mReads;
+    private long mTotalReadMillis;
+    private long mMaxReadMillis;
+
+    public CellInfoAggregator(int phoneCount) {
+        this(newQueryExecutor(phoneCount));
+    }
+
+    @VisibleForTesting
+    CellInfoAggregator(Executor queryExecutor) {
+        mQueryExecutor = queryExecutor;
+    }
+
+    private static Executor newQueryExecutor(int phoneCount) {
+        // At most one read per phone is in flight, so one thread per phone never has to queue.
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(phoneCount, phoneCount,
+                QUERY_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                r -> new Thread(r, "CellInfoQuery"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Returns how long the cell info of a phone is reused after it was read.
+     */
+    @VisibleForTesting
+    long getMaxAgeMillis() {
+        return SystemProperties.getLong(PROPERTY_MAX_AGE_MILLIS, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    /**
+     * Returns the cell info of {@code phones}, read on behalf of {@code workSource} if they have
+     * to be read from the modem.
+     */
+    public List<CellInfo> getAllCellInfo(Phone[] phones, WorkSource workSource) {
+        long maxAgeMillis = getMaxAgeMillis();
+        long now = SystemClock.elapsedRealtime();
+        List<CellInfo>[] results = newResultArray(phones.length);
+        List<FutureTask<List<CellInfo>>> pending = new ArrayList<>();
+        List<FutureTask<List<CellInfo>>> toStart = new ArrayList<>();
+        synchronized (mLock) {
+            for (int i = 0; i < phones.length; i++) {
+                int phoneId = phones[i].getPhoneId();
+                Snapshot snapshot = mSnapshots.get(phoneId);
+                if (snapshot != null && now - snapshot.mReadAt < maxAgeMillis) {
+                    mHits++;
+                    results[i] = snapshot.mCellInfo;
+                    pending.add(null);
+                    continue;
+                }
+                FutureTask<List<CellInfo>> read = mInFlight.get(phoneId);
+                if (read != null) {
+                    mMerged++;
+                } else {
+                    mMisses++;
+                    read = newRead(phones[i], workSource);
+                    mInFlight.put(phoneId, read);
+                    toStart.add(read);
+                }
+                pending.add(read);
+            }
+        }
+
+        // Read the other phones in the background while this thread reads the last one.
+        for (int i = 0; i < toStart.size() - 1; i++) {
+            mQueryExecutor.execute(toStart.get(i));
+        }
+        if (!toStart.isEmpty()) {
+            toStart.get(toStart.size() - 1).run();
+        }
+
+        List<CellInfo> cellInfos = new ArrayList<>();
+        for (int i = 0; i < phones.length; i++) {
+            List<CellInfo> info = results[i];
+            if (pending.get(i) != null) {
+                info = await(pending.get(i));
+            }
+            if (info != null) {
+                cellInfos.addAll(info);
+            }
+        }
+        return cellInfos;
+    }
+
+    private FutureTask<List<CellInfo>> newRead(final Phone phone, final WorkSource workSource) {
+        final int phoneId = phone.getPhoneId();
+        return new FutureTask<>(() -> {
+            long start = SystemClock.elapsedRealtime();
+            List<CellInfo> info = null;
+            try {
+                info = phone.getAllCellInfo(workSource);
+                if (info != null) {
+                    info = Collections.unmodifiableList(new ArrayList<>(info));
+                }
+                return info;
+            } finally {
+                long end = SystemClock.elapsedRealtime();
+                synchronized (mLock) {
+                    mInFlight.remove(phoneId);
+                    if (info != null) {
+                        mSnapshots.put(phoneId, new Snapshot(info, end));
+                    }
+                    mReads++;
+                    mTotalReadMillis += end - start;
+                    mMaxReadMillis = Math.max(mMaxReadMillis, end - start);
+                }
+            }
+        });
+    }
+
+    private static List<CellInfo> await(FutureTask<List<CellInfo>> read) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return read.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            // Let the caller see the same failure as if it had read the phone itself.
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<CellInfo>[] newResultArray(int length) {
+        return new List[length];
+    }
+
+    void dump(IndentingPrintWriter pw) {
+        pw.println("------- Cell info aggregator -------");
+        pw.increaseIndent();
+        synchronized (mLock) {
+            pw.println("maxAgeMs=" + getMaxAgeMillis());
+            pw.println("hits=" + mHits + " misses=" + mMisses + " merged=" + mMerged);
+            pw.println("reads=" + mReads
+                    + " avgReadMs=" + (mReads == 0 ? 0 : mTotalReadMillis / mReads)
+                    + " maxReadMs=" + mMaxReadMillis);
+            long now = SystemClock.elapsedRealtime();
+            for (int i = 0; i < mSnapshots.size(); i++) {
+                Snapshot snapshot = mSnapshots.valueAt(i);
+                pw.println("phone " + mSnapshots.keyAt(i) + ": cells=" + snapshot.mCellInfo.size()
+                        + " ageMs=" + (now - snapshot.mReadAt)
+                        + (mInFlight.get(mSnapshots.keyAt(i)) != null ? " (reading)" : ""));
+            }
+        }
+        pw.decreaseIndent();
+    }
+}
@@ -1,22 +1,302 @@
-
 package com.android.phone;
 
 import android.content.Context;
+import android.telephony.CarrierConfigManager;
+import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.telephony.Call;
+import com.android.internal.telephony.CallManager;
+import com.android.internal.telephony.Phone;
+import com.android.internal.util.IndentingPrintWriter;
 import com.android.phone.vvm.VvmDumpHandler;
+import com.android.services.telephony.Log;
+import com.android.services.telephony.TelephonyGlobals;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Handles "adb shell dumpsys phone" and bug report dump.
+ *
+ * <p>The dump is split into named sections that can be selected on the command line, e.g.
+ * {@code dumpsys phone carrierconfig vvm}; with no section names every section is dumped. Text
+ * output is written to the PrintWriter as it is produced. With {@code --proto} the selected
+ * sections that have a structured form are written to the file descriptor instead, as the
+ * {@code PhoneDumpProto} message laid out next to the field constants below; the other sections
+ * are left out.
  */
 public class DumpsysHandler {
 
+    static final String ARG_PROTO = "--proto";
+
+    static final String SECTION_GLOBALS = "globals";
+    static final String SECTION_CALLS = "calls";
+    static final String SECTION_ACCOUNTS = "accounts";
+    static final String SECTION_CARRIER_CONFIG = "carrierconfig";
+    static final String SECTION_MODEM_CACHE = "modemcache";
+    static final String SECTION_VVM = "vvm";
+    static final String SECTION_EXECUTOR = "executor";
+    static final String SECTION_CELL_INFO = "cellinfo";
+
+    // Layout of the --proto output. Field numbers must never be reused for another meaning.
+    //
+    // message PhoneDumpProto {
+    //     optional CallsProto calls = 1;
+    //     optional CarrierConfigProto carrier_config = 2;
+    // }
+    private static final long PHONE_DUMP_CALLS = ProtoOutputStream.FIELD_TYPE_OBJECT
+            | ProtoOutputStream.FIELD_COUNT_SINGLE | 1;
+    private static final long PHONE_DUMP_CARRIER_CONFIG = ProtoOutputStream.FIELD_TYPE_OBJECT
+            | ProtoOutputStream.FIELD_COUNT_SINGLE | 2;
+
+    // message CallsProto {
+    //     optional string call_manager_state = 1;  // e.g. "IDLE" or "OFFHOOK"
+    //     repeated PhoneCallsProto phone = 2;
+    // }
+    private static final long CALLS_CALL_MANAGER_STATE = ProtoOutputStream.FIELD_TYPE_STRING
+            | ProtoOutputStream.FIELD_COUNT_SINGLE | 1;
+    private static final long CALLS_PHONE = ProtoOutputStream.FIELD_TYPE_OBJECT
+            | ProtoOutputStream.FIELD_COUNT_REPEATED | 2;
+
+    // message PhoneCallsProto {
+    //     optional int32 phone_id = 1;
+    //     optional string phone_name = 2;
+    //     optional string state = 3;
+    //     // Not set if the phone has no such call.
+    //     optional CallProto foreground_call = 4;
+    //     optional CallProto background_call = 5;
+    //     optional CallProto ringing_call = 6;
+    // }
+    private static final long PHONE_CALLS_PHONE_ID = ProtoOutputStream.FIELD_TYPE_INT32
+            | ProtoOutputStream.FIELD_COUNT_SINGLE | 1;
+    private static final long PHONE_CALLS_PHONE_NAME = ProtoOutputStream.FIELD_TYPE_STRING
+            | ProtoOutputStream.FIELD_COUNT_SINGLE | 2;
+    private static final long PHONE_CALLS_STATE = ProtoOutputStream.FIELD_TYPE_STRING
+            | ProtoOutputStream.FIELD_COUNT_SINGLE | 3;
+    private static final long PHONE_CALLS_FOREGROUND_CALL = ProtoOutputStream.FIELD_TYPE_OBJECT
+            | ProtoOutputStream.FIELD_COUNT_SINGLE | 4;
+    private static final long PHONE_CALLS_BACKGROUND_CALL = ProtoOutputStream.FIELD_TYPE_OBJECT
+            | ProtoOutputStream.FIELD_COUNT_SINGLE | 5;
+    private static final long PHONE_CALLS_RINGING_CALL = ProtoOutputStream.FIELD_TYPE_OBJECT
+            | ProtoOutputStream.FIELD_COUNT_SINGLE | 6;
+
+    // message CallProto {
+    //     optional string state = 1;  // Call.State, e.g. "ACTIVE" or "HOLDING"
+    //     optional int32 connection_count = 2;
+    // }
+    private static final long CALL_STATE = ProtoOutputStream.FIELD_TYPE_STRING
+            | ProtoOutputStream.FIELD_COUNT_SINGLE | 1;
+    private static final long CALL_CONNECTION_COUNT = ProtoOutputStream.FIELD_TYPE_INT32
+            | ProtoOutputStream.FIELD_COUNT_SINGLE | 2;
+
+    // message CarrierConfigProto {
+    //     // Values that differ from the platform defaults, ordered by phone, source and key.
+    //     repeated CarrierConfigOverrideProto override = 1;
+    // }
+    private static final long CARRIER_CONFIG_OVERRIDE = ProtoOutputStream.FIELD_TYPE_OBJECT
+            | ProtoOutputStream.FIELD_COUNT_REPEATED | 1;
+
+    // message CarrierConfigOverrideProto {
+    //     optional int32 phone_id = 1;
+    //     optional string source = 2;  // "mConfigFromDefaultApp" or "mConfigFromCarrierApp"
+    //     // False if nothing is loaded from this source; key and value are then not set, and
+    //     // this is the only record for the phone and source.
+    //     optional bool loaded = 3;
+    //     optional string key = 4;
+    //     optional string value = 5;
+    // }
+    private static final long OVERRIDE_PHONE_ID = ProtoOutputStream.FIELD_TYPE_INT32
+            | ProtoOutputStream.FIELD_COUNT_SINGLE | 1;
+    private static final long OVERRIDE_SOURCE = ProtoOutputStream.FIELD_TYPE_STRING
+            | ProtoOutputStream.FIELD_COUNT_SINGLE | 2;
+    private static final long OVERRIDE_LOADED = ProtoOutputStream.FIELD_TYPE_BOOL
+            | ProtoOutputStream.FIELD_COUNT_SINGLE | 3;
+    private static final long OVERRIDE_KEY = ProtoOutputStream.FIELD_TYPE_STRING
+            | ProtoOutputStream.FIELD_COUNT_SINGLE | 4;
+    private static final long OVERRIDE_VALUE = ProtoOutputStream.FIELD_TYPE_STRING
+            | ProtoOutputStream.FIELD_COUNT_SINGLE | 5;
+
+    /**
+     * A named part of the dump.
+     */
+    interface Section {
+        void dump(Context context, FileDescriptor fd, IndentingPrintWriter pw, String[] args);
+    }
+
+    /**
+     * A section that can also be written as its field of {@code PhoneDumpProto}.
+     */
+    interface ProtoSection extends Section {
+        void dumpProto(Context context, ProtoOutputStream proto);
+    }
+
+    private static final Map<String, Section> SECTIONS = new LinkedHashMap<>();
+    static {
+        SECTIONS.put(SECTION_GLOBALS, (context, fd, pw, args) ->
+                PhoneGlobals.getInstance().dump(fd, pw, args));
+        SECTIONS.put(SECTION_CALLS, new CallsSection());
+        SECTIONS.put(SECTION_ACCOUNTS, (context, fd, pw, args) ->
+                TelephonyGlobals.getInstance(context).dumpAccounts(pw));
+        SECTIONS.put(SECTION_CARRIER_CONFIG, new CarrierConfigSection());
+        SECTIONS.put(SECTION_MODEM_CACHE, (context, fd, pw, args) ->
+                PhoneGlobals.getInstance().phoneMgr.dumpModemResultCache(pw));
+        // Dump OMTP visual voicemail log.
+        SECTIONS.put(SECTION_VVM, (context, fd, pw, args) ->
+                VvmDumpHandler.dump(context, fd, pw, args));
+        SECTIONS.put(SECTION_EXECUTOR, (context, fd, pw, args) -> BackgroundExecutor.dump(pw));
+        SECTIONS.put(SECTION_CELL_INFO, (context, fd, pw, args) ->
+                PhoneGlobals.getInstance().phoneMgr.dumpCellInfoAggregator(pw));
+    }
+
     public static void dump(Context context, FileDescriptor fd, PrintWriter writer,
             String[] args) {
-        PhoneGlobals.getInstance().dump(fd, writer, args);
-        // Dump OMTP visual voicemail log.
-        VvmDumpHandler.dump(context, fd, writer, args);
+        boolean asProto = false;
+        List<String> selected = new ArrayList<>();
+        if (args != null) {
+            for (String arg : args) {
+                if (ARG_PROTO.equals(arg)) {
+                    asProto = true;
+                } else if (SECTIONS.containsKey(arg)) {
+                    selected.add(arg);
+                }
+            }
+        }
+        if (selected.isEmpty()) {
+            selected.addAll(SECTIONS.keySet());
+        }
+
+        if (asProto) {
+            ProtoOutputStream proto = new ProtoOutputStream(fd);
+            for (String name : selected) {
+                Section section = SECTIONS.get(name);
+                if (section instanceof ProtoSection) {
+                    ((ProtoSection) section).dumpProto(context, proto);
+                }
+            }
+            proto.flush();
+            return;
+        }
+
+        IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ");
+        for (String name : selected) {
+            SECTIONS.get(name).dump(context, fd, pw, args);
+            pw.flush();
+        }
+    }
+
+    /**
+     * The calls of each phone, followed in the text output by the recent call events and the
+     * emergency dial statistics.
+     */
+    private static final class CallsSection implements ProtoSection {
+        @Override
+        public void dump(Context context, FileDescriptor fd, IndentingPrintWriter pw,
+                String[] args) {
+            CallManager cm = PhoneGlobals.getInstance().mCM;
+            pw.println("------- Calls -------");
+            pw.increaseIndent();
+            pw.println("CallManager: state=" + cm.getState());
+            for (Phone phone : cm.getAllPhones()) {
+                if (phone == null) {
+                    continue;
+                }
+                pw.println("Phone " + phone.getPhoneId() + " (" + phone.getPhoneName()
+                        + "): state=" + phone.getState());
+                pw.increaseIndent();
+                dumpCall(pw, "FG", phone.getForegroundCall());
+                dumpCall(pw, "BG", phone.getBackgroundCall());
+                dumpCall(pw, "RINGING", phone.getRingingCall());
+                pw.decreaseIndent();
+            }
+            pw.decreaseIndent();
+            Log.dumpEvents(pw);
+            TelephonyGlobals.getInstance(context).dumpEmergencyDialStats(pw);
+        }
+
+        @Override
+        public void dumpProto(Context context, ProtoOutputStream proto) {
+            CallManager cm = PhoneGlobals.getInstance().mCM;
+            long callsToken = proto.start(PHONE_DUMP_CALLS);
+            proto.writeString(CALLS_CALL_MANAGER_STATE, String.valueOf(cm.getState()));
+            for (Phone phone : cm.getAllPhones()) {
+                if (phone == null) {
+                    continue;
+                }
+                long phoneToken = proto.startRepeatedObject(CALLS_PHONE);
+                proto.writeInt32(PHONE_CALLS_PHONE_ID, phone.getPhoneId());
+                proto.writeString(PHONE_CALLS_PHONE_NAME, phone.getPhoneName());
+                proto.writeString(PHONE_CALLS_STATE, String.valueOf(phone.getState()));
+                dumpCallProto(proto, PHONE_CALLS_FOREGROUND_CALL, phone.getForegroundCall());
+                dumpCallProto(proto, PHONE_CALLS_BACKGROUND_CALL, phone.getBackgroundCall());
+                dumpCallProto(proto, PHONE_CALLS_RINGING_CALL, phone.getRingingCall());
+                proto.endRepeatedObject(phoneToken);
+            }
+            proto.end(callsToken);
+        }
+
+        private static void dumpCall(IndentingPrintWriter pw, String label, Call call) {
+            pw.print(label);
+            if (call == null) {
+                pw.println(": null");
+                return;
+            }
+            pw.print(": state=");
+            pw.print(call.getState());
+            pw.print(" connections=");
+            pw.println(call.getConnections().size());
+        }
+
+        private static void dumpCallProto(ProtoOutputStream proto, long fieldId, Call call) {
+            if (call == null) {
+                return;
+            }
+            long token = proto.start(fieldId);
+            proto.writeString(CALL_STATE, String.valueOf(call.getState()));
+            proto.writeInt32(CALL_CONNECTION_COUNT, call.getConnections().size());
+            proto.end(token);
+        }
+    }
+
+    /**
+     * Prints only the carrier config values that differ from the platform defaults; the full
+     * configs are still available through "dumpsys carrier_config --all".
+     */
+    private static final class CarrierConfigSection implements ProtoSection {
+        @Override
+        public void dump(Context context, FileDescriptor fd, IndentingPrintWriter pw,
+                String[] args) {
+            CarrierConfigLoader loader = PhoneGlobals.getInstance().configLoader;
+            pw.println("------- CarrierConfig overrides -------");
+            if (loader != null) {
+                loader.dumpOverrides(pw, CarrierConfigManager.getDefaultConfig());
+            }
+        }
+
+        @Override
+        public void dumpProto(Context context, ProtoOutputStream proto) {
+            CarrierConfigLoader loader = PhoneGlobals.getInstance().configLoader;
+            if (loader == null) {
+                return;
+            }
+            long configToken = proto.start(PHONE_DUMP_CARRIER_CONFIG);
+            loader.visitOverrides(CarrierConfigManager.getDefaultConfig(),
+                    (phoneId, source, config, key) -> {
+                        long token = proto.startRepeatedObject(CARRIER_CONFIG_OVERRIDE);
+                        proto.writeInt32(OVERRIDE_PHONE_ID, phoneId);
+                        proto.writeString(OVERRIDE_SOURCE, source);
+                        proto.writeBool(OVERRIDE_LOADED, config != null);
+                        if (key != null) {
+                            proto.writeString(OVERRIDE_KEY, key);
+                            proto.writeString(OVERRIDE_VALUE,
+                                    CarrierConfigLoader.valueToString(config.get(key)));
+                        }
+                        proto.endRepeatedObject(token);
+                    });
+            proto.end(configToken);
+        }
     }
 }
@@ -43,6 +43,8 @@ import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.TelephonyIntents;
 import com.android.internal.telephony.TelephonyProperties;
 
+import java.util.concurrent.Future;
+
 /**
  * Displays dialog that enables users to exit Emergency Callback Mode
  *
@@ -73,6 +75,7 @@ public class EmergencyCallbackModeExitDialog extends Activity implements OnDismi
     private boolean mInEmergencyCall = false;
     private static final int ECM_TIMER_RESET = 1;
     private Phone mPhone = null;
+    private Future<?> mWaitForConnectionComplete;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -91,9 +94,7 @@ public class EmergencyCallbackModeExitDialog extends Activity implements OnDismi
 
         // Start thread that will wait for the connection completion so that it can get
         // timeout value from the service
-        Thread waitForConnectionCompleteThread = new Thread(null, mTask,
-                "EcmExitDialogWaitThread");
-        waitForConnectionCompleteThread.start();
+        mWaitForConnectionComplete = BackgroundExecutor.submit(BackgroundExecutor.LANE_UI, mTask);
 
         // Register ECM timer reset notfication
         mPhone.registerForEcmTimerReset(mTimerResetHandler, ECM_TIMER_RESET, null);
@@ -116,6 +117,10 @@ public class EmergencyCallbackModeExitDialog extends Activity implements OnDismi
         if (mPhone != null) {
             mPhone.unregisterForEcmTimerReset(mHandler);
         }
+        // Stop waiting for the connection if it has not completed yet.
+        if (mWaitForConnectionComplete != null) {
+            mWaitForConnectionComplete.cancel(true);
+        }
     }
 
     @Override
@@ -135,7 +140,10 @@ public class EmergencyCallbackModeExitDialog extends Activity implements OnDismi
      */
     private Runnable mTask = new Runnable() {
         public void run() {
-            Looper.prepare();
+            // Pool threads are reused, and may already have a looper.
+            if (Looper.myLooper() == null) {
+                Looper.prepare();
+            }
 
             // Bind to the remote service
             bindService(new Intent(EmergencyCallbackModeExitDialog.this,
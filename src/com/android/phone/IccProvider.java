@@ -16,11 +16,215 @@
 
 package com.android.phone;
 
+import android.content.BroadcastReceiver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.UriMatcher;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.telephony.SubscriptionManager;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import com.android.internal.telephony.TelephonyIntents;
+
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * ICC address book content provider.
+ *
+ * <p>Reading a phonebook EF from the SIM can take seconds, so the records of each EF and
+ * subscription are kept in memory after the first query and served from there. The cache is
+ * dropped whenever the provider writes to the SIM, something notifies a change of a
+ * content://icc URI, or the state of a SIM changes (which includes SIM refreshes).
  */
 public class IccProvider extends com.android.internal.telephony.IccProvider {
+    private static final String TAG = "PhoneIccProvider";
+
+    private static final Uri BASE_URI = Uri.parse("content://icc");
+
+    private static final int ADN = 1;
+    private static final int ADN_SUB = 2;
+    private static final int FDN = 3;
+    private static final int FDN_SUB = 4;
+    private static final int SDN = 5;
+    private static final int SDN_SUB = 6;
+
+    // The URIs the framework provider serves queries for.
+    private static final UriMatcher URL_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
+    static {
+        URL_MATCHER.addURI("icc", "adn", ADN);
+        URL_MATCHER.addURI("icc", "adn/subId/#", ADN_SUB);
+        URL_MATCHER.addURI("icc", "fdn", FDN);
+        URL_MATCHER.addURI("icc", "fdn/subId/#", FDN_SUB);
+        URL_MATCHER.addURI("icc", "sdn", SDN);
+        URL_MATCHER.addURI("icc", "sdn/subId/#", SDN_SUB);
+    }
+
+    /**
+     * The records of one EF of one subscription.
+     */
+    private static final class CachedEf {
+        String[] columns;
+        List<Object[]> rows;
+    }
+
+    private final Object mLock = new Object();
+    // Keyed by EF type and subId, e.g. "fdn/2".
+    private final ArrayMap<String, CachedEf> mCache = new ArrayMap<>();
+    private final CacheGeneration mGeneration = new CacheGeneration();
+
+    private final BroadcastReceiver mSimStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidate();
+        }
+    };
+
     public IccProvider() {
         super();
     }
+
+    @Override
+    public boolean onCreate() {
+        boolean created = super.onCreate();
+        getContext().registerReceiver(mSimStateReceiver,
+                new IntentFilter(TelephonyIntents.ACTION_SIM_STATE_CHANGED));
+        // Writes that do not go through this provider are expected to notify as well.
+        getContext().getContentResolver().registerContentObserver(BASE_URI, true,
+                new ContentObserver(new Handler(Looper.getMainLooper())) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidate();
+                    }
+                });
+        return created;
+    }
+
+    @Override
+    public Cursor query(Uri url, String[] projection, String selection, String[] selectionArgs,
+            String sort) {
+        String key = getCacheKey(url);
+        if (key == null) {
+            return super.query(url, projection, selection, selectionArgs, sort);
+        }
+        CachedEf cached;
+        long generation;
+        synchronized (mLock) {
+            cached = mCache.get(key);
+            generation = mGeneration.current();
+        }
+        if (cached == null) {
+            Cursor cursor = super.query(url, projection, selection, selectionArgs, sort);
+            if (cursor == null) {
+                return null;
+            }
+            cached = readAll(cursor);
+            // An empty result may just mean that the SIM is not ready yet.
+            if (!cached.rows.isEmpty()) {
+                synchronized (mLock) {
+                    if (mGeneration.isCurrent(generation)) {
+                        mCache.put(key, cached);
+                    }
+                }
+            }
+        }
+        MatrixCursor cursor = new MatrixCursor(cached.columns, cached.rows.size());
+        for (Object[] row : cached.rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    @Override
+    public Uri insert(Uri url, ContentValues initialValues) {
+        // The SIM decides which record a new entry goes to, so it is read again on next query.
+        try {
+            return super.insert(url, initialValues);
+        } finally {
+            invalidate();
+        }
+    }
+
+    @Override
+    public int delete(Uri url, String where, String[] whereArgs) {
+        try {
+            return super.delete(url, where, whereArgs);
+        } finally {
+            invalidate();
+        }
+    }
+
+    @Override
+    public int update(Uri url, ContentValues values, String where, String[] whereArgs) {
+        try {
+            return super.update(url, values, where, whereArgs);
+        } finally {
+            invalidate();
+        }
+    }
+
+    private void invalidate() {
+        synchronized (mLock) {
+            mGeneration.invalidate();
+            if (!mCache.isEmpty()) {
+                Log.d(TAG, "Dropping cached phonebook records");
+                mCache.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the cache key of a query URI, or null if the URI is not cached.
+     */
+    private static String getCacheKey(Uri url) {
+        switch (URL_MATCHER.match(url)) {
+            case ADN:
+                return "adn/" + SubscriptionManager.getDefaultSubscriptionId();
+            case FDN:
+                return "fdn/" + SubscriptionManager.getDefaultSubscriptionId();
+            case SDN:
+                return "sdn/" + SubscriptionManager.getDefaultSubscriptionId();
+            case ADN_SUB:
+            case FDN_SUB:
+            case SDN_SUB:
+                return url.getPathSegments().get(0) + "/" + url.getLastPathSegment();
+            default:
+                return null;
+        }
+    }
+
+    private static CachedEf readAll(Cursor cursor) {
+        CachedEf cached = new CachedEf();
+        try {
+            cached.columns = cursor.getColumnNames();
+            cached.rows = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                Object[] row = new Object[cached.columns.length];
+                for (int i = 0; i < row.length; i++) {
+                    switch (cursor.getType(i)) {
+                        case Cursor.FIELD_TYPE_NULL:
+                            break;
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row[i] = cursor.getLong(i);
+                            break;
+                        default:
+                            row[i] = cursor.getString(i);
+                            break;
+                    }
+                }
+                cached.rows.add(row);
+            }
+        } finally {
+            cursor.close();
+        }
+        return cached;
+    }
 }
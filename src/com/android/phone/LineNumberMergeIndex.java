@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory index of the line number overrides set by carrier apps through
+ * {@link PhoneInterfaceManager#setLine1NumberForDisplayForSubscriber}.
+ *
+ * <p>Maps each ICCID to its overridden line number and the subscriber ID that was active when it
+ * was set, and each line number to the ICCIDs that share it, so subscribers merged under one line
+ * can be found without walking the whole preferences file. The index is loaded once and persisted
+ * as a single string set next to the per-ICCID keys, which remain the source of truth for older
+ * builds.
+ *
+ * <p>Carrier apps often set the overrides of several SIMs in a row, so changes are applied in
+ * memory right away and written to the preferences in one batch shortly after, off the calling
+ * thread, rather than committing on the binder thread for each call.
+ */
+public class LineNumberMergeIndex {
+    private static final String LOG_TAG = "LineNumberMergeIndex";
+
+    static final String PREF_CARRIERS_ALPHATAG_PREFIX = "carrier_alphtag_";
+    static final String PREF_CARRIERS_NUMBER_PREFIX = "carrier_number_";
+    static final String PREF_CARRIERS_SUBSCRIBER_PREFIX = "carrier_subscriber_";
+    // One "iccId,subscriberId,number" entry per ICCID. The number goes last since it may contain
+    // commas (pauses).
+    @VisibleForTesting
+    static final String PREF_CARRIERS_MERGE_INDEX = "carrier_merge_index";
+
+    // The longest a change waits before it is written to the preferences.
+    static final long FLUSH_DELAY_MILLIS = 1000;
+
+    private static final class Entry {
+        final String number;
+        final String subscriberId;
+
+        Entry(String number, String subscriberId) {
+            this.number = number;
+            this.subscriberId = subscriberId;
+        }
+    }
+
+    private final SharedPreferences mPrefs;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Object mLock = new Object();
+    // Serializes flushes, so that an older state is never committed after a newer one.
+    private final Object mFlushLock = new Object();
+    // Preference key -> value (null to remove) of the changes not persisted yet
+    private final ArrayMap<String, String> mPendingWrites = new ArrayMap<>();
+    private boolean mFlushScheduled;
+    // iccId -> line number and subscriber ID
+    private final ArrayMap<String, Entry> mEntries = new ArrayMap<>();
+    // line number -> iccIds overridden to that number
+    private final ArrayMap<String, ArraySet<String>> mIccIdsByNumber = new ArrayMap<>();
+    private boolean mLoaded;
+
+    public LineNumberMergeIndex(SharedPreferences prefs) {
+        mPrefs = prefs;
+    }
+
+    /**
+     * Records the line number override for {@code iccId}. The change is visible to readers right
+     * away and written to the preferences within {@link #FLUSH_DELAY_MILLIS}, together with any
+     * other changes made in the meantime.
+     */
+    public void update(String iccId, String alphaTag, String number, String subscriberId) {
+        synchronized (mLock) {
+            loadLocked();
+            mPendingWrites.put(PREF_CARRIERS_ALPHATAG_PREFIX + iccId, alphaTag);
+
+            // Record both the line number and IMSI for this ICCID, since we need to
+            // track all merged IMSIs based on line number
+            final Entry previous = mEntries.get(iccId);
+            if (previous != null) {
+                removeFromNumberLocked(previous.number, iccId);
+            }
+            if (number == null) {
+                mEntries.remove(iccId);
+            } else {
+                mEntries.put(iccId, new Entry(number, subscriberId));
+                addToNumberLocked(number, iccId);
+            }
+            mPendingWrites.put(PREF_CARRIERS_NUMBER_PREFIX + iccId, number);
+            mPendingWrites.put(PREF_CARRIERS_SUBSCRIBER_PREFIX + iccId,
+                    number == null ? null : subscriberId);
+            scheduleFlushLocked();
+        }
+    }
+
+    /**
+     * Returns the alpha tag set along with the line number override for {@code iccId}, or
+     * {@code null} if there is none.
+     */
+    public String getAlphaTag(String iccId) {
+        final String key = PREF_CARRIERS_ALPHATAG_PREFIX + iccId;
+        synchronized (mLock) {
+            if (mPendingWrites.containsKey(key)) {
+                return mPendingWrites.get(key);
+            }
+        }
+        return mPrefs.getString(key, null);
+    }
+
+    /**
+     * Writes the changes not yet persisted to the preferences. Called after a delay once a change
+     * is made, and when the device shuts down; may also be called directly.
+     */
+    public void flush() {
+        synchronized (mFlushLock) {
+            final ArrayMap<String, String> writes;
+            final Set<String> encoded;
+            synchronized (mLock) {
+                mFlushScheduled = false;
+                if (mPendingWrites.isEmpty()) {
+                    return;
+                }
+                writes = new ArrayMap<>(mPendingWrites);
+                mPendingWrites.clear();
+                encoded = encodeLocked();
+            }
+            final SharedPreferences.Editor editor = mPrefs.edit();
+            for (int i = 0; i < writes.size(); i++) {
+                if (writes.valueAt(i) == null) {
+                    editor.remove(writes.keyAt(i));
+                } else {
+                    editor.putString(writes.keyAt(i), writes.valueAt(i));
+                }
+            }
+            editor.putStringSet(PREF_CARRIERS_MERGE_INDEX, encoded);
+            if (!editor.commit()) {
+                Log.w(LOG_TAG, "Failed to persist line number overrides, retrying later");
+                synchronized (mLock) {
+                    // Keep the newer value of keys changed while this flush was running.
+                    for (int i = 0; i < writes.size(); i++) {
+                        if (!mPendingWrites.containsKey(writes.keyAt(i))) {
+                            mPendingWrites.put(writes.keyAt(i), writes.valueAt(i));
+                        }
+                    }
+                    scheduleFlushLocked();
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes sure the pending changes are flushed before the device shuts down. Must be called on
+     * the main thread.
+     */
+    public void register(Context context) {
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                flush();
+            }
+        }, new IntentFilter(Intent.ACTION_SHUTDOWN));
+    }
+
+    private void scheduleFlushLocked() {
+        // A flush that is already scheduled is not pushed back, which bounds the delay.
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(() -> BackgroundExecutor.submit(BackgroundExecutor.LANE_IO,
+                    this::flush), FLUSH_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Returns the overridden line number for {@code iccId}, or {@code null} if there is none.
+     */
+    public String getNumber(String iccId) {
+        synchronized (mLock) {
+            loadLocked();
+            final Entry entry = mEntries.get(iccId);
+            return entry == null ? null : entry.number;
+        }
+    }
+
+    /**
+     * Finds the line number override of the first active subscriber that has one, and returns all
+     * subscriber IDs merged under that line number, or {@code null} if no active subscriber has an
+     * override.
+     */
+    public Set<String> getMergedSubscriberIds(Set<String> activeSubscriberIds) {
+        synchronized (mLock) {
+            loadLocked();
+            // First pass, find a number override for an active subscriber
+            String mergeNumber = null;
+            for (int i = 0; i < mEntries.size(); i++) {
+                final Entry entry = mEntries.valueAt(i);
+                if (activeSubscriberIds.contains(entry.subscriberId)
+                        && !TextUtils.isEmpty(entry.number)) {
+                    mergeNumber = entry.number;
+                    break;
+                }
+            }
+
+            // Shortcut when no active merged subscribers
+            if (mergeNumber == null) {
+                return null;
+            }
+
+            // Second pass, find all subscribers under that line override
+            final ArraySet<String> result = new ArraySet<>();
+            for (String iccId : mIccIdsByNumber.get(mergeNumber)) {
+                final String subscriberId = mEntries.get(iccId).subscriberId;
+                if (!TextUtils.isEmpty(subscriberId)) {
+                    result.add(subscriberId);
+                }
+            }
+            return result;
+        }
+    }
+
+    private void loadLocked() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        final Set<String> encoded = mPrefs.getStringSet(PREF_CARRIERS_MERGE_INDEX, null);
+        if (encoded != null) {
+            for (String value : encoded) {
+                final String[] parts = value.split(",", 3);
+                if (parts.length != 3) {
+                    Log.w(LOG_TAG, "Dropping malformed index entry");
+                    continue;
+                }
+                mEntries.put(parts[0], new Entry(parts[2],
+                        parts[1].isEmpty() ? null : parts[1]));
+            }
+        } else {
+            // Written by a build without the index; scan the per-ICCID keys once and migrate.
+            final Map<String, ?> prefs = mPrefs.getAll();
+            for (String key : prefs.keySet()) {
+                if (key.startsWith(PREF_CARRIERS_NUMBER_PREFIX)) {
+                    final String iccId = key.substring(PREF_CARRIERS_NUMBER_PREFIX.length());
+                    final Object subscriberId = prefs.get(PREF_CARRIERS_SUBSCRIBER_PREFIX + iccId);
+                    mEntries.put(iccId, new Entry((String) prefs.get(key),
+                            subscriberId instanceof String ? (String) subscriberId : null));
+                }
+            }
+            mPrefs.edit().putStringSet(PREF_CARRIERS_MERGE_INDEX, encodeLocked()).apply();
+        }
+        for (int i = 0; i < mEntries.size(); i++) {
+            addToNumberLocked(mEntries.valueAt(i).number, mEntries.keyAt(i));
+        }
+    }
+
+    private Set<String> encodeLocked() {
+        final ArraySet<String> encoded = new ArraySet<>(mEntries.size());
+        for (int i = 0; i < mEntries.size(); i++) {
+            final Entry entry = mEntries.valueAt(i);
+            encoded.add(mEntries.keyAt(i) + ","
+                    + (entry.subscriberId == null ? "" : entry.subscriberId) + "," + entry.number);
+        }
+        return encoded;
+    }
+
+    private void addToNumberLocked(String number, String iccId) {
+        ArraySet<String> iccIds = mIccIdsByNumber.get(number);
+        if (iccIds == null) {
+            iccIds = new ArraySet<>();
+            mIccIdsByNumber.put(number, iccIds);
+        }
+        iccIds.add(iccId);
+    }
+
+    private void removeFromNumberLocked(String number, String iccId) {
+        final ArraySet<String> iccIds = mIccIdsByNumber.get(number);
+        if (iccIds != null) {
+            iccIds.remove(iccId);
+            if (iccIds.isEmpty()) {
+                mIccIdsByNumber.remove(number);
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.UserHandle;
+import android.os.WorkSource;
+import android.provider.Settings;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+/**
+ * Remembers the parts of the location access checks of {@link PhoneInterfaceManager} that only
+ * change with the installed packages, the location mode or the current user, so that apps
+ * polling cell info do not repeat them on every call.
+ *
+ * <p>Cached are: that a package belongs to a uid and whether it targets a legacy SDK, the
+ * location mode of each user, whether a user is the current user or one of its profiles, and the
+ * {@link WorkSource} of each uid. Each of them is dropped by the broadcast or setting change that
+ * can alter it. The permission and app op checks, the foreground check of legacy apps and the
+ * cross-user permission check depend on the caller or change without notice, and are still made
+ * on every call.
+ */
+final class LocationAccessCache {
+    private final Context mContext;
+    private final AppOpsManager mAppOps;
+    private final Object mLock = new Object();
+    // "uid/package" -> whether the package targets a legacy SDK; present once checkPackage passed
+    private final ArrayMap<String, Boolean> mPackages = new ArrayMap<>();
+    // uid -> WorkSource to attribute modem requests to; copied before being handed out
+    private final SparseArray<WorkSource> mWorkSources = new SparseArray<>();
+    // userId -> whether location mode is on
+    private final SparseBooleanArray mLocationModeEnabled = new SparseBooleanArray();
+    // userId -> whether the user is the current user or one of its profiles
+    private final SparseBooleanArray mCurrentProfile = new SparseBooleanArray();
+    private final CacheGeneration mGeneration = new CacheGeneration();
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            synchronized (mLock) {
+                mGeneration.invalidate();
+                mPackages.clear();
+                mWorkSources.clear();
+            }
+        }
+    };
+
+    private final BroadcastReceiver mUserReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            synchronized (mLock) {
+                mGeneration.invalidate();
+                mCurrentProfile.clear();
+            }
+        }
+    };
+
+    private final ContentObserver mLocationModeObserver =
+            new ContentObserver(new Handler(Looper.getMainLooper())) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    synchronized (mLock) {
+                        mGeneration.invalidate();
+                        mLocationModeEnabled.clear();
+                    }
+                }
+            };
+
+    LocationAccessCache(Context context) {
+        mContext = context;
+        mAppOps = context.getSystemService(AppOpsManager.class);
+    }
+
+    /**
+     * Start listening for the changes that invalidate the cache. Must be called on the main
+     * thread.
+     */
+    void register() {
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiverAsUser(mPackageReceiver, UserHandle.ALL, packageFilter, null,
+                null);
+
+        IntentFilter userFilter = new IntentFilter();
+        userFilter.addAction(Intent.ACTION_USER_SWITCHED);
+        userFilter.addAction(Intent.ACTION_USER_ADDED);
+        userFilter.addAction(Intent.ACTION_USER_REMOVED);
+        userFilter.addAction(Intent.ACTION_MANAGED_PROFILE_ADDED);
+        userFilter.addAction(Intent.ACTION_MANAGED_PROFILE_REMOVED);
+        mContext.registerReceiverAsUser(mUserReceiver, UserHandle.ALL, userFilter, null, null);
+
+        mContext.getContentResolver().registerContentObserver(
+                Settings.Secure.getUriFor(Settings.Secure.LOCATION_MODE), false,
+                mLocationModeObserver, UserHandle.USER_ALL);
+    }
+
+    /**
+     * Same as {@link LocationAccessPolicy#canAccessCellLocation}.
+     */
+    boolean canAccessCellLocation(@NonNull String pkgName, int uid, String message)
+            throws SecurityException {
+        final int userId = UserHandle.getUserId(uid);
+        final String packageKey = uid + "/" + pkgName;
+        Boolean legacy;
+        boolean hasLocationMode;
+        boolean locationModeEnabled;
+        boolean hasCurrentProfile;
+        boolean currentProfile;
+        long generation;
+        synchronized (mLock) {
+            legacy = mPackages.get(packageKey);
+            int index = mLocationModeEnabled.indexOfKey(userId);
+            hasLocationMode = index >= 0;
+            locationModeEnabled = hasLocationMode && mLocationModeEnabled.valueAt(index);
+            index = mCurrentProfile.indexOfKey(userId);
+            hasCurrentProfile = index >= 0;
+            currentProfile = hasCurrentProfile && mCurrentProfile.valueAt(index);
+            generation = mGeneration.current();
+            if (legacy != null && hasLocationMode && hasCurrentProfile) {
+                mGeneration.hit();
+            } else {
+                mGeneration.miss();
+            }
+        }
+
+        if (legacy == null) {
+            mAppOps.checkPackage(uid, pkgName);
+            legacy = LocationAccessPolicy.isLegacyVersion(mContext, pkgName);
+        }
+        if (!LocationAccessPolicy.checkLocationPermission(mContext, pkgName, uid, message)) {
+            return false;
+        }
+        if (!hasLocationMode) {
+            locationModeEnabled = LocationAccessPolicy.isLocationModeEnabled(mContext, userId);
+        }
+        if (!hasCurrentProfile) {
+            currentProfile = LocationAccessPolicy.isCurrentProfile(mContext, uid);
+        }
+        synchronized (mLock) {
+            if (mGeneration.isCurrent(generation)) {
+                mPackages.put(packageKey, legacy);
+                mLocationModeEnabled.put(userId, locationModeEnabled);
+                mCurrentProfile.put(userId, currentProfile);
+            }
+        }
+
+        if (!locationModeEnabled
+                && !(legacy && LocationAccessPolicy.isForegroundApp(mContext, pkgName))) {
+            return false;
+        }
+        return currentProfile || LocationAccessPolicy.checkInteractAcrossUsersFull(mContext);
+    }
+
+    /**
+     * Returns a {@link WorkSource} that attributes work to {@code uid}.
+     */
+    WorkSource getWorkSource(int uid) {
+        WorkSource workSource;
+        long generation;
+        synchronized (mLock) {
+            workSource = mWorkSources.get(uid);
+            generation = mGeneration.current();
+        }
+        if (workSource == null) {
+            String packageName = mContext.getPackageManager().getNameForUid(uid);
+            workSource = new WorkSource(uid, packageName);
+            synchronized (mLock) {
+                if (mGeneration.isCurrent(generation)) {
+                    mWorkSources.put(uid, workSource);
+                }
+            }
+        }
+        // WorkSource is mutable and the modem code may hold on to it.
+        return new WorkSource(workSource);
+    }
+
+    void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("Location access cache: packages=" + mPackages.size() + " workSources="
+                    + mWorkSources.size());
+            pw.increaseIndent();
+            mGeneration.dump(pw);
+            pw.decreaseIndent();
+        }
+    }
+}
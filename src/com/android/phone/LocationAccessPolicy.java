@@ -56,12 +56,7 @@ final class LocationAccessPolicy {
         // required to be in the foreground to at least mitigate the case
         // where a legacy app the user is not using tracks their location.
 
-        // Grating ACCESS_FINE_LOCATION to an app automatically grants it ACCESS_COARSE_LOCATION.
-        context.enforceCallingOrSelfPermission(Manifest.permission.ACCESS_COARSE_LOCATION, message);
-        final int opCode = AppOpsManager.permissionToOpCode(
-                Manifest.permission.ACCESS_COARSE_LOCATION);
-        if (opCode != AppOpsManager.OP_NONE && context.getSystemService(AppOpsManager.class)
-                .noteOp(opCode, uid, pkgName) != AppOpsManager.MODE_ALLOWED) {
+        if (!checkLocationPermission(context, pkgName, uid, message)) {
             return false;
         }
         if (!isLocationModeEnabled(context, UserHandle.getUserId(uid))
@@ -73,7 +68,22 @@ final class LocationAccessPolicy {
         return isCurrentProfile(context, uid) || checkInteractAcrossUsersFull(context);
     }
 
-    private static boolean isLocationModeEnabled(@NonNull Context context, @UserIdInt int userId) {
+    /**
+     * Enforces the location permission of the caller and notes the location app op.
+     *
+     * @return whether the app op is allowed.
+     */
+    static boolean checkLocationPermission(@NonNull Context context, @NonNull String pkgName,
+            int uid, String message) throws SecurityException {
+        // Grating ACCESS_FINE_LOCATION to an app automatically grants it ACCESS_COARSE_LOCATION.
+        context.enforceCallingOrSelfPermission(Manifest.permission.ACCESS_COARSE_LOCATION, message);
+        final int opCode = AppOpsManager.permissionToOpCode(
+                Manifest.permission.ACCESS_COARSE_LOCATION);
+        return opCode == AppOpsManager.OP_NONE || context.getSystemService(AppOpsManager.class)
+                .noteOp(opCode, uid, pkgName) == AppOpsManager.MODE_ALLOWED;
+    }
+
+    static boolean isLocationModeEnabled(@NonNull Context context, @UserIdInt int userId) {
         return Settings.Secure.getIntForUser(context.getContentResolver(),
                 Settings.Secure.LOCATION_MODE, Settings.Secure.LOCATION_MODE_OFF, userId)
                 != Settings.Secure.LOCATION_MODE_OFF;
@@ -83,7 +93,7 @@ final class LocationAccessPolicy {
         return isLegacyVersion(context, pkgName) && isForegroundApp(context, pkgName);
     }
 
-    private static boolean isLegacyVersion(@NonNull Context context, @NonNull String pkgName) {
+    static boolean isLegacyVersion(@NonNull Context context, @NonNull String pkgName) {
         try {
             if (context.getPackageManager().getApplicationInfo(pkgName, 0)
                     .targetSdkVersion <= Build.VERSION_CODES.O) {
@@ -97,7 +107,7 @@ final class LocationAccessPolicy {
         return false;
     }
 
-    private static boolean isForegroundApp(@NonNull Context context, @NonNull String pkgName) {
+    static boolean isForegroundApp(@NonNull Context context, @NonNull String pkgName) {
         final ActivityManager am = context.getSystemService(ActivityManager.class);
         final List<ActivityManager.RunningTaskInfo> tasks = am.getRunningTasks(1);
         if (!tasks.isEmpty()) {
@@ -106,13 +116,13 @@ final class LocationAccessPolicy {
         return false;
     }
 
-    private static boolean checkInteractAcrossUsersFull(@NonNull Context context) {
+    static boolean checkInteractAcrossUsersFull(@NonNull Context context) {
         return context.checkCallingOrSelfPermission(
                 android.Manifest.permission.INTERACT_ACROSS_USERS_FULL)
                 == PackageManager.PERMISSION_GRANTED;
     }
 
-    private static boolean isCurrentProfile(@NonNull Context context, int uid) {
+    static boolean isCurrentProfile(@NonNull Context context, int uid) {
         final int currentUser = ActivityManager.getCurrentUser();
         final int callingUserId = UserHandle.getUserId(uid);
         if (callingUserId == currentUser) {
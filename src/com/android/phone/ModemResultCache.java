@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.provider.Settings;
+import android.telephony.SubscriptionManager;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.Phone;
+import com.android.internal.telephony.PhoneConstants;
+import com.android.internal.telephony.PhoneFactory;
+import com.android.internal.telephony.TelephonyIntents;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-through, per-subId cache for modem and SIM values that {@link PhoneInterfaceManager}
+ * would otherwise fetch from the RIL on every binder call, even though they rarely change.
+ *
+ * <p>Entries are populated on the first successful read, replaced when the matching setter
+ * succeeds, and dropped when the radio, SIM or subscriptions change. A generation counter
+ * guards against a slow read that started before an invalidation repopulating a stale value.
+ * The preferred network type of a subId is only cached while the setting it mirrors is
+ * observed; the observer is registered on the first miss, before the modem is read, and removed
+ * when the entries of the subId are dropped.
+ */
+public class ModemResultCache {
+    private static final String LOG_TAG = "ModemResultCache";
+
+    /** Key types; each one is tracked separately for hit rate reporting. */
+    public static final int TYPE_PREFERRED_NETWORK_TYPE = 0;
+    public static final int TYPE_ALLOWED_CARRIERS = 1;
+    public static final int TYPE_FORBIDDEN_PLMNS = 2;
+    public static final int TYPE_NV_ITEM = 3;
+
+    private static final String[] TYPE_NAMES = {
+            "preferredNetworkType", "allowedCarriers", "forbiddenPlmns", "nvItem"};
+
+    private static final int EVENT_RADIO_STATE_CHANGED = 1;
+
+    private final Context mContext;
+    private final Object mLock = new Object();
+    // subId -> (key -> value)
+    private final SparseArray<Map<String, Object>> mEntries = new SparseArray<>();
+    // subId -> registered observer of the preferred network mode setting for that subId
+    private final SparseArray<ContentObserver> mNetworkModeObservers = new SparseArray<>();
+    private final CacheGeneration mGeneration = new CacheGeneration(TYPE_NAMES);
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case EVENT_RADIO_STATE_CHANGED:
+                    int phoneId = (Integer) ((AsyncResult) msg.obj).userObj;
+                    invalidatePhone(phoneId);
+                    break;
+                default:
+                    Log.w(LOG_TAG, "Unexpected message: " + msg.what);
+                    break;
+            }
+        }
+    };
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            switch (intent.getAction()) {
+                case Intent.ACTION_SERVICE_STATE:
+                    // The modem may add entries to EF_FPLMN when a registration is rejected.
+                    int subId = intent.getIntExtra(PhoneConstants.SUBSCRIPTION_KEY,
+                            SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+                    invalidateType(subId, TYPE_FORBIDDEN_PLMNS);
+                    break;
+                default:
+                    // SIM state or subscription changes: any subId may now map to another SIM.
+                    invalidateAll();
+                    break;
+            }
+        }
+    };
+
+    public ModemResultCache(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Start listening for the radio, SIM and subscription changes that invalidate the cache.
+     * Must be called on the main thread.
+     */
+    public void register() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(TelephonyIntents.ACTION_SIM_STATE_CHANGED);
+        filter.addAction(TelephonyIntents.ACTION_SUBINFO_RECORD_UPDATED);
+        filter.addAction(TelephonyIntents.ACTION_DEFAULT_SUBSCRIPTION_CHANGED);
+        filter.addAction(Intent.ACTION_AIRPLANE_MODE_CHANGED);
+        filter.addAction(Intent.ACTION_SERVICE_STATE);
+        mContext.registerReceiver(mReceiver, filter);
+
+        for (Phone phone : PhoneFactory.getPhones()) {
+            if (phone.mCi != null) {
+                phone.mCi.registerForRadioStateChanged(mHandler, EVENT_RADIO_STATE_CHANGED,
+                        phone.getPhoneId());
+            }
+        }
+    }
+
+    /**
+     * Returns the generation to pass to {@link #putIfUnchanged} after reading from the modem.
+     */
+    public long getGeneration() {
+        synchronized (mLock) {
+            return mGeneration.current();
+        }
+    }
+
+    /**
+     * Returns the cached value for {@code key} of the given type, or {@code null} on a miss.
+     */
+    public Object get(int subId, int type, String key) {
+        Object value;
+        synchronized (mLock) {
+            Map<String, Object> entries = mEntries.get(subId);
+            value = entries == null ? null : entries.get(key);
+            if (value == null) {
+                mGeneration.miss(type);
+            } else {
+                mGeneration.hit(type);
+            }
+        }
+        if (value == null && type == TYPE_PREFERRED_NETWORK_TYPE) {
+            // Before the caller reads the modem, so that a Settings write racing with the read
+            // bumps the generation it is about to take.
+            observeNetworkMode(subId);
+        }
+        return value;
+    }
+
+    /**
+     * Stores a value read from the modem, unless the cache was invalidated or written to since
+     * {@code generation} was obtained.
+     */
+    public void putIfUnchanged(int subId, int type, String key, Object value, long generation) {
+        synchronized (mLock) {
+            if (!mGeneration.isCurrent(generation)) {
+                return;
+            }
+            putLocked(subId, type, key, value);
+        }
+    }
+
+    /**
+     * Stores a value that was just written to the modem successfully.
+     */
+    public void put(int subId, int type, String key, Object value) {
+        if (type == TYPE_PREFERRED_NETWORK_TYPE) {
+            observeNetworkMode(subId);
+        }
+        synchronized (mLock) {
+            mGeneration.invalidate();
+            putLocked(subId, type, key, value);
+        }
+    }
+
+    private void putLocked(int subId, int type, String key, Object value) {
+        if (value == null || !SubscriptionManager.isValidSubscriptionId(subId)) {
+            return;
+        }
+        if (type == TYPE_PREFERRED_NETWORK_TYPE && mNetworkModeObservers.get(subId) == null) {
+            // The observer was removed since the read; the setting may have changed unseen.
+            return;
+        }
+        Map<String, Object> entries = mEntries.get(subId);
+        if (entries == null) {
+            entries = new ArrayMap<>();
+            mEntries.put(subId, entries);
+        }
+        entries.put(key, value);
+    }
+
+    /**
+     * Drops the cached value for {@code key}.
+     */
+    public void invalidate(int subId, String key) {
+        synchronized (mLock) {
+            mGeneration.invalidate();
+            Map<String, Object> entries = mEntries.get(subId);
+            if (entries != null) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Drops every cached value of the given type for {@code subId}.
+     */
+    public void invalidateType(int subId, int type) {
+        String prefix = keyPrefix(type);
+        synchronized (mLock) {
+            mGeneration.invalidate();
+            Map<String, Object> entries = mEntries.get(subId);
+            if (entries != null) {
+                entries.keySet().removeIf(key -> key.startsWith(prefix));
+            }
+        }
+    }
+
+    private void invalidatePhone(int phoneId) {
+        int[] subIds = SubscriptionManager.getSubId(phoneId);
+        List<ContentObserver> observers = new ArrayList<>();
+        synchronized (mLock) {
+            mGeneration.invalidate();
+            if (subIds != null) {
+                for (int subId : subIds) {
+                    mEntries.remove(subId);
+                    removeNetworkModeObserverLocked(subId, observers);
+                }
+            }
+        }
+        unregisterObservers(observers);
+    }
+
+    /**
+     * Drops every cached value.
+     */
+    public void invalidateAll() {
+        List<ContentObserver> observers = new ArrayList<>();
+        synchronized (mLock) {
+            mGeneration.invalidate();
+            mEntries.clear();
+            for (int i = 0; i < mNetworkModeObservers.size(); i++) {
+                observers.add(mNetworkModeObservers.valueAt(i));
+            }
+            mNetworkModeObservers.clear();
+        }
+        unregisterObservers(observers);
+    }
+
+    /**
+     * The preferred network type may also be changed by Settings, which writes the global
+     * setting and talks to the Phone directly, so follow the setting to stay coherent.
+     */
+    private void observeNetworkMode(int subId) {
+        if (!SubscriptionManager.isValidSubscriptionId(subId)) {
+            return;
+        }
+        synchronized (mLock) {
+            if (mNetworkModeObservers.get(subId) != null) {
+                return;
+            }
+        }
+        ContentObserver observer = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                invalidateType(subId, TYPE_PREFERRED_NETWORK_TYPE);
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(Settings.Global.getUriFor(
+                Settings.Global.PREFERRED_NETWORK_MODE + subId), false, observer);
+        boolean duplicate;
+        synchronized (mLock) {
+            duplicate = mNetworkModeObservers.get(subId) != null;
+            if (!duplicate) {
+                mNetworkModeObservers.put(subId, observer);
+            }
+        }
+        if (duplicate) {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+        }
+    }
+
+    private void removeNetworkModeObserverLocked(int subId, List<ContentObserver> removed) {
+        ContentObserver observer = mNetworkModeObservers.get(subId);
+        if (observer != null) {
+            mNetworkModeObservers.remove(subId);
+            removed.add(observer);
+        }
+    }
+
+    private void unregisterObservers(List<ContentObserver> observers) {
+        for (ContentObserver observer : observers) {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+        }
+    }
+
+    @VisibleForTesting
+    boolean isObservingNetworkMode(int subId) {
+        synchronized (mLock) {
+            return mNetworkModeObservers.get(subId) != null;
+        }
+    }
+
+    public static String keyPrefix(int type) {
+        return TYPE_NAMES[type];
+    }
+
+    public static String key(int type, int qualifier) {
+        return TYPE_NAMES[type] + ":" + qualifier;
+    }
+
+    @VisibleForTesting
+    public int getHitCount(int type) {
+        synchronized (mLock) {
+            return mGeneration.getHitCount(type);
+        }
+    }
+
+    /**
+     * Dump the hit rate of each key type and the number of cached entries.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        pw.println("ModemResultCache:");
+        pw.increaseIndent();
+        synchronized (mLock) {
+            mGeneration.dump(pw);
+            for (int i = 0; i < mEntries.size(); i++) {
+                pw.println("subId=" + mEntries.keyAt(i) + " entries="
+                        + mEntries.valueAt(i).keySet());
+            }
+        }
+        pw.decreaseIndent();
+    }
+}
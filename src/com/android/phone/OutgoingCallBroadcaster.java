@@ -45,6 +45,7 @@ import android.widget.ProgressBar;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneConstants;
 import com.android.internal.telephony.TelephonyCapabilities;
+import com.android.services.telephony.EmergencyNumberClassifier;
 
 /**
  * OutgoingCallBroadcaster receives CALL and CALL_PRIVILEGED Intents, and broadcasts the
@@ -198,7 +199,8 @@ public class OutgoingCallBroadcaster extends Activity
                     && (phone.isOtaSpNumber(number))) {
                 if (DBG) Log.v(TAG, "Call is active, a 2nd OTA call cancelled -- returning.");
                 return false;
-            } else if (PhoneNumberUtils.isPotentialLocalEmergencyNumber(context, number)) {
+            } else if (EmergencyNumberClassifier.getInstance(context)
+                    .isPotentialLocalEmergencyNumber(number)) {
                 // Just like 3rd-party apps aren't allowed to place emergency
                 // calls via the ACTION_CALL intent, we also don't allow 3rd
                 // party apps to use the NEW_OUTGOING_CALL broadcast to rewrite
@@ -431,10 +433,11 @@ public class OutgoingCallBroadcaster extends Activity
         // "invalid" number like "9111234" that isn't technically an
         // emergency number but might still result in an emergency call
         // with some networks.)
+        final EmergencyNumberClassifier classifier = EmergencyNumberClassifier.getInstance(this);
         final boolean isExactEmergencyNumber =
-                (number != null) && PhoneNumberUtils.isLocalEmergencyNumber(this, number);
+                (number != null) && classifier.isLocalEmergencyNumber(number);
         final boolean isPotentialEmergencyNumber =
-                (number != null) && PhoneNumberUtils.isPotentialLocalEmergencyNumber(this, number);
+                (number != null) && classifier.isPotentialLocalEmergencyNumber(number);
         if (VDBG) {
             Log.v(TAG, " - Checking restrictions for number '" + number + "':");
             Log.v(TAG, "     isExactEmergencyNumber     = " + isExactEmergencyNumber);
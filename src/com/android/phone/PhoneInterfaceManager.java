@@ -26,7 +26,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.ComponentInfo;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.net.NetworkStats;
 import android.net.Uri;
@@ -42,7 +41,6 @@ import android.os.Process;
 import android.os.PersistableBundle;
 import android.os.ResultReceiver;
 import android.os.ServiceManager;
-import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.WorkSource;
 import android.preference.PreferenceManager;
@@ -106,6 +104,7 @@ import com.android.internal.telephony.uicc.UiccCardApplication;
 import com.android.internal.telephony.uicc.UiccController;
 import com.android.internal.telephony.util.VoicemailNotificationSettingsUtil;
 import com.android.internal.util.HexDump;
+import com.android.internal.util.IndentingPrintWriter;
 import com.android.phone.vvm.PhoneAccountHandleConverter;
 import com.android.phone.vvm.RemoteVvmTaskManager;
 import com.android.phone.vvm.VisualVoicemailSettingsUtil;
@@ -118,7 +117,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
+import java.util.Set;
 
 import static com.android.internal.telephony.PhoneConstants.SUBSCRIPTION_KEY;
 import com.android.internal.telephony.RILConstants;
@@ -194,10 +193,11 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private MainThreadHandler mMainThreadHandler;
     private SubscriptionController mSubscriptionController;
     private SharedPreferences mTelephonySharedPreferences;
-
-    private static final String PREF_CARRIERS_ALPHATAG_PREFIX = "carrier_alphtag_";
-    private static final String PREF_CARRIERS_NUMBER_PREFIX = "carrier_number_";
-    private static final String PREF_CARRIERS_SUBSCRIBER_PREFIX = "carrier_subscriber_";
+    private ModemResultCache mModemResultCache;
+    private LocationAccessCache mLocationAccessCache;
+    private CellInfoAggregator mCellInfoAggregator;
+    private LineNumberMergeIndex mLineNumberMergeIndex;
+    private CarrierPrivilegedPackageIndex mCarrierPrivilegedPackageIndex;
 
     // The AID of ISD-R.
     private static final String ISDR_AID = "A0000005591010FFFFFFFF8900000100";
@@ -1065,8 +1065,18 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         mMainThreadHandler = new MainThreadHandler();
         mTelephonySharedPreferences =
                 PreferenceManager.getDefaultSharedPreferences(mPhone.getContext());
+        mLineNumberMergeIndex = new LineNumberMergeIndex(mTelephonySharedPreferences);
+        mLineNumberMergeIndex.register(mPhone.getContext());
         mSubscriptionController = SubscriptionController.getInstance();
         mNetworkScanRequestTracker = new NetworkScanRequestTracker();
+        mModemResultCache = new ModemResultCache(mPhone.getContext());
+        mModemResultCache.register();
+        mLocationAccessCache = new LocationAccessCache(mPhone.getContext());
+        mLocationAccessCache.register();
+        mCellInfoAggregator = new CellInfoAggregator(
+                TelephonyManager.getDefault().getPhoneCount());
+        mCarrierPrivilegedPackageIndex = new CarrierPrivilegedPackageIndex(mPhone.getContext());
+        mCarrierPrivilegedPackageIndex.register();
 
         publish();
     }
@@ -1707,8 +1717,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
     @Override
     public Bundle getCellLocation(String callingPackage) {
-        if (!LocationAccessPolicy.canAccessCellLocation(mPhone.getContext(),
-                callingPackage, Binder.getCallingUid(), "getCellLocation")) {
+        if (!mLocationAccessCache.canAccessCellLocation(callingPackage, Binder.getCallingUid(),
+                "getCellLocation")) {
             return null;
         }
 
@@ -1719,7 +1729,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             return null;
         }
 
-        WorkSource workSource = getWorkSource(null, Binder.getCallingUid());
+        WorkSource workSource = mLocationAccessCache.getWorkSource(Binder.getCallingUid());
         phone.getCellLocation(workSource).fillInNotifierBundle(data);
         return data;
     }
@@ -1775,8 +1785,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     @Override
     @SuppressWarnings("unchecked")
     public List<NeighboringCellInfo> getNeighboringCellInfo(String callingPackage) {
-        if (!LocationAccessPolicy.canAccessCellLocation(mPhone.getContext(),
-                callingPackage, Binder.getCallingUid(), "getNeighboringCellInfo")) {
+        if (!mLocationAccessCache.canAccessCellLocation(callingPackage, Binder.getCallingUid(),
+                "getNeighboringCellInfo")) {
             return null;
         }
 
@@ -1789,7 +1799,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
         ArrayList<NeighboringCellInfo> cells = null;
 
-        WorkSource workSource = getWorkSource(null, Binder.getCallingUid());
+        WorkSource workSource = mLocationAccessCache.getWorkSource(Binder.getCallingUid());
         try {
             cells = (ArrayList<NeighboringCellInfo>) sendRequest(
                     CMD_HANDLE_NEIGHBORING_CELL, workSource,
@@ -1803,25 +1813,20 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
     @Override
     public List<CellInfo> getAllCellInfo(String callingPackage) {
-        if (!LocationAccessPolicy.canAccessCellLocation(mPhone.getContext(),
-                callingPackage, Binder.getCallingUid(), "getAllCellInfo")) {
+        if (!mLocationAccessCache.canAccessCellLocation(callingPackage, Binder.getCallingUid(),
+                "getAllCellInfo")) {
             return null;
         }
 
         if (DBG_LOC) log("getAllCellInfo: is active user");
-        WorkSource workSource = getWorkSource(null, Binder.getCallingUid());
-        List<CellInfo> cellInfos = new ArrayList<CellInfo>();
-        for (Phone phone : PhoneFactory.getPhones()) {
-            final List<CellInfo> info = phone.getAllCellInfo(workSource);
-            if (info != null) cellInfos.addAll(info);
-        }
-        return cellInfos;
+        WorkSource workSource = mLocationAccessCache.getWorkSource(Binder.getCallingUid());
+        return mCellInfoAggregator.getAllCellInfo(PhoneFactory.getPhones(), workSource);
     }
 
     @Override
     public void setCellInfoListRate(int rateInMillis) {
         enforceModifyPermission();
-        WorkSource workSource = getWorkSource(null, Binder.getCallingUid());
+        WorkSource workSource = mLocationAccessCache.getWorkSource(Binder.getCallingUid());
         mPhone.setCellInfoListRate(rateInMillis, workSource);
     }
 
@@ -2536,9 +2541,18 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             loge("getForbiddenPlmnList(): App Type must be USIM or SIM");
             return null;
         }
+        String key = ModemResultCache.key(ModemResultCache.TYPE_FORBIDDEN_PLMNS, appType);
+        String[] cached = (String[]) mModemResultCache.get(subId,
+                ModemResultCache.TYPE_FORBIDDEN_PLMNS, key);
+        if (cached != null) {
+            return cached.clone();
+        }
+        long generation = mModemResultCache.getGeneration();
         Object response = sendRequest(
             CMD_GET_FORBIDDEN_PLMNS, new Integer(appType), subId);
         if (response instanceof String[]) {
+            mModemResultCache.putIfUnchanged(subId, ModemResultCache.TYPE_FORBIDDEN_PLMNS, key,
+                    ((String[]) response).clone(), generation);
             return (String[]) response;
         }
         // Response is an Exception of some kind, which is signalled to the user as a NULL retval
@@ -2572,8 +2586,21 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     public String nvReadItem(int itemID) {
         enforceModifyPermissionOrCarrierPrivilege(getDefaultSubscription());
         if (DBG) log("nvReadItem: item " + itemID);
-        String value = (String) sendRequest(CMD_NV_READ_ITEM, itemID);
+        int subId = mPhone.getSubId();
+        String key = ModemResultCache.key(ModemResultCache.TYPE_NV_ITEM, itemID);
+        String value = (String) mModemResultCache.get(subId, ModemResultCache.TYPE_NV_ITEM, key);
+        if (value != null) {
+            if (DBG) log("nvReadItem: item " + itemID + " is \"" + value + "\" (cached)");
+            return value;
+        }
+        long generation = mModemResultCache.getGeneration();
+        value = (String) sendRequest(CMD_NV_READ_ITEM, itemID);
         if (DBG) log("nvReadItem: item " + itemID + " is \"" + value + '"');
+        // An empty string is returned on error; only cache real values.
+        if (!TextUtils.isEmpty(value)) {
+            mModemResultCache.putIfUnchanged(subId, ModemResultCache.TYPE_NV_ITEM, key, value,
+                    generation);
+        }
         return value;
     }
 
@@ -2592,6 +2619,13 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         Boolean success = (Boolean) sendRequest(CMD_NV_WRITE_ITEM,
                 new Pair<Integer, String>(itemID, itemValue));
         if (DBG) log("nvWriteItem: item " + itemID + ' ' + (success ? "ok" : "fail"));
+        String key = ModemResultCache.key(ModemResultCache.TYPE_NV_ITEM, itemID);
+        if (success && itemValue != null) {
+            mModemResultCache.put(mPhone.getSubId(), ModemResultCache.TYPE_NV_ITEM, key,
+                    itemValue);
+        } else {
+            mModemResultCache.invalidate(mPhone.getSubId(), key);
+        }
         return success;
     }
 
@@ -2608,6 +2642,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         if (DBG) log("nvWriteCdmaPrl: value: " + HexDump.toHexString(preferredRoamingList));
         Boolean success = (Boolean) sendRequest(CMD_NV_WRITE_CDMA_PRL, preferredRoamingList);
         if (DBG) log("nvWriteCdmaPrl: " + (success ? "ok" : "fail"));
+        mModemResultCache.invalidateType(mPhone.getSubId(), ModemResultCache.TYPE_NV_ITEM);
         return success;
     }
 
@@ -2624,6 +2659,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         if (DBG) log("nvResetConfig: type " + resetType);
         Boolean success = (Boolean) sendRequest(CMD_NV_RESET_CONFIG, resetType);
         if (DBG) log("nvResetConfig: type " + resetType + ' ' + (success ? "ok" : "fail"));
+        // A reset may change any NV item and the radio is usually restarted afterwards.
+        mModemResultCache.invalidateAll();
         return success;
     }
 
@@ -2753,9 +2790,21 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     public int getPreferredNetworkType(int subId) {
         enforceModifyPermissionOrCarrierPrivilege(subId);
         if (DBG) log("getPreferredNetworkType");
+        String key = ModemResultCache.key(ModemResultCache.TYPE_PREFERRED_NETWORK_TYPE, 0);
+        Integer cached = (Integer) mModemResultCache.get(subId,
+                ModemResultCache.TYPE_PREFERRED_NETWORK_TYPE, key);
+        if (cached != null) {
+            if (DBG) log("getPreferredNetworkType: " + cached + " (cached)");
+            return cached;
+        }
+        long generation = mModemResultCache.getGeneration();
         int[] result = (int[]) sendRequest(CMD_GET_PREFERRED_NETWORK_TYPE, null, subId);
         int networkType = (result != null ? result[0] : -1);
         if (DBG) log("getPreferredNetworkType: " + networkType);
+        if (result != null) {
+            mModemResultCache.putIfUnchanged(subId, ModemResultCache.TYPE_PREFERRED_NETWORK_TYPE,
+                    key, networkType, generation);
+        }
         return networkType;
     }
 
@@ -2775,6 +2824,9 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         if (success) {
             Settings.Global.putInt(mPhone.getContext().getContentResolver(),
                     Settings.Global.PREFERRED_NETWORK_MODE + subId, networkType);
+            mModemResultCache.put(subId, ModemResultCache.TYPE_PREFERRED_NETWORK_TYPE,
+                    ModemResultCache.key(ModemResultCache.TYPE_PREFERRED_NETWORK_TYPE, 0),
+                    networkType);
         }
         return success;
     }
@@ -2888,6 +2940,10 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
               continue;
             }
 
+            if (mCarrierPrivilegedPackageIndex.isKnownPrivileged(i, pkgName)) {
+                result = TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS;
+                break;
+            }
             result = card.getCarrierPrivilegeStatus(
                 mPhone.getContext().getPackageManager(), pkgName);
             if (result == TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS) {
@@ -2909,40 +2965,18 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             loge("getCarrierPackageNamesForIntent: No UICC");
             return null ;
         }
+        List<String> packageNames =
+                mCarrierPrivilegedPackageIndex.getPackageNamesForIntent(phoneId, intent);
+        if (packageNames != null) {
+            return packageNames;
+        }
         return card.getCarrierPackageNamesForIntent(
                 mPhone.getContext().getPackageManager(), intent);
     }
 
     @Override
     public List<String> getPackagesWithCarrierPrivileges() {
-        PackageManager pm = mPhone.getContext().getPackageManager();
-        List<String> privilegedPackages = new ArrayList<>();
-        List<PackageInfo> packages = null;
-        for (int i = 0; i < TelephonyManager.getDefault().getPhoneCount(); i++) {
-            UiccCard card = UiccController.getInstance().getUiccCard(i);
-            if (card == null) {
-                // No UICC in that slot.
-                continue;
-            }
-            if (card.hasCarrierPrivilegeRules()) {
-                if (packages == null) {
-                    // Only check packages in user 0 for now
-                    packages = pm.getInstalledPackagesAsUser(
-                            PackageManager.MATCH_DISABLED_COMPONENTS
-                            | PackageManager.MATCH_DISABLED_UNTIL_USED_COMPONENTS
-                            | PackageManager.GET_SIGNATURES, UserHandle.USER_SYSTEM);
-                }
-                for (int p = packages.size() - 1; p >= 0; p--) {
-                    PackageInfo pkgInfo = packages.get(p);
-                    if (pkgInfo != null && pkgInfo.packageName != null
-                            && card.getCarrierPrivilegeStatus(pkgInfo)
-                                == TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS) {
-                        privilegedPackages.add(pkgInfo.packageName);
-                    }
-                }
-            }
-        }
-        return privilegedPackages;
+        return mCarrierPrivilegedPackageIndex.getPrivilegedPackages();
     }
 
     private String getIccId(int subId) {
@@ -2981,28 +3015,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             return false;
         }
 
-        final SharedPreferences.Editor editor = mTelephonySharedPreferences.edit();
-
-        final String alphaTagPrefKey = PREF_CARRIERS_ALPHATAG_PREFIX + iccId;
-        if (alphaTag == null) {
-            editor.remove(alphaTagPrefKey);
-        } else {
-            editor.putString(alphaTagPrefKey, alphaTag);
-        }
-
-        // Record both the line number and IMSI for this ICCID, since we need to
-        // track all merged IMSIs based on line number
-        final String numberPrefKey = PREF_CARRIERS_NUMBER_PREFIX + iccId;
-        final String subscriberPrefKey = PREF_CARRIERS_SUBSCRIBER_PREFIX + iccId;
-        if (number == null) {
-            editor.remove(numberPrefKey);
-            editor.remove(subscriberPrefKey);
-        } else {
-            editor.putString(numberPrefKey, number);
-            editor.putString(subscriberPrefKey, subscriberId);
-        }
-
-        editor.commit();
+        mLineNumberMergeIndex.update(iccId, alphaTag, number, subscriberId);
         return true;
     }
 
@@ -3016,12 +3029,11 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
         String iccId = getIccId(subId);
         if (iccId != null) {
-            String numberPrefKey = PREF_CARRIERS_NUMBER_PREFIX + iccId;
+            String number = mLineNumberMergeIndex.getNumber(iccId);
             if (DBG_MERGE) {
-                log("getLine1NumberForDisplay returning " +
-                        mTelephonySharedPreferences.getString(numberPrefKey, null));
+                log("getLine1NumberForDisplay returning " + number);
             }
-            return mTelephonySharedPreferences.getString(numberPrefKey, null);
+            return number;
         }
         if (DBG_MERGE) log("getLine1NumberForDisplay returning null as iccId is null");
         return null;
@@ -3035,8 +3047,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
         String iccId = getIccId(subId);
         if (iccId != null) {
-            String alphaTagPrefKey = PREF_CARRIERS_ALPHATAG_PREFIX + iccId;
-            return mTelephonySharedPreferences.getString(alphaTagPrefKey, null);
+            return mLineNumberMergeIndex.getAlphaTag(iccId);
         }
         return null;
     }
@@ -3064,48 +3075,14 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             Binder.restoreCallingIdentity(identity);
         }
 
-        // First pass, find a number override for an active subscriber
-        String mergeNumber = null;
-        final Map<String, ?> prefs = mTelephonySharedPreferences.getAll();
-        for (String key : prefs.keySet()) {
-            if (key.startsWith(PREF_CARRIERS_SUBSCRIBER_PREFIX)) {
-                final String subscriberId = (String) prefs.get(key);
-                if (activeSubscriberIds.contains(subscriberId)) {
-                    final String iccId = key.substring(PREF_CARRIERS_SUBSCRIBER_PREFIX.length());
-                    final String numberKey = PREF_CARRIERS_NUMBER_PREFIX + iccId;
-                    mergeNumber = (String) prefs.get(numberKey);
-                    if (DBG_MERGE) {
-                        Slog.d(LOG_TAG, "Found line number " + mergeNumber
-                                + " for active subscriber " + subscriberId);
-                    }
-                    if (!TextUtils.isEmpty(mergeNumber)) {
-                        break;
-                    }
-                }
-            }
-        }
+        final Set<String> result = mLineNumberMergeIndex.getMergedSubscriberIds(
+                activeSubscriberIds);
 
         // Shortcut when no active merged subscribers
-        if (TextUtils.isEmpty(mergeNumber)) {
+        if (result == null) {
             return null;
         }
 
-        // Second pass, find all subscribers under that line override
-        final ArraySet<String> result = new ArraySet<>();
-        for (String key : prefs.keySet()) {
-            if (key.startsWith(PREF_CARRIERS_NUMBER_PREFIX)) {
-                final String number = (String) prefs.get(key);
-                if (mergeNumber.equals(number)) {
-                    final String iccId = key.substring(PREF_CARRIERS_NUMBER_PREFIX.length());
-                    final String subscriberKey = PREF_CARRIERS_SUBSCRIBER_PREFIX + iccId;
-                    final String subscriberId = (String) prefs.get(subscriberKey);
-                    if (!TextUtils.isEmpty(subscriberId)) {
-                        result.add(subscriberId);
-                    }
-                }
-            }
-        }
-
         final String[] resultArray = result.toArray(new String[result.size()]);
         Arrays.sort(resultArray);
         if (DBG_MERGE) {
@@ -3719,6 +3696,13 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
         int subId = SubscriptionManager.getSubId(slotIndex)[0];
         int[] retVal = (int[]) sendRequest(CMD_SET_ALLOWED_CARRIERS, carriers, subId);
+        String key = ModemResultCache.key(ModemResultCache.TYPE_ALLOWED_CARRIERS, 0);
+        if (retVal[0] == carriers.size()) {
+            mModemResultCache.put(subId, ModemResultCache.TYPE_ALLOWED_CARRIERS, key,
+                    new ArrayList<>(carriers));
+        } else {
+            mModemResultCache.invalidate(subId, key);
+        }
         return retVal[0];
     }
 
@@ -3734,7 +3718,21 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     public List<CarrierIdentifier> getAllowedCarriers(int slotIndex) {
         enforceReadPrivilegedPermission();
         int subId = SubscriptionManager.getSubId(slotIndex)[0];
-        return (List<CarrierIdentifier>) sendRequest(CMD_GET_ALLOWED_CARRIERS, null, subId);
+        String key = ModemResultCache.key(ModemResultCache.TYPE_ALLOWED_CARRIERS, 0);
+        List<CarrierIdentifier> cached = (List<CarrierIdentifier>) mModemResultCache.get(subId,
+                ModemResultCache.TYPE_ALLOWED_CARRIERS, key);
+        if (cached != null) {
+            return new ArrayList<>(cached);
+        }
+        long generation = mModemResultCache.getGeneration();
+        List<CarrierIdentifier> carriers =
+                (List<CarrierIdentifier>) sendRequest(CMD_GET_ALLOWED_CARRIERS, null, subId);
+        // An empty list is also returned on error, so it is not cached.
+        if (!carriers.isEmpty()) {
+            mModemResultCache.putIfUnchanged(subId, ModemResultCache.TYPE_ALLOWED_CARRIERS, key,
+                    new ArrayList<>(carriers), generation);
+        }
+        return carriers;
     }
 
     /**
@@ -3821,6 +3819,21 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         DumpsysHandler.dump(mPhone.getContext(), fd, writer, args);
     }
 
+    /**
+     * Dump the hit rates of the modem result cache.
+     */
+    void dumpModemResultCache(IndentingPrintWriter pw) {
+        mModemResultCache.dump(pw);
+        mLocationAccessCache.dump(pw);
+    }
+
+    /**
+     * Dump the hit rates and read times of the cell info aggregator.
+     */
+    void dumpCellInfoAggregator(IndentingPrintWriter pw) {
+        mCellInfoAggregator.dump(pw);
+    }
+
     /**
      * Get aggregated video call data usage since boot.
      *
@@ -3877,16 +3890,6 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         return null;
     }
 
-    private WorkSource getWorkSource(WorkSource workSource, int uid) {
-        if (workSource != null) {
-            return workSource;
-        }
-
-        String packageName = mPhone.getContext().getPackageManager().getNameForUid(uid);
-        workSource = new WorkSource(uid, packageName);
-        return workSource;
-    }
-
     /**
      * Set SIM card power state.
      *
@@ -64,6 +64,7 @@ import com.android.internal.telephony.TelephonyCapabilities;
 import com.android.internal.telephony.TelephonyProperties;
 import com.android.internal.telephony.sip.SipPhone;
 import com.android.phone.CallGatewayManager.RawGatewayInfo;
+import com.android.services.telephony.EmergencyNumberClassifier;
 
 import java.util.Arrays;
 import java.util.List;
@@ -1857,8 +1858,8 @@ public class PhoneUtils {
         // isIdle includes checks for the DISCONNECTING/DISCONNECTED state.
         if(!fgCall.isIdle()) {
             for (Connection cn : fgCall.getConnections()) {
-                if (PhoneNumberUtils.isLocalEmergencyNumber(PhoneGlobals.getInstance(),
-                        cn.getAddress())) {
+                if (EmergencyNumberClassifier.getInstance(PhoneGlobals.getInstance())
+                        .isLocalEmergencyNumber(cn.getAddress())) {
                     return true;
                 }
             }
@@ -23,6 +23,7 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.internal.telephony.Phone;
+import com.android.phone.BackgroundExecutor;
 import com.android.phone.PhoneUtils;
 import com.android.phone.R;
 import com.android.phone.SubscriptionInfoHelper;
@@ -202,11 +203,11 @@ public class PhoneAccountSettingsFragment extends PreferenceFragment
             return true;
         } else if (pref == mSipReceiveCallsPreference) {
             final boolean isEnabled = !mSipReceiveCallsPreference.isChecked();
-            new Thread(new Runnable() {
+            BackgroundExecutor.submit(BackgroundExecutor.LANE_SIP, new Runnable() {
                 public void run() {
                     handleSipReceiveCallsOption(isEnabled);
                 }
-            }).start();
+            });
             return true;
         }
         return false;
@@ -29,7 +29,11 @@ import android.telephony.VisualVoicemailService;
 import android.text.TextUtils;
 import android.util.ArraySet;
 
+import com.android.internal.util.ArrayUtils;
+import com.android.phone.CarrierConfigLoader;
+
 import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -56,14 +60,37 @@ public class CarrierVvmPackageInstalledReceiver extends BroadcastReceiver {
     private static final String ACTION_CARRIER_VVM_PACKAGE_INSTALLED =
             "com.android.internal.telephony.CARRIER_VVM_PACKAGE_INSTALLED";
 
+    /**
+     * The carrier VVM packages of the call capable accounts in {@link #mCoveredAccounts}, or
+     * {@code null} if they need to be recomputed. Lets installs of unrelated packages be ignored
+     * without reading the carrier config of every account.
+     */
+    private Set<String> mCarrierVvmPackages;
+    private Set<PhoneAccountHandle> mCoveredAccounts;
+
     public void register(Context context) {
         IntentFilter intentFilter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
         intentFilter.addDataScheme("package");
         context.registerReceiver(this, intentFilter);
+        context.registerReceiver(this,
+                new IntentFilter(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED));
     }
 
     @Override
     public void onReceive(Context context, Intent intent) {
+        if (CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED.equals(intent.getAction())) {
+            // Also sent when subscriptions change, so the accounts may have changed too. The
+            // changed keys are only attached when the subscription is the same.
+            String[] changedKeys = intent.getStringArrayExtra(
+                    CarrierConfigLoader.EXTRA_CHANGED_KEYS);
+            if (changedKeys == null || ArrayUtils.contains(changedKeys,
+                    CarrierConfigManager.KEY_CARRIER_VVM_PACKAGE_NAME_STRING)
+                    || ArrayUtils.contains(changedKeys,
+                    CarrierConfigManager.KEY_CARRIER_VVM_PACKAGE_NAME_STRING_ARRAY)) {
+                mCarrierVvmPackages = null;
+            }
+            return;
+        }
         if (intent.getData() == null) {
             return;
         }
@@ -71,11 +98,32 @@ public class CarrierVvmPackageInstalledReceiver extends BroadcastReceiver {
         if (packageName == null) {
             return;
         }
-
         TelecomManager telecomManager = context.getSystemService(TelecomManager.class);
+        List<PhoneAccountHandle> accounts = null;
+        if (mCarrierVvmPackages != null && !mCarrierVvmPackages.contains(packageName)) {
+            // Accounts are registered in response to the same config change that clears the set,
+            // so it may have been built before them. Only an account it does not cover yet can
+            // add the package.
+            accounts = telecomManager.getCallCapablePhoneAccounts();
+            if (mCoveredAccounts.containsAll(accounts)) {
+                return;
+            }
+            mCarrierVvmPackages = null;
+        }
+        if (accounts == null) {
+            accounts = telecomManager.getCallCapablePhoneAccounts();
+        }
+        if (mCarrierVvmPackages == null) {
+            mCarrierVvmPackages = getAllCarrierVvmPackages(context, accounts);
+            mCoveredAccounts = new ArraySet<>(accounts);
+        }
+        if (!mCarrierVvmPackages.contains(packageName)) {
+            return;
+        }
+
         String systemDialer = telecomManager.getSystemDialerPackage();
         TelephonyManager telephonyManager = context.getSystemService(TelephonyManager.class);
-        for (PhoneAccountHandle phoneAccountHandle : telecomManager.getCallCapablePhoneAccounts()) {
+        for (PhoneAccountHandle phoneAccountHandle : accounts) {
             TelephonyManager pinnedTelephonyManager = telephonyManager
                     .createForPhoneAccountHandle(phoneAccountHandle);
 
@@ -84,7 +132,7 @@ public class CarrierVvmPackageInstalledReceiver extends BroadcastReceiver {
                 continue;
             }
 
-            if (!getCarrierVvmPackages(telephonyManager).contains(packageName)) {
+            if (!getCarrierVvmPackages(pinnedTelephonyManager).contains(packageName)) {
                 continue;
             }
 
@@ -105,6 +153,20 @@ public class CarrierVvmPackageInstalledReceiver extends BroadcastReceiver {
         }
     }
 
+    private static Set<String> getAllCarrierVvmPackages(Context context,
+            List<PhoneAccountHandle> accounts) {
+        Set<String> carrierPackages = new ArraySet<>();
+        TelephonyManager telephonyManager = context.getSystemService(TelephonyManager.class);
+        for (PhoneAccountHandle phoneAccountHandle : accounts) {
+            TelephonyManager pinnedTelephonyManager = telephonyManager
+                    .createForPhoneAccountHandle(phoneAccountHandle);
+            if (pinnedTelephonyManager != null) {
+                carrierPackages.addAll(getCarrierVvmPackages(pinnedTelephonyManager));
+            }
+        }
+        return carrierPackages;
+    }
+
     private static Set<String> getCarrierVvmPackages(TelephonyManager pinnedTelephonyManager) {
         Set<String> carrierPackages = new ArraySet<>();
 
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone.vvm;
+
+import android.annotation.Nullable;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.telecom.TelecomManager;
+import android.telephony.CarrierConfigManager;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import com.android.phone.CacheGeneration;
+
+import java.util.function.Supplier;
+
+/**
+ * Caches the visual voicemail client resolved by {@link RemoteVvmTaskManager} for each subId, the
+ * {@link android.telephony.VisualVoicemailService} resolved for each candidate package (including
+ * packages that have none), and the default dialer's broadcast receiver.
+ *
+ * <p>Everything is dropped when a package changes, the default dialer changes or a carrier config
+ * changes, since any of these can change which client should handle VVM events.
+ */
+class RemoteVvmClientCache {
+
+    private static final String TAG = "RemoteVvmClientCache";
+
+    /** Stands for "resolved, and there is none". */
+    private static final ComponentName NONE = new ComponentName("", "");
+
+    private static RemoteVvmClientCache sInstance;
+
+    private final Object mLock = new Object();
+    private final SparseArray<ComponentName> mClients = new SparseArray<>();
+    private final ArrayMap<String, ComponentName> mServices = new ArrayMap<>();
+    private ComponentName mBroadcastPackage;
+    private final CacheGeneration mGeneration = new CacheGeneration();
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            VvmLog.i(TAG, "invalidating on " + intent.getAction());
+            invalidate();
+        }
+    };
+
+    private RemoteVvmClientCache(Context context) {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(TelecomManager.ACTION_DEFAULT_DIALER_CHANGED);
+        filter.addAction(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
+        context.registerReceiver(mReceiver, filter);
+
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addDataScheme("package");
+        context.registerReceiver(mReceiver, packageFilter);
+    }
+
+    static RemoteVvmClientCache getInstance(Context context) {
+        synchronized (RemoteVvmClientCache.class) {
+            if (sInstance == null) {
+                sInstance = new RemoteVvmClientCache(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * Returns the client of {@code subId}, resolving it with {@code resolver} on a miss.
+     */
+    @Nullable
+    ComponentName getClient(int subId, Supplier<ComponentName> resolver) {
+        long generation;
+        synchronized (mLock) {
+            ComponentName cached = mClients.get(subId);
+            if (cached != null) {
+                return fromCached(cached);
+            }
+            generation = mGeneration.current();
+        }
+        ComponentName resolved = resolver.get();
+        synchronized (mLock) {
+            if (mGeneration.isCurrent(generation)) {
+                mClients.put(subId, toCached(resolved));
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * Returns the VisualVoicemailService of {@code packageName}, resolving it with
+     * {@code resolver} on a miss.
+     */
+    @Nullable
+    ComponentName getService(String packageName, Supplier<ComponentName> resolver) {
+        long generation;
+        synchronized (mLock) {
+            ComponentName cached = mServices.get(packageName);
+            if (cached != null) {
+                return fromCached(cached);
+            }
+            generation = mGeneration.current();
+        }
+        ComponentName resolved = resolver.get();
+        synchronized (mLock) {
+            if (mGeneration.isCurrent(generation)) {
+                mServices.put(packageName, toCached(resolved));
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * Returns the VVM event receiver of the default dialer, resolving it with {@code resolver} on
+     * a miss.
+     */
+    @Nullable
+    ComponentName getBroadcastPackage(Supplier<ComponentName> resolver) {
+        long generation;
+        synchronized (mLock) {
+            if (mBroadcastPackage != null) {
+                return fromCached(mBroadcastPackage);
+            }
+            generation = mGeneration.current();
+        }
+        ComponentName resolved = resolver.get();
+        synchronized (mLock) {
+            if (mGeneration.isCurrent(generation)) {
+                mBroadcastPackage = toCached(resolved);
+            }
+        }
+        return resolved;
+    }
+
+    void invalidate() {
+        synchronized (mLock) {
+            mGeneration.invalidate();
+            mClients.clear();
+            mServices.clear();
+            mBroadcastPackage = null;
+        }
+    }
+
+    private static ComponentName toCached(ComponentName componentName) {
+        return componentName == null ? NONE : componentName;
+    }
+
+    private static ComponentName fromCached(ComponentName componentName) {
+        return componentName == NONE ? null : componentName;
+    }
+}
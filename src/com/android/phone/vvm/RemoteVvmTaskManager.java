@@ -107,15 +107,23 @@ public class RemoteVvmTaskManager extends Service {
         return getRemotePackage(context, subId) != null;
     }
 
+    /**
+     * Returns the client that should handle visual voicemail events of {@code subId}. The result
+     * is cached until a package, the default dialer or a carrier config changes.
+     */
     @Nullable
     public static ComponentName getRemotePackage(Context context, int subId) {
+        return RemoteVvmClientCache.getInstance(context).getClient(subId,
+                () -> resolveRemotePackage(context, subId));
+    }
+
+    @Nullable
+    private static ComponentName resolveRemotePackage(Context context, int subId) {
         ComponentName broadcastPackage = getBroadcastPackage(context);
         if (broadcastPackage != null) {
             return broadcastPackage;
         }
 
-        Intent bindIntent = newBindIntent(context);
-
         TelecomManager telecomManager = context.getSystemService(TelecomManager.class);
         List<String> packages = new ArrayList<>();
         packages.add(telecomManager.getDefaultDialerPackage());
@@ -132,36 +140,55 @@ public class RemoteVvmTaskManager extends Service {
         }
         packages.add(context.getResources().getString(R.string.system_visual_voicemail_client));
         packages.add(telecomManager.getSystemDialerPackage());
+        RemoteVvmClientCache cache = RemoteVvmClientCache.getInstance(context);
         for (String packageName : packages) {
             if (TextUtils.isEmpty(packageName)) {
                 continue;
             }
-            bindIntent.setPackage(packageName);
-            ResolveInfo info = context.getPackageManager()
-                    .resolveService(bindIntent, PackageManager.MATCH_ALL);
-            if (info == null) {
-                continue;
+            ComponentName service = cache.getService(packageName,
+                    () -> resolveService(context, packageName));
+            if (service != null) {
+                return service;
             }
-            if (info.serviceInfo == null) {
-                VvmLog.w(TAG,
-                        "Component " + info.getComponentInfo() + " is not a service, ignoring");
-                continue;
-            }
-            if (!android.Manifest.permission.BIND_VISUAL_VOICEMAIL_SERVICE
-                    .equals(info.serviceInfo.permission)) {
-                VvmLog.w(TAG, "package " + info.serviceInfo.packageName
-                        + " does not enforce BIND_VISUAL_VOICEMAIL_SERVICE, ignoring");
-                continue;
-            }
-
-            return info.getComponentInfo().getComponentName();
-
         }
         return null;
     }
 
+    /**
+     * Returns the VisualVoicemailService of {@code packageName}, or {@code null} if it has none
+     * that qualifies.
+     */
+    @Nullable
+    private static ComponentName resolveService(Context context, String packageName) {
+        Intent bindIntent = newBindIntent(context);
+        bindIntent.setPackage(packageName);
+        ResolveInfo info = context.getPackageManager()
+                .resolveService(bindIntent, PackageManager.MATCH_ALL);
+        if (info == null) {
+            return null;
+        }
+        if (info.serviceInfo == null) {
+            VvmLog.w(TAG,
+                    "Component " + info.getComponentInfo() + " is not a service, ignoring");
+            return null;
+        }
+        if (!android.Manifest.permission.BIND_VISUAL_VOICEMAIL_SERVICE
+                .equals(info.serviceInfo.permission)) {
+            VvmLog.w(TAG, "package " + info.serviceInfo.packageName
+                    + " does not enforce BIND_VISUAL_VOICEMAIL_SERVICE, ignoring");
+            return null;
+        }
+        return info.getComponentInfo().getComponentName();
+    }
+
     @Nullable
     private static ComponentName getBroadcastPackage(Context context) {
+        return RemoteVvmClientCache.getInstance(context).getBroadcastPackage(
+                () -> resolveBroadcastPackage(context));
+    }
+
+    @Nullable
+    private static ComponentName resolveBroadcastPackage(Context context) {
         Intent broadcastIntent = new Intent(ACTION_VISUAL_VOICEMAIL_SERVICE_EVENT);
         broadcastIntent.setPackage(
                 context.getSystemService(TelecomManager.class).getDefaultDialerPackage());
@@ -22,9 +22,14 @@ import android.os.Handler;
 import android.telecom.Connection;
 import android.telecom.DisconnectCause;
 import android.telecom.PhoneAccountHandle;
+import android.util.ArrayMap;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Manages CDMA conference calls. CDMA conference calls are much more limited than GSM conference
@@ -45,18 +50,20 @@ import java.util.List;
  *
  * Outgoing CDMA calls made while another call exists would normally trigger a conference to be
  * created. To avoid this and make it seem like there is a "dialing" state, we fake it and prevent
- * the conference from being created for 3 seconds. This is a more pleasant experience for the user.
+ * the conference from being created until the network signals progress on the new call (its
+ * state moves past dialing, or ringback stops), or at most
+ * {@link #ADD_OUTGOING_CONNECTION_DELAY_MILLIS}. This is a more pleasant experience for the user.
  */
 final class CdmaConferenceController {
     private final Connection.Listener mConnectionListener = new Connection.Listener() {
                 @Override
                 public void onStateChanged(Connection c, int state) {
-                    recalculateConference();
+                    scheduleRecalculateConference();
                 }
 
                 @Override
                 public void onDisconnected(Connection c, DisconnectCause disconnectCause) {
-                    recalculateConference();
+                    scheduleRecalculateConference();
                 }
 
                 @Override
@@ -65,23 +72,89 @@ final class CdmaConferenceController {
                 }
             };
 
+    /**
+     * Listens to pending outgoing connections for signs that the network has progressed the call,
+     * at which point there is no need to keep faking the dialing state.
+     */
+    private final Connection.Listener mPendingConnectionListener = new Connection.Listener() {
+                @Override
+                public void onStateChanged(Connection c, int state) {
+                    if (state == Connection.STATE_DISCONNECTED) {
+                        cancelPending((CdmaConnection) c);
+                    } else if (state != Connection.STATE_DIALING) {
+                        // The state of the original connection changed, which lifts the override.
+                        promotePending((CdmaConnection) c);
+                    }
+                }
+
+                @Override
+                public void onRingbackRequested(Connection c, boolean ringback) {
+                    PendingConnection pending = mPendingOutgoingConnections.get(c);
+                    if (pending == null) {
+                        return;
+                    }
+                    if (ringback) {
+                        pending.mHadRingback = true;
+                    } else if (pending.mHadRingback) {
+                        // Ringback stopping means the far end answered.
+                        promotePending((CdmaConnection) c);
+                    }
+                }
+
+                @Override
+                public void onDestroyed(Connection c) {
+                    cancelPending((CdmaConnection) c);
+                }
+            };
+
     private static final int ADD_OUTGOING_CONNECTION_DELAY_MILLIS = 6000;
 
-    /** The known CDMA connections. */
-    private final List<CdmaConnection> mCdmaConnections = new ArrayList<>();
+    /** The known CDMA connections, in the order they were added. */
+    private final Set<CdmaConnection> mCdmaConnections =
+            Collections.newSetFromMap(new LinkedHashMap<>());
+    private CdmaConnection mLastAddedConnection;
+
+    /**
+     * An outgoing connection added while another connection existed, which we show as "Dialing"
+     * until it is promoted into the conference.
+     */
+    private final class PendingConnection implements Runnable {
+        private final CdmaConnection mConnection;
+        // The other connections, marked as held while the pending connection is dialing.
+        private final List<CdmaConnection> mConnectionsToReset;
+        private boolean mHadRingback;
+
+        PendingConnection(CdmaConnection connection, List<CdmaConnection> connectionsToReset) {
+            mConnection = connection;
+            mConnectionsToReset = connectionsToReset;
+        }
+
+        /** Fallback for when the network gives no signal in time. */
+        @Override
+        public void run() {
+            Log.d(CdmaConferenceController.this, "No progress on pending connection; promoting");
+            promotePending(mConnection);
+        }
+    }
 
     /**
-     * Newly added connections.  We keep track of newly added outgoing connections because we do not
-     * create a conference until a second outgoing call has existing for
-     * {@link #ADD_OUTGOING_CONNECTION_DELAY_MILLIS} milliseconds.  This allows the UI to show the
-     * call as "Dialing" for a certain amount of seconds.
+     * Newly added outgoing connections.  We do not create a conference until a second outgoing
+     * call has progressed or has existed for {@link #ADD_OUTGOING_CONNECTION_DELAY_MILLIS}
+     * milliseconds.  This allows the UI to show the call as "Dialing" in the meantime.
      */
-    private final List<CdmaConnection> mPendingOutgoingConnections = new ArrayList<>();
+    private final Map<CdmaConnection, PendingConnection> mPendingOutgoingConnections =
+            new ArrayMap<>();
 
     private final TelephonyConnectionService mConnectionService;
 
     private final Handler mHandler = new Handler();
 
+    private boolean mRecalculatePending;
+    private final Runnable mRecalculateRunnable = () -> {
+        mRecalculatePending = false;
+        recalculateConference();
+    };
+
     public CdmaConferenceController(TelephonyConnectionService connectionService) {
         mConnectionService = connectionService;
     }
@@ -90,7 +163,8 @@ final class CdmaConferenceController {
     private CdmaConference mConference;
 
     void add(final CdmaConnection connection) {
-        if (mCdmaConnections.contains(connection)) {
+        if (mCdmaConnections.contains(connection)
+                || mPendingOutgoingConnections.containsKey(connection)) {
             // Adding a duplicate realistically shouldn't happen.
             Log.w(this, "add - connection already tracked; connection=%s", connection);
             return;
@@ -103,6 +177,7 @@ final class CdmaConferenceController {
             // see their new call as "Dialing" before it turns into a conference call.
             // During that time, we also mark the other calls as "held" or else it can cause issues
             // due to having an ACTIVE and a DIALING call simultaneously.
+            // The dialing state is released early if the network shows progress on the call.
             connection.forceAsDialing(true);
             final List<CdmaConnection> connectionsToReset =
                     new ArrayList<>(mCdmaConnections.size());
@@ -111,16 +186,10 @@ final class CdmaConferenceController {
                     connectionsToReset.add(current);
                 }
             }
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    connection.forceAsDialing(false);
-                    addInternal(connection);
-                    for (CdmaConnection current : connectionsToReset) {
-                        current.resetStateForConference();
-                    }
-                }
-            }, ADD_OUTGOING_CONNECTION_DELAY_MILLIS);
+            PendingConnection pending = new PendingConnection(connection, connectionsToReset);
+            mPendingOutgoingConnections.put(connection, pending);
+            connection.addConnectionListener(mPendingConnectionListener);
+            mHandler.postDelayed(pending, ADD_OUTGOING_CONNECTION_DELAY_MILLIS);
         } else {
             // Post the call to addInternal to the handler with no delay.
             // Why you ask?  In TelephonyConnectionService#
@@ -139,10 +208,49 @@ final class CdmaConferenceController {
 
     private void addInternal(CdmaConnection connection) {
         mCdmaConnections.add(connection);
+        mLastAddedConnection = connection;
         connection.addConnectionListener(mConnectionListener);
         recalculateConference();
     }
 
+    /**
+     * Ends the faked dialing state of a pending outgoing connection and adds it.
+     */
+    private void promotePending(CdmaConnection connection) {
+        PendingConnection pending = removePending(connection);
+        if (pending == null) {
+            return;
+        }
+        Log.d(this, "promoting pending connection %s", connection);
+        connection.forceAsDialing(false);
+        addInternal(connection);
+        for (CdmaConnection current : pending.mConnectionsToReset) {
+            current.resetStateForConference();
+        }
+    }
+
+    /**
+     * Drops a pending outgoing connection that went away before it was promoted.
+     */
+    private void cancelPending(CdmaConnection connection) {
+        PendingConnection pending = removePending(connection);
+        if (pending == null) {
+            return;
+        }
+        for (CdmaConnection current : pending.mConnectionsToReset) {
+            current.resetStateForConference();
+        }
+    }
+
+    private PendingConnection removePending(CdmaConnection connection) {
+        PendingConnection pending = mPendingOutgoingConnections.remove(connection);
+        if (pending != null) {
+            mHandler.removeCallbacks(pending);
+            connection.removeConnectionListener(mPendingConnectionListener);
+        }
+        return pending;
+    }
+
     void remove(CdmaConnection connection) {
         if (!mCdmaConnections.contains(connection)) {
             // Debug only since TelephonyConnectionService tries to clean up the connections tracked
@@ -153,10 +261,31 @@ final class CdmaConferenceController {
 
         connection.removeConnectionListener(mConnectionListener);
         mCdmaConnections.remove(connection);
+        if (mLastAddedConnection == connection) {
+            mLastAddedConnection = null;
+            for (CdmaConnection current : mCdmaConnections) {
+                mLastAddedConnection = current;
+            }
+        }
         recalculateConference();
     }
 
+    /**
+     * Recalculates the conference once the current batch of connection events is handled, rather
+     * than once per event.
+     */
+    private void scheduleRecalculateConference() {
+        if (!mRecalculatePending) {
+            mRecalculatePending = true;
+            mHandler.post(mRecalculateRunnable);
+        }
+    }
+
     private void recalculateConference() {
+        if (mRecalculatePending) {
+            mRecalculatePending = false;
+            mHandler.removeCallbacks(mRecalculateRunnable);
+        }
         List<CdmaConnection> conferenceConnections = new ArrayList<>(mCdmaConnections.size());
         for (CdmaConnection connection : mCdmaConnections) {
             // We do not include call-waiting calls in conferences.
@@ -170,7 +299,7 @@ final class CdmaConferenceController {
         if (conferenceConnections.size() >= 2) {
             boolean isNewlyCreated = false;
 
-            CdmaConnection newConnection = mCdmaConnections.get(mCdmaConnections.size() - 1);
+            CdmaConnection newConnection = mLastAddedConnection;
 
             // There are two or more CDMA connections. Do the following:
             // 1) Create a new conference connection if it doesn't exist.
@@ -16,12 +16,15 @@
 
 package com.android.services.telephony;
 
+import android.content.ContentResolver;
+import android.database.ContentObserver;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 
 import android.provider.Settings;
 import android.telephony.DisconnectCause;
-import android.telephony.PhoneNumberUtils;
 
 import com.android.internal.telephony.Call;
 import com.android.internal.telephony.CallStateException;
@@ -30,9 +33,6 @@ import com.android.internal.telephony.imsphone.ImsPhoneConnection;
 import com.android.internal.telephony.Phone;
 import com.android.phone.settings.SettingsConstants;
 
-import java.util.LinkedList;
-import java.util.Queue;
-
 /**
  * Manages a single phone call handled by CDMA.
  */
@@ -41,6 +41,15 @@ final class CdmaConnection extends TelephonyConnection {
     private static final int MSG_CALL_WAITING_MISSED = 1;
     private static final int MSG_DTMF_SEND_CONFIRMATION = 2;
     private static final int TIMEOUT_CALL_WAITING_MILLIS = 20 * 1000;
+    // Initial capacity of the DTMF queue; it grows if needed.
+    private static final int DTMF_QUEUE_CAPACITY = 32;
+
+    /**
+     * Cached value of {@link Settings.System#DTMF_TONE_TYPE_WHEN_DIALING}, kept up to date by
+     * {@link #sDtmfToneTypeObserver} so that key presses do not query the settings provider.
+     */
+    private static volatile int sDtmfToneType;
+    private static ContentObserver sDtmfToneTypeObserver;
 
     private final Handler mHandler = new Handler() {
 
@@ -65,12 +74,19 @@ final class CdmaConnection extends TelephonyConnection {
      * {@code True} if the CDMA connection should allow mute.
      */
     private boolean mAllowMute;
-    // Queue of pending short-DTMF characters.
-    private final Queue<Character> mDtmfQueue = new LinkedList<>();
+    // Ring buffer of pending short-DTMF characters, and when each was pressed.
+    private char[] mDtmfQueue = new char[DTMF_QUEUE_CAPACITY];
+    private long[] mDtmfQueueTimes = new long[DTMF_QUEUE_CAPACITY];
+    private int mDtmfQueueHead;
+    private int mDtmfQueueSize;
+    private final Object mDtmfLock = new Object();
     private final EmergencyTonePlayer mEmergencyTonePlayer;
 
     // Indicates that the DTMF confirmation from telephony is pending.
     private boolean mDtmfBurstConfirmationPending = false;
+    // Number of digits in the burst awaiting confirmation, and when the first was pressed.
+    private int mDtmfBurstLength;
+    private long mDtmfBurstFirstPressTime;
     private boolean mIsCallWaiting;
 
     CdmaConnection(
@@ -236,56 +252,99 @@ final class CdmaConnection extends TelephonyConnection {
             Log.d(this,"in ims call, return false");
             return false;
         }
-        int dtmfTypeSetting = Settings.System.getInt(
-                getPhone().getContext().getContentResolver(),
-                Settings.System.DTMF_TONE_TYPE_WHEN_DIALING,
+        return getDtmfToneType() == SettingsConstants.DTMF_TONE_TYPE_NORMAL;
+    }
+
+    private int getDtmfToneType() {
+        synchronized (CdmaConnection.class) {
+            if (sDtmfToneTypeObserver == null) {
+                ContentResolver resolver = getPhone().getContext().getContentResolver();
+                sDtmfToneTypeObserver = new ContentObserver(new Handler(Looper.getMainLooper())) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        sDtmfToneType = readDtmfToneType(resolver);
+                    }
+                };
+                resolver.registerContentObserver(
+                        Settings.System.getUriFor(Settings.System.DTMF_TONE_TYPE_WHEN_DIALING),
+                        false, sDtmfToneTypeObserver);
+                sDtmfToneType = readDtmfToneType(resolver);
+            }
+        }
+        return sDtmfToneType;
+    }
+
+    private static int readDtmfToneType(ContentResolver resolver) {
+        return Settings.System.getInt(resolver, Settings.System.DTMF_TONE_TYPE_WHEN_DIALING,
                 SettingsConstants.DTMF_TONE_TYPE_NORMAL);
-        return dtmfTypeSetting == SettingsConstants.DTMF_TONE_TYPE_NORMAL;
     }
 
     private void sendShortDtmfToNetwork(char digit) {
-        synchronized(mDtmfQueue) {
-            if (mDtmfBurstConfirmationPending) {
-                mDtmfQueue.add(new Character(digit));
-            } else {
-                sendBurstDtmfStringLocked(Character.toString(digit));
+        synchronized (mDtmfLock) {
+            enqueueDtmfLocked(digit, SystemClock.elapsedRealtime());
+            if (!mDtmfBurstConfirmationPending) {
+                sendQueuedBurstDtmfLocked();
             }
         }
     }
 
-    private void sendBurstDtmfStringLocked(String dtmfString) {
-        getPhone().sendBurstDtmf(
-                dtmfString, 0, 0, mHandler.obtainMessage(MSG_DTMF_SEND_CONFIRMATION));
+    private void enqueueDtmfLocked(char digit, long pressTime) {
+        if (mDtmfQueueSize == mDtmfQueue.length) {
+            char[] queue = new char[mDtmfQueue.length * 2];
+            long[] times = new long[mDtmfQueue.length * 2];
+            for (int i = 0; i < mDtmfQueueSize; i++) {
+                int index = (mDtmfQueueHead + i) % mDtmfQueue.length;
+                queue[i] = mDtmfQueue[index];
+                times[i] = mDtmfQueueTimes[index];
+            }
+            mDtmfQueue = queue;
+            mDtmfQueueTimes = times;
+            mDtmfQueueHead = 0;
+        }
+        int tail = (mDtmfQueueHead + mDtmfQueueSize) % mDtmfQueue.length;
+        mDtmfQueue[tail] = digit;
+        mDtmfQueueTimes[tail] = pressTime;
+        mDtmfQueueSize++;
+    }
+
+    /**
+     * Sends all queued digits in one burst, so that digits pressed while a burst was awaiting
+     * confirmation cost a single further round trip.
+     */
+    private void sendQueuedBurstDtmfLocked() {
+        int length = mDtmfQueueSize;
+        if (length == 0) {
+            return;
+        }
+        char[] digits = new char[length];
+        mDtmfBurstFirstPressTime = mDtmfQueueTimes[mDtmfQueueHead];
+        for (int i = 0; i < length; i++) {
+            digits[i] = mDtmfQueue[mDtmfQueueHead];
+            mDtmfQueueHead = (mDtmfQueueHead + 1) % mDtmfQueue.length;
+        }
+        mDtmfQueueSize -= length;
+        mDtmfBurstLength = length;
+        getPhone().sendBurstDtmf(new String(digits), 0, 0,
+                mHandler.obtainMessage(MSG_DTMF_SEND_CONFIRMATION));
         mDtmfBurstConfirmationPending = true;
     }
 
     private void handleBurstDtmfConfirmation() {
-        String dtmfDigits = null;
-        synchronized(mDtmfQueue) {
+        synchronized (mDtmfLock) {
             mDtmfBurstConfirmationPending = false;
-            if (!mDtmfQueue.isEmpty()) {
-                StringBuilder builder = new StringBuilder(mDtmfQueue.size());
-                while (!mDtmfQueue.isEmpty()) {
-                    builder.append(mDtmfQueue.poll());
-                }
-                dtmfDigits = builder.toString();
-
-                // It would be nice to log the digit, but since DTMF digits can be passwords
-                // to things, or other secure account numbers, we want to keep it away from
-                // the logs.
-                Log.i(this, "%d dtmf character[s] removed from the queue", dtmfDigits.length());
-            }
-            if (dtmfDigits != null) {
-                sendBurstDtmfStringLocked(dtmfDigits);
-            }
+            // It would be nice to log the digits, but since DTMF digits can be passwords
+            // to things, or other secure account numbers, we want to keep them away from
+            // the logs.
+            Log.i(this, "burst of %d dtmf character[s] confirmed %d ms after the first press,"
+                    + " %d queued", mDtmfBurstLength,
+                    SystemClock.elapsedRealtime() - mDtmfBurstFirstPressTime, mDtmfQueueSize);
+            sendQueuedBurstDtmfLocked();
         }
     }
 
     private boolean isEmergency() {
-        Phone phone = getPhone();
-        return phone != null &&
-                PhoneNumberUtils.isLocalEmergencyNumber(
-                    phone.getContext(), getAddress().getSchemeSpecificPart());
+        return getPhone() != null
+                && isLocalEmergencyNumber(getAddress().getSchemeSpecificPart());
     }
 
     /**
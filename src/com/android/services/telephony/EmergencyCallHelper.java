@@ -18,6 +18,7 @@ package com.android.services.telephony;
 
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.telephony.TelephonyManager;
@@ -42,6 +43,7 @@ public class EmergencyCallHelper implements EmergencyCallStateListener.Callback
     private List<EmergencyCallStateListener> mListeners;
     private List<EmergencyCallStateListener> mInProgressListeners;
     private boolean mIsEmergencyCallingEnabled;
+    private long mStartTimeMillis;
 
 
     public EmergencyCallHelper(Context context) {
@@ -64,7 +66,8 @@ public class EmergencyCallHelper implements EmergencyCallStateListener.Callback
      *
      * This method kicks off the following sequence:
      * - Power on the radio for each Phone
-     * - Listen for the service state change event telling us the radio has come up.
+     * - Listen for the radio and service state change events telling us the radio has come up.
+     * - As soon as any Phone is ready, notify the callback and stop waiting for the others.
      * - Retry if we've gone a significant amount of time without any response from the radio.
      * - Finally, clean up any leftover state.
      *
@@ -77,6 +80,7 @@ public class EmergencyCallHelper implements EmergencyCallStateListener.Callback
         mCallback = callback;
         mInProgressListeners.clear();
         mIsEmergencyCallingEnabled = false;
+        mStartTimeMillis = SystemClock.elapsedRealtime();
         for (int i = 0; i < TelephonyManager.getDefault().getPhoneCount(); i++) {
             Phone phone = PhoneFactory.getPhone(i);
             if (phone == null)
@@ -118,13 +122,29 @@ public class EmergencyCallHelper implements EmergencyCallStateListener.Callback
     /**
      * This method is called from multiple Listeners on the Main Looper.
      * Synchronization is not necessary.
+     *
+     * The first Listener to report a ready radio completes the sequence; the remaining Listeners
+     * are cancelled since any suitable Phone can be used to place the emergency call.
      */
     @Override
     public void onComplete(EmergencyCallStateListener listener, boolean isRadioReady) {
         mIsEmergencyCallingEnabled |= isRadioReady;
         mInProgressListeners.remove(listener);
-        if (mCallback != null && mInProgressListeners.isEmpty()) {
-            mCallback.onComplete(null, mIsEmergencyCallingEnabled);
+        if (mCallback == null) {
+            return;
+        }
+        if (isRadioReady || mInProgressListeners.isEmpty()) {
+            EmergencyDialTimingStats.getInstance().record(isRadioReady
+                    ? EmergencyDialTimingStats.STAGE_READY_TO_DIAL
+                    : EmergencyDialTimingStats.STAGE_FAILED,
+                    SystemClock.elapsedRealtime() - mStartTimeMillis);
+            EmergencyCallStateListener.Callback callback = mCallback;
+            mCallback = null;
+            for (EmergencyCallStateListener inProgressListener : mInProgressListeners) {
+                inProgressListener.cancel();
+            }
+            mInProgressListeners.clear();
+            callback.onComplete(null, mIsEmergencyCallingEnabled);
         }
     }
 }
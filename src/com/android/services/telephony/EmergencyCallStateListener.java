@@ -20,6 +20,7 @@ import android.os.AsyncResult;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.telephony.ServiceState;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -32,6 +33,12 @@ import com.android.internal.telephony.SubscriptionController;
 /**
  * Helper class that listens to a Phone's radio state and sends a callback when the radio state of
  * that Phone is either "in service" or "emergency calls only."
+ *
+ * The sequence is event driven: radio power, service state and IMS service state changes are all
+ * observed, and the callback is sent as soon as one of them shows the radio is ready. Events that
+ * show the radio is not ready yet leave the retry timer alone, so a radio whose state keeps
+ * changing still gets its retries every {@link #TIME_BETWEEN_RETRIES_MILLIS} and the sequence
+ * fails after {@link #MAX_NUM_RETRIES} of them.
  */
 public class EmergencyCallStateListener {
 
@@ -53,6 +60,12 @@ public class EmergencyCallStateListener {
     public static final int MSG_SERVICE_STATE_CHANGED = 2;
     @VisibleForTesting
     public static final int MSG_RETRY_TIMEOUT = 3;
+    @VisibleForTesting
+    public static final int MSG_RADIO_STATE_CHANGED = 4;
+    @VisibleForTesting
+    public static final int MSG_IMS_SERVICE_STATE_CHANGED = 5;
+    @VisibleForTesting
+    public static final int MSG_CANCEL = 6;
 
     private final Handler mHandler = new Handler(Looper.getMainLooper()) {
         @Override
@@ -75,6 +88,18 @@ public class EmergencyCallStateListener {
                 case MSG_RETRY_TIMEOUT:
                     onRetryTimeout();
                     break;
+                case MSG_RADIO_STATE_CHANGED:
+                    onRadioStateChanged();
+                    break;
+                case MSG_IMS_SERVICE_STATE_CHANGED:
+                    onImsServiceStateChanged((ServiceState) ((AsyncResult) msg.obj).result);
+                    break;
+                case MSG_CANCEL:
+                    // The owner is no longer interested in the result; drop the callback so that
+                    // cleanup() does not report a failure.
+                    mCallback = null;
+                    cleanup();
+                    break;
                 default:
                     Log.wtf(this, "handleMessage: unexpected message: %d.", msg.what);
                     break;
@@ -85,16 +110,24 @@ public class EmergencyCallStateListener {
 
     private Callback mCallback;  // The callback to notify upon completion.
     private Phone mPhone;  // The phone that will attempt to place the call.
+    private Phone mImsPhone;  // The IMS phone we registered with, if any.
     private int mNumRetriesSoFar;
+    // Time the current sequence started, and the stages of it that have been reached so far.
+    private long mStartTimeMillis;
+    private boolean mRadioOnRecorded;
+    private boolean mServiceRecorded;
+    private boolean mImsRecorded;
+    private EmergencyDialTimingStats mStats = EmergencyDialTimingStats.getInstance();
 
     /**
      * Starts the "wait for radio" sequence. This is the (single) external API of the
      * EmergencyCallStateListener class.
      *
      * This method kicks off the following sequence:
-     * - Listen for the service state change event telling us the radio has come up.
-     * - Retry if we've gone {@link #TIME_BETWEEN_RETRIES_MILLIS} without any response from the
-     *   radio.
+     * - Listen for the radio state and service state change events telling us the radio has come
+     *   up.
+     * - Retry every {@link #TIME_BETWEEN_RETRIES_MILLIS} until the radio is ready, and give up
+     *   after {@link #MAX_NUM_RETRIES} retries.
      * - Finally, clean up any leftover state.
      *
      * This method is safe to call from any thread, since it simply posts a message to the
@@ -115,6 +148,14 @@ public class EmergencyCallStateListener {
         mHandler.obtainMessage(MSG_START_SEQUENCE, args).sendToTarget();
     }
 
+    /**
+     * Stops an ongoing "wait for radio" sequence without notifying the callback. Used when the
+     * result is no longer needed, for example because another Phone became ready first.
+     */
+    public void cancel() {
+        mHandler.sendEmptyMessage(MSG_CANCEL);
+    }
+
     /**
      * Actual implementation of waitForRadioOn(), guaranteed to run on the handler thread.
      *
@@ -130,14 +171,63 @@ public class EmergencyCallStateListener {
 
         mPhone = phone;
         mCallback = callback;
+        mStartTimeMillis = SystemClock.elapsedRealtime();
 
         registerForServiceStateChanged();
-        // Next step: when the SERVICE_STATE_CHANGED event comes in, we'll retry the call; see
-        // onServiceStateChanged(). But also, just in case, start a timer to make sure we'll retry
-        // the call even if the SERVICE_STATE_CHANGED event never comes in for some reason.
+        registerForRadioStateChanged();
+        registerForImsServiceStateChanged();
+        // Next step: when the SERVICE_STATE_CHANGED or RADIO_STATE_CHANGED event comes in, we'll
+        // retry the call; see onServiceStateChanged(). But also, just in case, start a timer to
+        // make sure we'll retry the call even if no event ever comes in for some reason.
         startRetryTimer();
     }
 
+    /**
+     * Handles the RADIO_STATE_CHANGED event. The radio usually reports that it is on before the
+     * first service state update arrives, so this lets us place the call without waiting for it.
+     */
+    private void onRadioStateChanged() {
+        if (mPhone == null) {
+            return;
+        }
+        Log.d(this, "onRadioStateChanged(), Phone = %s", mPhone.getPhoneId());
+        checkReadyOrKeepWaiting();
+    }
+
+    /**
+     * Handles the service state of the IMS Phone changing. This does not make the Phone ready by
+     * itself, since dialing still requires the radio, but it is tracked as a stage of the sequence.
+     */
+    private void onImsServiceStateChanged(ServiceState state) {
+        if (mPhone == null) {
+            return;
+        }
+        Log.d(this, "onImsServiceStateChanged(), new state = %s, Phone = %s", state,
+                mPhone.getPhoneId());
+        if (!mImsRecorded && state != null
+                && state.getState() == ServiceState.STATE_IN_SERVICE) {
+            mImsRecorded = true;
+            recordStage(EmergencyDialTimingStats.STAGE_IMS);
+        }
+        checkReadyOrKeepWaiting();
+    }
+
+    /**
+     * Sends the callback if the radio is now ready; otherwise keeps waiting for the next event or
+     * the retry timer.
+     */
+    private void checkReadyOrKeepWaiting() {
+        if (isOkToCall(mPhone.getServiceState().getState())) {
+            Log.d(this, "checkReadyOrKeepWaiting: ok to call!");
+            onComplete(true);
+            cleanup();
+        }
+    }
+
+    private void recordStage(int stage) {
+        mStats.record(stage, SystemClock.elapsedRealtime() - mStartTimeMillis);
+    }
+
     /**
      * Handles the SERVICE_STATE_CHANGED event. Normally this event tells us that the radio has
      * finally come up. In that case, it's now safe to actually place the emergency call.
@@ -153,6 +243,12 @@ public class EmergencyCallStateListener {
         // - STATE_EMERGENCY_ONLY    // Phone is locked; only emergency numbers are allowed
         // - STATE_POWER_OFF         // Radio is explicitly powered off (airplane mode)
 
+        if (!mServiceRecorded && (state.getState() == ServiceState.STATE_IN_SERVICE
+                || state.isEmergencyOnly())) {
+            mServiceRecorded = true;
+            recordStage(EmergencyDialTimingStats.STAGE_SERVICE);
+        }
+
         if (isOkToCall(state.getState())) {
             // Woo hoo!  It's OK to actually place the call.
             Log.d(this, "onServiceStateChanged: ok to call!");
@@ -160,7 +256,9 @@ public class EmergencyCallStateListener {
             onComplete(true);
             cleanup();
         } else {
-            // The service state changed, but we're still not ready to call yet.
+            // The service state changed, but we're still not ready to call yet. We'll keep
+            // waiting for another service state change; the retry timer keeps running, so a
+            // state that keeps flapping cannot hold off the retries.
             Log.d(this, "onServiceStateChanged: not ready to call yet, keep waiting.");
         }
     }
@@ -171,8 +269,15 @@ public class EmergencyCallStateListener {
      * UNAVAILABLE state, even if it is reporting the OUT_OF_SERVICE state.
      */
     private boolean isOkToCall(int serviceState) {
-        return (mPhone.getState() == PhoneConstants.State.OFFHOOK) ||
-                mPhone.getServiceStateTracker().isRadioOn();
+        if (mPhone.getState() == PhoneConstants.State.OFFHOOK) {
+            return true;
+        }
+        boolean isRadioOn = mPhone.getServiceStateTracker().isRadioOn();
+        if (isRadioOn && !mRadioOnRecorded) {
+            mRadioOnRecorded = true;
+            recordStage(EmergencyDialTimingStats.STAGE_RADIO_ON);
+        }
+        return isRadioOn;
     }
 
     /**
@@ -238,11 +343,16 @@ public class EmergencyCallStateListener {
         onComplete(false);
 
         unregisterForServiceStateChanged();
+        unregisterForRadioStateChanged();
+        unregisterForImsServiceStateChanged();
         cancelRetryTimer();
 
         // Used for unregisterForServiceStateChanged() so we null it out here instead.
         mPhone = null;
         mNumRetriesSoFar = 0;
+        mRadioOnRecorded = false;
+        mServiceRecorded = false;
+        mImsRecorded = false;
     }
 
     private void startRetryTimer() {
@@ -270,6 +380,37 @@ public class EmergencyCallStateListener {
         mHandler.removeMessages(MSG_SERVICE_STATE_CHANGED);  // Clean up any pending messages too
     }
 
+    private void registerForRadioStateChanged() {
+        unregisterForRadioStateChanged();
+        if (mPhone.mCi != null) {
+            mPhone.mCi.registerForRadioStateChanged(mHandler, MSG_RADIO_STATE_CHANGED, null);
+        }
+    }
+
+    private void unregisterForRadioStateChanged() {
+        if (mPhone != null && mPhone.mCi != null) {
+            mPhone.mCi.unregisterForRadioStateChanged(mHandler);
+        }
+        mHandler.removeMessages(MSG_RADIO_STATE_CHANGED);
+    }
+
+    private void registerForImsServiceStateChanged() {
+        unregisterForImsServiceStateChanged();
+        mImsPhone = mPhone.getImsPhone();
+        if (mImsPhone != null) {
+            mImsPhone.registerForServiceStateChanged(mHandler, MSG_IMS_SERVICE_STATE_CHANGED,
+                    null);
+        }
+    }
+
+    private void unregisterForImsServiceStateChanged() {
+        if (mImsPhone != null) {
+            mImsPhone.unregisterForServiceStateChanged(mHandler);
+            mImsPhone = null;
+        }
+        mHandler.removeMessages(MSG_IMS_SERVICE_STATE_CHANGED);
+    }
+
     private void onComplete(boolean isRadioReady) {
         if (mCallback != null) {
             Callback tempCallback = mCallback;
@@ -293,6 +434,11 @@ public class EmergencyCallStateListener {
         TIME_BETWEEN_RETRIES_MILLIS = timeMs;
     }
 
+    @VisibleForTesting
+    public void setTimingStats(EmergencyDialTimingStats stats) {
+        mStats = stats;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
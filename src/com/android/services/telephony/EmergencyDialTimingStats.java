@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+/**
+ * Collects histograms of how long each stage of the "wait for radio" sequence takes before an
+ * emergency call can be dialed. Time is measured from the moment the sequence is started.
+ */
+public class EmergencyDialTimingStats {
+
+    /** The radio of a Phone reported that it is on. */
+    public static final int STAGE_RADIO_ON = 0;
+    /** A Phone reported in service or emergency-only service. */
+    public static final int STAGE_SERVICE = 1;
+    /** The IMS Phone associated with a Phone reported in service. */
+    public static final int STAGE_IMS = 2;
+    /** The first suitable Phone became ready and the emergency call was released for dialing. */
+    public static final int STAGE_READY_TO_DIAL = 3;
+    /** No Phone became ready before all retries were exhausted. */
+    public static final int STAGE_FAILED = 4;
+    private static final int NUM_STAGES = 5;
+
+    private static final String[] STAGE_NAMES = {
+            "radioOn", "service", "ims", "readyToDial", "failed"};
+
+    // Upper bounds (inclusive) of each histogram bucket; the last bucket is open-ended.
+    private static final long[] BUCKET_BOUNDS_MILLIS = {
+            100, 250, 500, 1000, 2000, 5000, 10000, 30000};
+
+    private static final EmergencyDialTimingStats sInstance = new EmergencyDialTimingStats();
+
+    private final Object mLock = new Object();
+    private final int[][] mBuckets = new int[NUM_STAGES][BUCKET_BOUNDS_MILLIS.length + 1];
+    private final long[] mTotalMillis = new long[NUM_STAGES];
+    private final long[] mMaxMillis = new long[NUM_STAGES];
+    private final int[] mCounts = new int[NUM_STAGES];
+
+    public static EmergencyDialTimingStats getInstance() {
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    public EmergencyDialTimingStats() {
+    }
+
+    /**
+     * Records that {@code stage} was reached {@code elapsedMillis} after the sequence started.
+     */
+    public void record(int stage, long elapsedMillis) {
+        if (stage < 0 || stage >= NUM_STAGES) {
+            return;
+        }
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_MILLIS.length
+                && elapsedMillis > BUCKET_BOUNDS_MILLIS[bucket]) {
+            bucket++;
+        }
+        synchronized (mLock) {
+            mBuckets[stage][bucket]++;
+            mCounts[stage]++;
+            mTotalMillis[stage] += elapsedMillis;
+            if (elapsedMillis > mMaxMillis[stage]) {
+                mMaxMillis[stage] = elapsedMillis;
+            }
+        }
+    }
+
+    @VisibleForTesting
+    public int getCount(int stage) {
+        synchronized (mLock) {
+            return mCounts[stage];
+        }
+    }
+
+    /**
+     * Dump the collected histograms.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        pw.println("EmergencyDialTimingStats:");
+        pw.increaseIndent();
+        synchronized (mLock) {
+            for (int stage = 0; stage < NUM_STAGES; stage++) {
+                if (mCounts[stage] == 0) {
+                    continue;
+                }
+                pw.print(STAGE_NAMES[stage]);
+                pw.print(": count=" + mCounts[stage]);
+                pw.print(" avgMs=" + (mTotalMillis[stage] / mCounts[stage]));
+                pw.print(" maxMs=" + mMaxMillis[stage]);
+                pw.print(" buckets=[");
+                for (int bucket = 0; bucket < mBuckets[stage].length; bucket++) {
+                    if (bucket > 0) {
+                        pw.print(", ");
+                    }
+                    pw.print(bucket < BUCKET_BOUNDS_MILLIS.length
+                            ? "<=" + BUCKET_BOUNDS_MILLIS[bucket] : ">"
+                            + BUCKET_BOUNDS_MILLIS[BUCKET_BOUNDS_MILLIS.length - 1]);
+                    pw.print(":" + mBuckets[stage][bucket]);
+                }
+                pw.println("]");
+            }
+        }
+        pw.decreaseIndent();
+    }
+}
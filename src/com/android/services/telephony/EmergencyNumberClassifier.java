@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony;
+
+import android.content.Context;
+import android.location.Country;
+import android.location.CountryDetector;
+import android.location.CountryListener;
+import android.os.Looper;
+import android.os.SystemProperties;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.SubscriptionManager;
+import android.text.TextUtils;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * Answers the same questions as {@link PhoneNumberUtils#isEmergencyNumber(String)},
+ * {@link PhoneNumberUtils#isLocalEmergencyNumber(Context, String)} and
+ * {@link PhoneNumberUtils#isPotentialLocalEmergencyNumber(Context, String)}, without re-parsing
+ * the emergency number lists on every call.
+ *
+ * <p>The list each slot uses (the "ril.ecclist" properties, which the RIL fills from the network
+ * and the SIM, or the platform defaults) is compiled into a digit trie. The property is still
+ * read on every check, since the RIL can change it at any time without any notification, and
+ * the trie is rebuilt whenever the value differs from the one it was built from. When a slot has
+ * no list, the country based answer is left to {@link PhoneNumberUtils}. Answers are not kept
+ * here; the dial flow classifies the number once and passes the result along with the
+ * connection, see {@link TelephonyConnection#setDialedEmergencyNumber}.
+ */
+public class EmergencyNumberClassifier {
+
+    private static final String ECC_LIST_PROPERTY = "ril.ecclist";
+    private static final String RO_ECC_LIST_PROPERTY = "ro.ril.ecclist";
+    // Used when the slot has no list, as in PhoneNumberUtils.
+    private static final String DEFAULT_ECC_LIST = "112,911";
+    private static final String DEFAULT_ECC_LIST_NO_SIM = "112,911,000,08,110,118,119,999";
+
+    // The kinds of checks; see PhoneNumberUtils.
+    static final int CHECK_EMERGENCY = 0;
+    static final int CHECK_LOCAL = 1;
+    static final int CHECK_POTENTIAL_LOCAL = 2;
+
+    private static EmergencyNumberClassifier sInstance;
+
+    private final Context mContext;
+    private final Object mLock = new Object();
+    // Compiled lists by slot index; slot -1 stands for "no SIM".
+    private final SparseArray<SlotMatcher> mMatchers = new SparseArray<>();
+    private String mCountryIso;
+
+    private final CountryListener mCountryListener = new CountryListener() {
+        @Override
+        public void onCountryDetected(Country country) {
+            synchronized (mLock) {
+                mCountryIso = country == null ? null : country.getCountryIso();
+            }
+        }
+    };
+
+    @VisibleForTesting
+    EmergencyNumberClassifier(Context context) {
+        mContext = context;
+    }
+
+    public static EmergencyNumberClassifier getInstance(Context context) {
+        synchronized (EmergencyNumberClassifier.class) {
+            if (sInstance == null) {
+                sInstance = new EmergencyNumberClassifier(context.getApplicationContext());
+                sInstance.register();
+            }
+            return sInstance;
+        }
+    }
+
+    private void register() {
+        CountryDetector detector =
+                (CountryDetector) mContext.getSystemService(Context.COUNTRY_DETECTOR);
+        if (detector != null) {
+            Country country = detector.detectCountry();
+            mCountryIso = country == null ? null : country.getCountryIso();
+            detector.addCountryListener(mCountryListener, Looper.getMainLooper());
+        }
+    }
+
+    /** Same as {@link PhoneNumberUtils#isEmergencyNumber(String)}. */
+    public boolean isEmergencyNumber(String number) {
+        return classify(number, CHECK_EMERGENCY);
+    }
+
+    /** Same as {@link PhoneNumberUtils#isLocalEmergencyNumber(Context, String)}. */
+    public boolean isLocalEmergencyNumber(String number) {
+        return classify(number, CHECK_LOCAL);
+    }
+
+    /** Same as {@link PhoneNumberUtils#isPotentialLocalEmergencyNumber(Context, String)}. */
+    public boolean isPotentialLocalEmergencyNumber(String number) {
+        return classify(number, CHECK_POTENTIAL_LOCAL);
+    }
+
+    /**
+     * Answers {@code check}, one of the CHECK_* constants, for {@code number}.
+     */
+    boolean classify(String number, int check) {
+        if (number == null || PhoneNumberUtils.isUriNumber(number)) {
+            return false;
+        }
+        int slotId = SubscriptionManager.getSlotIndex(
+                SubscriptionManager.getDefaultVoiceSubscriptionId());
+        String eccList = readEccList(slotId);
+        SlotMatcher matcher;
+        String countryIso;
+        synchronized (mLock) {
+            matcher = mMatchers.get(slotId);
+            if (matcher == null || !matcher.mSource.equals(eccList)) {
+                matcher = new SlotMatcher(slotId, eccList);
+                mMatchers.put(slotId, matcher);
+            }
+            countryIso = check == CHECK_EMERGENCY ? null : getCountryIsoLocked();
+        }
+
+        String networkPortion = PhoneNumberUtils.extractNetworkPortionAlt(number);
+        boolean exactMatch = check != CHECK_POTENTIAL_LOCAL || "BR".equalsIgnoreCase(countryIso);
+        if (matcher.matches(networkPortion, exactMatch)) {
+            return true;
+        } else if (matcher.mFromEccList || countryIso == null) {
+            return false;
+        }
+        // Only the country's short numbers are left to check.
+        return check == CHECK_POTENTIAL_LOCAL
+                ? PhoneNumberUtils.isPotentialLocalEmergencyNumber(mContext, number)
+                : PhoneNumberUtils.isLocalEmergencyNumber(mContext, number);
+    }
+
+    /**
+     * Returns the raw emergency number list of {@code slotId}, or an empty string if it has none.
+     */
+    private static String readEccList(int slotId) {
+        String eccList = SystemProperties.get(
+                slotId <= 0 ? ECC_LIST_PROPERTY : ECC_LIST_PROPERTY + slotId, "");
+        if (TextUtils.isEmpty(eccList)) {
+            eccList = SystemProperties.get(RO_ECC_LIST_PROPERTY, "");
+        }
+        return eccList;
+    }
+
+    private String getCountryIsoLocked() {
+        if (mCountryIso != null) {
+            return mCountryIso;
+        }
+        // As in PhoneNumberUtils, fall back to the locale when no country is detected.
+        return mContext.getResources().getConfiguration().locale.getCountry();
+    }
+
+    /**
+     * The emergency numbers of one slot, as a trie over the characters of the numbers.
+     */
+    @VisibleForTesting
+    static class SlotMatcher {
+        private static final String ALPHABET = "0123456789*#+";
+
+        private static final class Node {
+            final Node[] mNext = new Node[ALPHABET.length()];
+            // Whether a number ends at this node.
+            boolean mTerminal;
+        }
+
+        // The property value the trie was built from; empty if it was built from the defaults.
+        final String mSource;
+        // Whether the numbers came from the ecclist properties rather than the defaults.
+        final boolean mFromEccList;
+        private final Node mRoot = new Node();
+
+        SlotMatcher(int slotId, String eccList) {
+            mSource = eccList;
+            mFromEccList = !TextUtils.isEmpty(eccList);
+            addAll(mFromEccList ? eccList
+                    : slotId < 0 ? DEFAULT_ECC_LIST_NO_SIM : DEFAULT_ECC_LIST);
+        }
+
+        @VisibleForTesting
+        SlotMatcher(String eccList) {
+            mSource = eccList;
+            mFromEccList = true;
+            addAll(eccList);
+        }
+
+        private void addAll(String eccList) {
+            for (String number : eccList.split(",")) {
+                add(number);
+            }
+        }
+
+        private void add(String number) {
+            Node node = mRoot;
+            for (int i = 0; i < number.length(); i++) {
+                int index = ALPHABET.indexOf(number.charAt(i));
+                if (index < 0) {
+                    // Cannot match a network portion; PhoneNumberUtils would not match it either.
+                    return;
+                }
+                if (node.mNext[index] == null) {
+                    node.mNext[index] = new Node();
+                }
+                node = node.mNext[index];
+            }
+            node.mTerminal = true;
+        }
+
+        /**
+         * Returns whether {@code number} is one of the numbers or, if {@code exactMatch} is false,
+         * starts with one of them.
+         */
+        boolean matches(String number, boolean exactMatch) {
+            Node node = mRoot;
+            for (int i = 0; i < number.length(); i++) {
+                if (!exactMatch && node.mTerminal) {
+                    return true;
+                }
+                int index = ALPHABET.indexOf(number.charAt(i));
+                node = index < 0 ? null : node.mNext[index];
+                if (node == null) {
+                    return false;
+                }
+            }
+            return node.mTerminal;
+        }
+    }
+}
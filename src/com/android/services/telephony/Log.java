@@ -17,6 +17,13 @@
 package com.android.services.telephony;
 
 import android.content.Context;
+import android.telecom.Connection;
+
+import com.android.internal.telephony.Call;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
 
 /**
  * Manages logging for the entire module.
@@ -33,6 +40,31 @@ final public class Log {
     public static final boolean WARN = isLoggable(android.util.Log.WARN);
     public static final boolean ERROR = isLoggable(android.util.Log.ERROR);
 
+    // Structured call events; see event(). The state of EVENT_STATE_CHANGED is a Call.State
+    // ordinal, the state of EVENT_CONNECTION_STATE_CHANGED a Connection.STATE_* value, and the
+    // cause of EVENT_DISCONNECTED an android.telephony.DisconnectCause; the state of
+    // EVENT_CONFERENCE_RECALCULATE is the number of connections considered.
+    public static final int EVENT_STATE_CHANGED = 1;
+    public static final int EVENT_DISCONNECTED = 2;
+    public static final int EVENT_CONNECTION_STATE_CHANGED = 3;
+    public static final int EVENT_HANDOVER = 4;
+    public static final int EVENT_CONFERENCE_RECALCULATE = 5;
+
+    private static final String[] EVENT_NAMES = {"", "STATE_CHANGED", "DISCONNECTED",
+            "CONNECTION_STATE_CHANGED", "HANDOVER", "CONFERENCE_RECALCULATE"};
+
+    private static final int EVENT_LOG_SIZE = 512;
+
+    // Ring buffer of the last EVENT_LOG_SIZE events, preallocated so recording never allocates.
+    private static final Object sEventLock = new Object();
+    private static final long[] sEventTimes = new long[EVENT_LOG_SIZE];
+    private static final int[] sEventIds = new int[EVENT_LOG_SIZE];
+    private static final int[] sEventObjectIds = new int[EVENT_LOG_SIZE];
+    private static final int[] sEventStates = new int[EVENT_LOG_SIZE];
+    private static final int[] sEventCauses = new int[EVENT_LOG_SIZE];
+    private static int sEventNext;
+    private static int sEventCount;
+
     private Log() {}
 
     public static boolean isLoggable(int level) {
@@ -108,4 +140,66 @@ final public class Log {
     public static String pii(Object pii) {
         return android.telecom.Log.pii(pii);
     }
+
+    /**
+     * Records a call event in the in-memory event log, regardless of the log level. Nothing is
+     * formatted until the log is dumped, so this is cheap enough to call on every state change.
+     *
+     * @param eventId one of the {@code EVENT_*} constants.
+     * @param object the connection or conference the event is about; only its identity hash is
+     *        kept.
+     */
+    public static void event(int eventId, Object object, int state, int cause) {
+        long now = System.currentTimeMillis();
+        int objectId = System.identityHashCode(object);
+        synchronized (sEventLock) {
+            int i = sEventNext;
+            sEventTimes[i] = now;
+            sEventIds[i] = eventId;
+            sEventObjectIds[i] = objectId;
+            sEventStates[i] = state;
+            sEventCauses[i] = cause;
+            sEventNext = (i + 1) % EVENT_LOG_SIZE;
+            if (sEventCount < EVENT_LOG_SIZE) {
+                sEventCount++;
+            }
+        }
+    }
+
+    /**
+     * Dumps the in-memory event log, oldest event first.
+     */
+    public static void dumpEvents(IndentingPrintWriter pw) {
+        pw.println("Call events:");
+        pw.increaseIndent();
+        SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS");
+        synchronized (sEventLock) {
+            int first = (sEventNext - sEventCount + EVENT_LOG_SIZE) % EVENT_LOG_SIZE;
+            for (int n = 0; n < sEventCount; n++) {
+                int i = (first + n) % EVENT_LOG_SIZE;
+                pw.print(dateFormat.format(new Date(sEventTimes[i])));
+                pw.print(" ");
+                pw.print(EVENT_NAMES[sEventIds[i]]);
+                pw.print(" @");
+                pw.print(Integer.toHexString(sEventObjectIds[i]));
+                pw.println(eventDetails(sEventIds[i], sEventStates[i], sEventCauses[i]));
+            }
+        }
+        pw.decreaseIndent();
+    }
+
+    private static String eventDetails(int eventId, int state, int cause) {
+        switch (eventId) {
+            case EVENT_STATE_CHANGED:
+                return " state=" + Call.State.values()[state];
+            case EVENT_CONNECTION_STATE_CHANGED:
+                return " state=" + Connection.stateToString(state);
+            case EVENT_DISCONNECTED:
+                return " cause=" + android.telephony.DisconnectCause.toString(cause);
+            case EVENT_CONFERENCE_RECALCULATE:
+                return " connections=" + state;
+            default:
+                return "";
+        }
+    }
 }
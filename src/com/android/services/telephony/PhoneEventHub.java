@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony;
+
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.util.ArrayMap;
+
+import com.android.internal.telephony.Call;
+import com.android.internal.telephony.Phone;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registers once with a {@link Phone} for the call events that every {@link TelephonyConnection}
+ * on it needs, and fans them out to those connections.
+ *
+ * <p>Registering each connection with the Phone separately meant that every precise call state
+ * change ran a full {@link TelephonyConnection#updateState()} on every connection, whether or not
+ * anything about it had changed. The hub instead only forwards a call state change to the
+ * connections whose original connection differs from what they last observed, unless the state of
+ * the Phone's calls changed as a whole, in which case capabilities that depend on the other calls
+ * (hold, swap, merge) may need updating and all connections are notified.
+ *
+ * <p>Must only be used on the main thread.
+ */
+final class PhoneEventHub {
+
+    private static final Map<Phone, PhoneEventHub> sHubs = new ArrayMap<>();
+
+    private final Phone mPhone;
+    private final List<TelephonyConnection> mConnections = new ArrayList<>();
+    // Copy of mConnections taken for each dispatch, reused so that events do not allocate.
+    private TelephonyConnection[] mDispatchConnections = new TelephonyConnection[4];
+    // Summary of the Phone's calls as of the last call state event; see computeSignature().
+    private long mSignature;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            dispatch(msg.what, (AsyncResult) msg.obj);
+        }
+    };
+
+    private PhoneEventHub(Phone phone) {
+        mPhone = phone;
+    }
+
+    /**
+     * Returns the hub for {@code phone}, creating it if needed.
+     */
+    static PhoneEventHub getInstance(Phone phone) {
+        PhoneEventHub hub = sHubs.get(phone);
+        if (hub == null) {
+            hub = new PhoneEventHub(phone);
+            sHubs.put(phone, hub);
+        }
+        return hub;
+    }
+
+    /**
+     * Starts delivering events of this hub's Phone to {@code connection}. The hub registers with
+     * the Phone when its first connection is added.
+     */
+    void addConnection(TelephonyConnection connection) {
+        if (mConnections.contains(connection)) {
+            return;
+        }
+        if (mConnections.isEmpty()) {
+            register();
+        }
+        mConnections.add(connection);
+    }
+
+    /**
+     * Stops delivering events to {@code connection}. The hub unregisters from the Phone when its
+     * last connection is removed.
+     */
+    void removeConnection(TelephonyConnection connection) {
+        if (mConnections.remove(connection) && mConnections.isEmpty()) {
+            unregister();
+            sHubs.remove(mPhone);
+        }
+    }
+
+    private void register() {
+        mSignature = computeSignature();
+        mPhone.registerForPreciseCallStateChanged(
+                mHandler, TelephonyConnection.MSG_PRECISE_CALL_STATE_CHANGED, null);
+        mPhone.registerForHandoverStateChanged(
+                mHandler, TelephonyConnection.MSG_HANDOVER_STATE_CHANGED, null);
+        mPhone.registerForRingbackTone(mHandler, TelephonyConnection.MSG_RINGBACK_TONE, null);
+        mPhone.registerForDisconnect(mHandler, TelephonyConnection.MSG_DISCONNECT, null);
+        mPhone.registerForSuppServiceNotification(
+                mHandler, TelephonyConnection.MSG_SUPP_SERVICE_NOTIFY, null);
+        mPhone.registerForOnHoldTone(mHandler, TelephonyConnection.MSG_ON_HOLD_TONE, null);
+        mPhone.registerForInCallVoicePrivacyOn(
+                mHandler, TelephonyConnection.MSG_CDMA_VOICE_PRIVACY_ON, null);
+        mPhone.registerForInCallVoicePrivacyOff(
+                mHandler, TelephonyConnection.MSG_CDMA_VOICE_PRIVACY_OFF, null);
+    }
+
+    private void unregister() {
+        mPhone.unregisterForPreciseCallStateChanged(mHandler);
+        mPhone.unregisterForHandoverStateChanged(mHandler);
+        mPhone.unregisterForRingbackTone(mHandler);
+        mPhone.unregisterForDisconnect(mHandler);
+        mPhone.unregisterForSuppServiceNotification(mHandler);
+        mPhone.unregisterForOnHoldTone(mHandler);
+        mPhone.unregisterForInCallVoicePrivacyOn(mHandler);
+        mPhone.unregisterForInCallVoicePrivacyOff(mHandler);
+    }
+
+    private void dispatch(int what, AsyncResult ar) {
+        // Connections may add or remove themselves while handling the event (e.g. on handover
+        // or disconnect), so iterate over a copy.
+        int count = mConnections.size();
+        if (mDispatchConnections.length < count) {
+            mDispatchConnections = new TelephonyConnection[count * 2];
+        }
+        TelephonyConnection[] connections = mDispatchConnections;
+        mConnections.toArray(connections);
+        try {
+            switch (what) {
+                case TelephonyConnection.MSG_PRECISE_CALL_STATE_CHANGED:
+                case TelephonyConnection.MSG_DISCONNECT:
+                    long signature = computeSignature();
+                    boolean phoneChanged = signature != mSignature;
+                    mSignature = signature;
+                    // Only a disconnect names the connection it is about; a precise call state
+                    // change carries the Phone.
+                    Object disconnected = what == TelephonyConnection.MSG_DISCONNECT && ar != null
+                            ? ar.result : null;
+                    for (int i = 0; i < count; i++) {
+                        TelephonyConnection connection = connections[i];
+                        if (phoneChanged || connection.hasOriginalConnectionChanged()
+                                || (disconnected != null
+                                        && disconnected == connection.getOriginalConnection())) {
+                            connection.handlePhoneEvent(what, ar);
+                        }
+                    }
+                    break;
+                default:
+                    // The remaining events are rare and cheap to handle; each connection checks
+                    // whether the event concerns it.
+                    for (int i = 0; i < count; i++) {
+                        connections[i].handlePhoneEvent(what, ar);
+                    }
+                    break;
+            }
+        } finally {
+            // Do not keep removed connections reachable.
+            Arrays.fill(connections, 0, count, null);
+        }
+    }
+
+    /**
+     * Packs the state and size of the Phone's ringing, foreground and background calls into
+     * 21 bits each.
+     */
+    private long computeSignature() {
+        return (packCall(mPhone.getRingingCall()) << 42)
+                | (packCall(mPhone.getForegroundCall()) << 21)
+                | packCall(mPhone.getBackgroundCall());
+    }
+
+    /**
+     * Returns 0 for no call, or the call state (5 bits) and connection count (16 bits).
+     */
+    private static long packCall(Call call) {
+        if (call == null) {
+            return 0;
+        }
+        return ((call.getState().ordinal() + 1L) << 16)
+                | Math.min(call.getConnections().size(), 0xFFFF);
+    }
+}
@@ -47,6 +47,7 @@ import android.text.TextUtils;
 import com.android.ims.ImsManager;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneFactory;
+import com.android.internal.util.IndentingPrintWriter;
 import com.android.phone.PhoneGlobals;
 import com.android.phone.PhoneUtils;
 import com.android.phone.R;
@@ -100,6 +101,19 @@ final class TelecomAccountRegistry {
             mPhoneCapabilitiesNotifier.teardown();
         }
 
+        void dump(IndentingPrintWriter pw) {
+            pw.print(mAccount.getAccountHandle());
+            pw.print(" phoneId=" + mPhone.getPhoneId());
+            pw.print(" emergency=" + mIsEmergency);
+            pw.print(" dummy=" + mIsDummy);
+            pw.print(" video=" + mIsVideoCapable);
+            pw.print(" videoPresence=" + mIsVideoPresenceSupported);
+            pw.print(" videoPause=" + mIsVideoPauseSupported);
+            pw.print(" merge=" + mIsMergeCallSupported);
+            pw.print(" mergeIms=" + mIsMergeImsCallSupported);
+            pw.println(" videoConference=" + mIsVideoConferencingSupported);
+        }
+
         /**
          * Registers the specified account with Telecom as a PhoneAccountHandle.
          */
@@ -808,6 +822,21 @@ final class TelecomAccountRegistry {
         }
     }
 
+    /**
+     * Dump the registered accounts and the capabilities we have reported for them.
+     */
+    void dump(IndentingPrintWriter pw) {
+        pw.println("TelecomAccountRegistry: serviceState=" + mServiceState
+                + " isPrimaryUser=" + mIsPrimaryUser);
+        pw.increaseIndent();
+        synchronized (mAccountsLock) {
+            for (AccountEntry entry : mAccounts) {
+                entry.dump(pw);
+            }
+        }
+        pw.decreaseIndent();
+    }
+
     private void tearDownAccounts() {
         synchronized (mAccountsLock) {
             for (AccountEntry entry : mAccounts) {
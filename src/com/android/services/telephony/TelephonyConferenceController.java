@@ -48,8 +48,11 @@ final class TelephonyConferenceController {
     private final Connection.Listener mConnectionListener = new Connection.Listener() {
         @Override
         public void onStateChanged(Connection c, int state) {
-            Log.v(this, "onStateChange triggered in Conf Controller : connection = "+ c
-                 + " state = " + state);
+            Log.event(Log.EVENT_CONNECTION_STATE_CHANGED, c, state, 0);
+            if (Log.VERBOSE) {
+                Log.v(this, "onStateChange triggered in Conf Controller : connection = " + c
+                        + " state = " + state);
+            }
             recalculate();
         }
 
@@ -78,7 +81,7 @@ final class TelephonyConferenceController {
     private TelephonyConference mTelephonyConference;
 
     boolean shouldRecalculate() {
-        Log.d(this, "shouldRecalculate is " + mTriggerRecalculate);
+        Log.d(this, "shouldRecalculate is %b", mTriggerRecalculate);
         return mTriggerRecalculate;
     }
 
@@ -106,6 +109,7 @@ final class TelephonyConferenceController {
     }
 
     void recalculate() {
+        Log.event(Log.EVENT_CONFERENCE_RECALCULATE, this, mTelephonyConnections.size(), 0);
         recalculateConference();
         recalculateConferenceable();
     }
@@ -146,7 +150,9 @@ final class TelephonyConferenceController {
             connection.setConferenceableConnections(Collections.<Connection>emptyList());
         }
 
-        Log.v(this, "conferenceable: " + conferenceableConnections.size());
+        if (Log.VERBOSE) {
+            Log.v(this, "conferenceable: " + conferenceableConnections.size());
+        }
 
         // Go through all the conferenceable connections and add all other conferenceable
         // connections that is not the connection itself
@@ -198,7 +204,9 @@ final class TelephonyConferenceController {
         boolean allConnInService = true;
         Collection<Connection> allConnections = mConnectionService.getAllConnections();
         for (Connection connection : conferencedConnections) {
-            Log.v (this, "Finding connection in Connection Service for " + connection);
+            if (Log.VERBOSE) {
+                Log.v(this, "Finding connection in Connection Service for " + connection);
+            }
             if (!allConnections.contains(connection)) {
                 allConnInService = false;
                 Log.v(this, "Finding connection in Connection Service Failed");
@@ -206,8 +214,10 @@ final class TelephonyConferenceController {
             }
         }
 
-        Log.d(this, "Is there a match for all connections in connection service " +
-            allConnInService);
+        if (Log.DEBUG) {
+            Log.d(this, "Is there a match for all connections in connection service " +
+                    allConnInService);
+        }
 
         // If this is a GSM conference and the number of connections drops below 2, we will
         // terminate the conference.
@@ -270,7 +280,9 @@ final class TelephonyConferenceController {
             }
             if (mTelephonyConference != null) {
                 Connection conferencedConnection = mTelephonyConference.getPrimaryConnection();
-                Log.v(this, "Primary Conferenced connection is " + conferencedConnection);
+                if (Log.VERBOSE) {
+                    Log.v(this, "Primary Conferenced connection is " + conferencedConnection);
+                }
                 if (conferencedConnection != null) {
                     switch (conferencedConnection.getState()) {
                         case Connection.STATE_ACTIVE:
@@ -37,9 +37,11 @@ import android.telephony.DisconnectCause;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.TelephonyManager;
 import android.util.Pair;
+import android.util.SparseArray;
 
 import com.android.ims.ImsCall;
 import com.android.ims.ImsCallProfile;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.Call;
 import com.android.internal.telephony.CallStateException;
 import com.android.internal.telephony.Connection.Capability;
@@ -60,6 +62,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -69,13 +72,14 @@ import java.util.concurrent.ConcurrentHashMap;
  * Base class for CDMA and GSM connections.
  */
 abstract class TelephonyConnection extends Connection {
-    private static final int MSG_PRECISE_CALL_STATE_CHANGED = 1;
-    private static final int MSG_RINGBACK_TONE = 2;
-    private static final int MSG_HANDOVER_STATE_CHANGED = 3;
-    private static final int MSG_DISCONNECT = 4;
+    // Phone-wide events, delivered through PhoneEventHub; see handlePhoneEvent().
+    static final int MSG_PRECISE_CALL_STATE_CHANGED = 1;
+    static final int MSG_RINGBACK_TONE = 2;
+    static final int MSG_HANDOVER_STATE_CHANGED = 3;
+    static final int MSG_DISCONNECT = 4;
     private static final int MSG_MULTIPARTY_STATE_CHANGED = 5;
     private static final int MSG_CONFERENCE_MERGE_FAILED = 6;
-    private static final int MSG_SUPP_SERVICE_NOTIFY = 7;
+    static final int MSG_SUPP_SERVICE_NOTIFY = 7;
 
     /**
      * Mappings from {@link com.android.internal.telephony.Connection} extras keys to their
@@ -83,60 +87,26 @@ abstract class TelephonyConnection extends Connection {
      */
     private static final Map<String, String> sExtrasMap = createExtrasMap();
 
+    /**
+     * Wi-Fi calling status hints by label resource, for {@link #sWifiStatusHintsLocale}.
+     */
+    private static final SparseArray<StatusHints> sWifiStatusHints = new SparseArray<>();
+    private static Locale sWifiStatusHintsLocale;
+
     private static final int MSG_SET_VIDEO_STATE = 8;
     private static final int MSG_SET_VIDEO_PROVIDER = 9;
     private static final int MSG_SET_AUDIO_QUALITY = 10;
     private static final int MSG_SET_CONFERENCE_PARTICIPANTS = 11;
     private static final int MSG_CONNECTION_EXTRAS_CHANGED = 12;
     private static final int MSG_SET_ORIGNAL_CONNECTION_CAPABILITIES = 13;
-    private static final int MSG_ON_HOLD_TONE = 14;
-    private static final int MSG_CDMA_VOICE_PRIVACY_ON = 15;
-    private static final int MSG_CDMA_VOICE_PRIVACY_OFF = 16;
+    static final int MSG_ON_HOLD_TONE = 14;
+    static final int MSG_CDMA_VOICE_PRIVACY_ON = 15;
+    static final int MSG_CDMA_VOICE_PRIVACY_OFF = 16;
 
     private final Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
-                case MSG_PRECISE_CALL_STATE_CHANGED:
-                    Log.v(TelephonyConnection.this, "MSG_PRECISE_CALL_STATE_CHANGED");
-                    updateState();
-                    break;
-                case MSG_HANDOVER_STATE_CHANGED:
-                    Log.v(TelephonyConnection.this, "MSG_HANDOVER_STATE_CHANGED");
-                    AsyncResult ar = (AsyncResult) msg.obj;
-                    com.android.internal.telephony.Connection connection =
-                         (com.android.internal.telephony.Connection) ar.result;
-                    if (mOriginalConnection != null) {
-                        if (connection != null &&
-                            ((connection.getAddress() != null &&
-                            mOriginalConnection.getAddress() != null &&
-                            mOriginalConnection.getAddress().contains(connection.getAddress())) ||
-                            connection.getState() == mOriginalConnection.getStateBeforeHandover())) {
-                            Log.d(TelephonyConnection.this,
-                                    "SettingOriginalConnection " + mOriginalConnection.toString()
-                                            + " with " + connection.toString());
-                            setOriginalConnection(connection);
-                            mWasImsConnection = false;
-                        }
-                    } else {
-                        Log.w(TelephonyConnection.this,
-                                "MSG_HANDOVER_STATE_CHANGED: mOriginalConnection==null - invalid state (not cleaned up)");
-                    }
-                    break;
-                case MSG_RINGBACK_TONE:
-                    Log.v(TelephonyConnection.this, "MSG_RINGBACK_TONE");
-                    // TODO: This code assumes that there is only one connection in the foreground
-                    // call, in other words, it punts on network-mediated conference calling.
-                    if (getOriginalConnection() != getForegroundConnection()) {
-                        Log.v(TelephonyConnection.this, "handleMessage, original connection is " +
-                                "not foreground connection, skipping");
-                        return;
-                    }
-                    setRingbackRequested((Boolean) ((AsyncResult) msg.obj).result);
-                    break;
-                case MSG_DISCONNECT:
-                    updateState();
-                    break;
                 case MSG_MULTIPARTY_STATE_CHANGED:
                     boolean isMultiParty = (Boolean) msg.obj;
                     Log.i(this, "Update multiparty state to %s", isMultiParty ? "Y" : "N");
@@ -148,24 +118,6 @@ abstract class TelephonyConnection extends Connection {
                 case MSG_CONFERENCE_MERGE_FAILED:
                     notifyConferenceMergeFailed();
                     break;
-                case MSG_SUPP_SERVICE_NOTIFY:
-                    Phone phone = getPhone();
-                    Log.v(TelephonyConnection.this, "MSG_SUPP_SERVICE_NOTIFY on phoneId : "
-                            + (phone != null ? Integer.toString(phone.getPhoneId())
-                            : "null"));
-                    SuppServiceNotification mSsNotification = null;
-                    if (msg.obj != null && ((AsyncResult) msg.obj).result != null) {
-                        mSsNotification =
-                                (SuppServiceNotification)((AsyncResult) msg.obj).result;
-                        if (mOriginalConnection != null) {
-                            if (mSsNotification.code
-                                    == SuppServiceNotification.MO_CODE_CALL_FORWARDED) {
-                                sendConnectionEvent(TelephonyManager.EVENT_CALL_FORWARDED, null);
-                            }
-                        }
-                    }
-                    break;
-
                 case MSG_SET_VIDEO_STATE:
                     int videoState = (int) msg.obj;
                     setVideoState(videoState);
@@ -201,43 +153,111 @@ abstract class TelephonyConnection extends Connection {
                 case MSG_SET_ORIGNAL_CONNECTION_CAPABILITIES:
                     setOriginalConnectionCapabilities(msg.arg1);
                     break;
+            }
+        }
+    };
 
-                case MSG_ON_HOLD_TONE:
-                    AsyncResult asyncResult = (AsyncResult) msg.obj;
-                    Pair<com.android.internal.telephony.Connection, Boolean> heldInfo =
-                            (Pair<com.android.internal.telephony.Connection, Boolean>)
-                                    asyncResult.result;
-
-                    // Determines if the hold tone is starting or stopping.
-                    boolean playTone = ((Boolean) (heldInfo.second)).booleanValue();
-
-                    // Determine which connection the hold tone is stopping or starting for
-                    com.android.internal.telephony.Connection heldConnection = heldInfo.first;
-
-                    // Only start or stop the hold tone if this is the connection which is starting
-                    // or stopping the hold tone.
-                    if (heldConnection == mOriginalConnection) {
-                        // If starting the hold tone, send a connection event to Telecom which will
-                        // cause it to play the on hold tone.
-                        if (playTone) {
-                            sendConnectionEvent(EVENT_ON_HOLD_TONE_START, null);
-                        } else {
-                            sendConnectionEvent(EVENT_ON_HOLD_TONE_END, null);
+    /**
+     * Handles an event that the {@link PhoneEventHub} of our Phone has determined affects this
+     * connection.
+     *
+     * @param what one of the {@code MSG_*} phone event codes.
+     * @param ar the result the Phone sent with the event.
+     */
+    void handlePhoneEvent(int what, AsyncResult ar) {
+        switch (what) {
+            case MSG_PRECISE_CALL_STATE_CHANGED:
+                Log.v(this, "MSG_PRECISE_CALL_STATE_CHANGED");
+                updateState();
+                break;
+            case MSG_HANDOVER_STATE_CHANGED:
+                Log.v(this, "MSG_HANDOVER_STATE_CHANGED");
+                com.android.internal.telephony.Connection connection =
+                     (com.android.internal.telephony.Connection) ar.result;
+                if (mOriginalConnection != null) {
+                    if (connection != null &&
+                        ((connection.getAddress() != null &&
+                        mOriginalConnection.getAddress() != null &&
+                        mOriginalConnection.getAddress().contains(connection.getAddress())) ||
+                        connection.getState() == mOriginalConnection.getStateBeforeHandover())) {
+                        Log.d(this,
+                                "SettingOriginalConnection " + mOriginalConnection.toString()
+                                        + " with " + connection.toString());
+                        Log.event(Log.EVENT_HANDOVER, this, 0, 0);
+                        setOriginalConnection(connection);
+                        mWasImsConnection = false;
+                    }
+                } else {
+                    Log.w(this,
+                            "MSG_HANDOVER_STATE_CHANGED: mOriginalConnection==null - invalid state (not cleaned up)");
+                }
+                break;
+            case MSG_RINGBACK_TONE:
+                Log.v(this, "MSG_RINGBACK_TONE");
+                // TODO: This code assumes that there is only one connection in the foreground
+                // call, in other words, it punts on network-mediated conference calling.
+                if (getOriginalConnection() != getForegroundConnection()) {
+                    Log.v(this, "handlePhoneEvent, original connection is " +
+                            "not foreground connection, skipping");
+                    return;
+                }
+                setRingbackRequested((Boolean) ar.result);
+                break;
+            case MSG_DISCONNECT:
+                updateState();
+                break;
+            case MSG_SUPP_SERVICE_NOTIFY:
+                Phone phone = getPhone();
+                Log.v(this, "MSG_SUPP_SERVICE_NOTIFY on phoneId : "
+                        + (phone != null ? Integer.toString(phone.getPhoneId())
+                        : "null"));
+                SuppServiceNotification mSsNotification = null;
+                if (ar != null && ar.result != null) {
+                    mSsNotification =
+                            (SuppServiceNotification)ar.result;
+                    if (mOriginalConnection != null) {
+                        if (mSsNotification.code
+                                == SuppServiceNotification.MO_CODE_CALL_FORWARDED) {
+                            sendConnectionEvent(TelephonyManager.EVENT_CALL_FORWARDED, null);
                         }
                     }
-                    break;
+                }
+                break;
+
+            case MSG_ON_HOLD_TONE:
+                Pair<com.android.internal.telephony.Connection, Boolean> heldInfo =
+                        (Pair<com.android.internal.telephony.Connection, Boolean>)
+                                ar.result;
+
+                // Determines if the hold tone is starting or stopping.
+                boolean playTone = ((Boolean) (heldInfo.second)).booleanValue();
+
+                // Determine which connection the hold tone is stopping or starting for
+                com.android.internal.telephony.Connection heldConnection = heldInfo.first;
+
+                // Only start or stop the hold tone if this is the connection which is starting
+                // or stopping the hold tone.
+                if (heldConnection == mOriginalConnection) {
+                    // If starting the hold tone, send a connection event to Telecom which will
+                    // cause it to play the on hold tone.
+                    if (playTone) {
+                        sendConnectionEvent(EVENT_ON_HOLD_TONE_START, null);
+                    } else {
+                        sendConnectionEvent(EVENT_ON_HOLD_TONE_END, null);
+                    }
+                }
+                break;
 
-                case MSG_CDMA_VOICE_PRIVACY_ON:
-                    Log.d(this, "MSG_CDMA_VOICE_PRIVACY_ON received");
-                    setCdmaVoicePrivacy(true);
-                    break;
-                case MSG_CDMA_VOICE_PRIVACY_OFF:
-                    Log.d(this, "MSG_CDMA_VOICE_PRIVACY_OFF received");
-                    setCdmaVoicePrivacy(false);
-                    break;
-            }
+            case MSG_CDMA_VOICE_PRIVACY_ON:
+                Log.d(this, "MSG_CDMA_VOICE_PRIVACY_ON received");
+                setCdmaVoicePrivacy(true);
+                break;
+            case MSG_CDMA_VOICE_PRIVACY_OFF:
+                Log.d(this, "MSG_CDMA_VOICE_PRIVACY_OFF received");
+                setCdmaVoicePrivacy(false);
+                break;
         }
-    };
+    }
 
     /**
      * @return {@code true} if carrier video conferencing is supported, {@code false} otherwise.
@@ -440,6 +460,79 @@ abstract class TelephonyConnection extends Connection {
 
     private boolean mWasImsConnection;
 
+    /**
+     * The hub delivering events of the Phone of {@link #mOriginalConnection} to us.
+     */
+    private PhoneEventHub mEventHub;
+
+    /**
+     * What {@link #updateState()} last observed of {@link #mOriginalConnection}, so that the
+     * {@link PhoneEventHub} can skip connections a call state event does not concern.
+     */
+    private Call.State mObservedState;
+    private Call mObservedCall;
+    private boolean mObservedMultiparty;
+    private String mObservedAddress;
+    private int mObservedPresentation;
+    private String mObservedCnapName;
+    private int mObservedCnapNamePresentation;
+
+    /**
+     * The inputs from which the address and caller display name last pushed to Telecom were
+     * derived. Telecom's copies are kept alongside so that a change made elsewhere (e.g. by
+     * {@link TelephonyConnectionService}) is noticed.
+     */
+    private static final class PublishedState {
+        private boolean mHasAddress;
+        private String mNumber;
+        private int mNumberPresentation;
+        private boolean mIsDowngradedConference;
+        private Uri mAddress;
+
+        private boolean mHasCallerDisplayName;
+        private String mCnapName;
+        private int mCnapNamePresentation;
+        private String mCallerDisplayName;
+
+        boolean isAddressCurrent(String number, int presentation, boolean isDowngradedConference,
+                Uri address) {
+            return mHasAddress && Objects.equals(mNumber, number)
+                    && mNumberPresentation == presentation
+                    && mIsDowngradedConference == isDowngradedConference
+                    && mAddress == address;
+        }
+
+        void setAddress(String number, int presentation, boolean isDowngradedConference,
+                Uri address) {
+            mHasAddress = true;
+            mNumber = number;
+            mNumberPresentation = presentation;
+            mIsDowngradedConference = isDowngradedConference;
+            mAddress = address;
+        }
+
+        boolean isCallerDisplayNameCurrent(String cnapName, int presentation,
+                String callerDisplayName) {
+            return mHasCallerDisplayName && Objects.equals(mCnapName, cnapName)
+                    && mCnapNamePresentation == presentation
+                    && mCallerDisplayName == callerDisplayName;
+        }
+
+        void setCallerDisplayName(String cnapName, int presentation, String callerDisplayName) {
+            mHasCallerDisplayName = true;
+            mCnapName = cnapName;
+            mCnapNamePresentation = presentation;
+            mCallerDisplayName = callerDisplayName;
+        }
+
+        void reset() {
+            mHasAddress = false;
+            mHasCallerDisplayName = false;
+        }
+    }
+
+    private final PublishedState mPublished = new PublishedState();
+
     /**
      * Tracks the multiparty state of the ImsCall so that changes in the bit state can be detected.
      */
@@ -472,6 +565,17 @@ abstract class TelephonyConnection extends Connection {
      */
     private boolean mTreatAsEmergencyCall;
 
+    /**
+     * The network portion of the number this connection was dialed with, which
+     * {@link EmergencyNumberClassifier} check {@link TelephonyConnectionService} made for it, and
+     * the answer. Later checks of the same kind for the same number reuse that answer instead of
+     * classifying the number again; other checks are made as usual, since they can differ, e.g.
+     * the local check accepts the country's short numbers when the slot has no ecclist.
+     */
+    private String mDialedNumber;
+    private int mDialedNumberCheck;
+    private boolean mIsDialedEmergencyNumber;
+
     /**
      * For video calls, indicates whether the outgoing video for the call can be paused using
      * the {@link android.telecom.VideoProfile#STATE_PAUSED} VideoState.
@@ -811,30 +915,55 @@ abstract class TelephonyConnection extends Connection {
     protected final void updateAddress() {
         updateConnectionCapabilities();
         updateConnectionProperties();
-        if (mOriginalConnection != null) {
-            Uri address = getAddressFromNumber(mOriginalConnection.getAddress());
-            int presentation = mOriginalConnection.getNumberPresentation();
+        publishAddress();
+    }
+
+    /**
+     * Pushes the address and caller display name of {@link #mOriginalConnection} to Telecom.
+     * The Uri, the CNAP filtering (which reads the carrier config) and the emergency number check
+     * are only redone when their inputs differ from the ones last published.
+     */
+    private void publishAddress() {
+        if (mOriginalConnection == null) {
+            return;
+        }
+        String number = mOriginalConnection.getAddress();
+        int presentation = mOriginalConnection.getNumberPresentation();
+        boolean isDowngradedConference =
+                (getConnectionProperties() & PROPERTY_IS_DOWNGRADED_CONFERENCE) != 0;
+        boolean addressChanged = !mPublished.isAddressCurrent(number, presentation,
+                isDowngradedConference, getAddress());
+        if (addressChanged) {
+            Uri address = getAddressFromNumber(number);
             if (!Objects.equals(address, getAddress()) ||
                     presentation != getAddressPresentation()) {
                 Log.v(this, "updateAddress, address changed");
-                if ((getConnectionProperties() & PROPERTY_IS_DOWNGRADED_CONFERENCE) != 0) {
+                if (isDowngradedConference) {
                     address = null;
                 }
                 setAddress(address, presentation);
             }
+            mPublished.setAddress(number, presentation, isDowngradedConference, getAddress());
 
-            String name = filterCnapName(mOriginalConnection.getCnapName());
-            int namePresentation = mOriginalConnection.getCnapNamePresentation();
+            if (isEmergencyNumber(number)) {
+                mTreatAsEmergencyCall = true;
+            }
+        }
+
+        String cnapName = mOriginalConnection.getCnapName();
+        int namePresentation = mOriginalConnection.getCnapNamePresentation();
+        if (!mPublished.isCallerDisplayNameCurrent(cnapName, namePresentation,
+                getCallerDisplayName())) {
+            String name = filterCnapName(cnapName);
             if (!Objects.equals(name, getCallerDisplayName()) ||
                     namePresentation != getCallerDisplayNamePresentation()) {
                 Log.v(this, "updateAddress, caller display name changed");
                 setCallerDisplayName(name, namePresentation);
             }
+            mPublished.setCallerDisplayName(cnapName, namePresentation, getCallerDisplayName());
+        }
 
-            if (PhoneNumberUtils.isEmergencyNumber(mOriginalConnection.getAddress())) {
-                mTreatAsEmergencyCall = true;
-            }
-
+        if (addressChanged) {
             // Changing the address of the connection can change whether it is an emergency call or
             // not, which can impact whether it can be part of a conference.
             refreshConferenceSupported();
@@ -851,16 +980,13 @@ abstract class TelephonyConnection extends Connection {
         mOriginalConnectionExtras.clear();
         mOriginalConnection = originalConnection;
         mOriginalConnection.setTelecomCallId(getTelecomCallId());
-        getPhone().registerForPreciseCallStateChanged(
-                mHandler, MSG_PRECISE_CALL_STATE_CHANGED, null);
-        getPhone().registerForHandoverStateChanged(
-                mHandler, MSG_HANDOVER_STATE_CHANGED, null);
-        getPhone().registerForRingbackTone(mHandler, MSG_RINGBACK_TONE, null);
-        getPhone().registerForDisconnect(mHandler, MSG_DISCONNECT, null);
-        getPhone().registerForSuppServiceNotification(mHandler, MSG_SUPP_SERVICE_NOTIFY, null);
-        getPhone().registerForOnHoldTone(mHandler, MSG_ON_HOLD_TONE, null);
-        getPhone().registerForInCallVoicePrivacyOn(mHandler, MSG_CDMA_VOICE_PRIVACY_ON, null);
-        getPhone().registerForInCallVoicePrivacyOff(mHandler, MSG_CDMA_VOICE_PRIVACY_OFF, null);
+        mObservedState = null;
+        mPublished.reset();
+        Phone phone = getPhone();
+        if (phone != null) {
+            mEventHub = PhoneEventHub.getInstance(phone);
+            mEventHub.addConnection(this);
+        }
         mOriginalConnection.addPostDialListener(mPostDialListener);
         mOriginalConnection.addListener(mOriginalConnectionListener);
 
@@ -880,7 +1006,7 @@ abstract class TelephonyConnection extends Connection {
             mHandler.obtainMessage(MSG_CONNECTION_EXTRAS_CHANGED, connExtras == null ? null :
                     new Bundle(connExtras)).sendToTarget();
 
-        if (PhoneNumberUtils.isEmergencyNumber(mOriginalConnection.getAddress())) {
+        if (isEmergencyNumber(mOriginalConnection.getAddress())) {
             mTreatAsEmergencyCall = true;
         }
 
@@ -1068,15 +1194,9 @@ abstract class TelephonyConnection extends Connection {
      */
     void clearOriginalConnection() {
         if (mOriginalConnection != null) {
-            if (getPhone() != null) {
-                getPhone().unregisterForPreciseCallStateChanged(mHandler);
-                getPhone().unregisterForRingbackTone(mHandler);
-                getPhone().unregisterForHandoverStateChanged(mHandler);
-                getPhone().unregisterForDisconnect(mHandler);
-                getPhone().unregisterForSuppServiceNotification(mHandler);
-                getPhone().unregisterForOnHoldTone(mHandler);
-                getPhone().unregisterForInCallVoicePrivacyOn(mHandler);
-                getPhone().unregisterForInCallVoicePrivacyOff(mHandler);
+            if (mEventHub != null) {
+                mEventHub.removeConnection(this);
+                mEventHub = null;
             }
             mOriginalConnection.removePostDialListener(mPostDialListener);
             mOriginalConnection.removeListener(mOriginalConnectionListener);
@@ -1142,6 +1262,39 @@ abstract class TelephonyConnection extends Connection {
         return null;
     }
 
+    /**
+     * Records the answer of the {@link EmergencyNumberClassifier} check {@code check} for the
+     * number this connection is dialed with.
+     */
+    void setDialedEmergencyNumber(String number, int check, boolean isEmergencyNumber) {
+        mDialedNumber = number == null ? null : PhoneNumberUtils.extractNetworkPortionAlt(number);
+        mDialedNumberCheck = check;
+        mIsDialedEmergencyNumber = isEmergencyNumber;
+    }
+
+    @VisibleForTesting
+    boolean isEmergencyNumber(String number) {
+        return classifyEmergencyNumber(number, EmergencyNumberClassifier.CHECK_EMERGENCY);
+    }
+
+    @VisibleForTesting
+    boolean isLocalEmergencyNumber(String number) {
+        return classifyEmergencyNumber(number, EmergencyNumberClassifier.CHECK_LOCAL);
+    }
+
+    private boolean classifyEmergencyNumber(String number, int check) {
+        if (mDialedNumber != null && number != null && check == mDialedNumberCheck
+                && mDialedNumber.equals(PhoneNumberUtils.extractNetworkPortionAlt(number))) {
+            return mIsDialedEmergencyNumber;
+        }
+        Phone phone = getPhone();
+        if (phone == null) {
+            return check == EmergencyNumberClassifier.CHECK_EMERGENCY
+                    && PhoneNumberUtils.isEmergencyNumber(number);
+        }
+        return EmergencyNumberClassifier.getInstance(phone.getContext()).classify(number, check);
+    }
+
     private boolean hasMultipleTopLevelCalls() {
         int numCalls = 0;
         Phone phone = getPhone();
@@ -1292,10 +1445,13 @@ abstract class TelephonyConnection extends Connection {
         } else {
             newState = mOriginalConnection.getState();
         }
-        Log.v(this, "Update state from %s to %s for %s", mConnectionState, newState, this);
+        if (Log.VERBOSE) {
+            Log.v(this, "Update state from %s to %s for %s", mConnectionState, newState, this);
+        }
 
         if (mConnectionState != newState) {
             mConnectionState = newState;
+            Log.event(Log.EVENT_STATE_CHANGED, this, newState.ordinal(), 0);
             switch (newState) {
                 case IDLE:
                     break;
@@ -1326,6 +1482,8 @@ abstract class TelephonyConnection extends Connection {
                             DisconnectCause.DIALED_ON_WRONG_SLOT) {
                         fireOnOriginalConnectionRetryDial();
                     } else {
+                        Log.event(Log.EVENT_DISCONNECTED, this, 0,
+                                mOriginalConnection.getDisconnectCause());
                         setDisconnected(DisconnectCauseUtil.toTelecomDisconnectCause(
                                 mOriginalConnection.getDisconnectCause(),
                                 mOriginalConnection.getVendorDisconnectCause()));
@@ -1347,8 +1505,41 @@ abstract class TelephonyConnection extends Connection {
         updateStatusHints();
         updateConnectionCapabilities();
         updateConnectionProperties();
-        updateAddress();
+        publishAddress();
         updateMultiparty();
+        updateObservedState();
+    }
+
+    private void updateObservedState() {
+        if (mOriginalConnection == null) {
+            mObservedState = null;
+            return;
+        }
+        mObservedState = mOriginalConnection.getState();
+        mObservedCall = mOriginalConnection.getCall();
+        mObservedMultiparty = mOriginalConnection.isMultiparty();
+        mObservedAddress = mOriginalConnection.getAddress();
+        mObservedPresentation = mOriginalConnection.getNumberPresentation();
+        mObservedCnapName = mOriginalConnection.getCnapName();
+        mObservedCnapNamePresentation = mOriginalConnection.getCnapNamePresentation();
+    }
+
+    /**
+     * Returns whether {@link #mOriginalConnection} changed in a way {@link #updateState()} acts
+     * on since it last ran.
+     */
+    boolean hasOriginalConnectionChanged() {
+        if (mOriginalConnection == null || mObservedState == null) {
+            return true;
+        }
+        return mObservedState != mOriginalConnection.getState()
+                || mObservedCall != mOriginalConnection.getCall()
+                || mObservedMultiparty != mOriginalConnection.isMultiparty()
+                || !Objects.equals(mObservedAddress, mOriginalConnection.getAddress())
+                || mObservedPresentation != mOriginalConnection.getNumberPresentation()
+                || !Objects.equals(mObservedCnapName, mOriginalConnection.getCnapName())
+                || mObservedCnapNamePresentation
+                        != mOriginalConnection.getCnapNamePresentation();
     }
 
     /**
@@ -1403,7 +1594,7 @@ abstract class TelephonyConnection extends Connection {
 
         // When we set a call to active, we need to make sure that there are no other active
         // calls. However, the ordering of state updates to connections can be non-deterministic
-        // since all connections register for state changes on the phone independently.
+        // since the PhoneEventHub delivers state changes to each connection in turn.
         // To "optimize", we check here to see if there already exists any active calls.  If so,
         // we issue an update for those calls first to make sure we only have one top-level
         // active call.
@@ -1546,6 +1737,9 @@ abstract class TelephonyConnection extends Connection {
         updateConnectionProperties();
         updateStatusHints();
         refreshDisableAddCall();
+        // Whether Wi-Fi calls may be merged depends on the carrier; this was previously only
+        // picked up by the next address update.
+        refreshConferenceSupported();
     }
 
     /**
@@ -1668,21 +1862,40 @@ abstract class TelephonyConnection extends Connection {
 
     private void updateStatusHints() {
         boolean isIncoming = isValidRingingCall();
+        StatusHints statusHints = null;
         if (mIsWifi && (isIncoming || getState() == STATE_ACTIVE)) {
             int labelId = isIncoming
                     ? R.string.status_hint_label_incoming_wifi_call
                     : R.string.status_hint_label_wifi_call;
+            statusHints = getWifiStatusHints(getPhone().getContext(), labelId);
+        }
+        // The hints are shared per label and locale, so an unchanged hint is the same instance.
+        if (statusHints != getStatusHints()) {
+            setStatusHints(statusHints);
+        }
+    }
 
-            Context context = getPhone().getContext();
-            setStatusHints(new StatusHints(
+    /**
+     * Returns the Wi-Fi calling status hints with the given label, building them once per locale.
+     * Must be called on the main thread.
+     */
+    private static StatusHints getWifiStatusHints(Context context, int labelId) {
+        Locale locale = context.getResources().getConfiguration().getLocales().get(0);
+        if (!locale.equals(sWifiStatusHintsLocale)) {
+            sWifiStatusHints.clear();
+            sWifiStatusHintsLocale = locale;
+        }
+        StatusHints statusHints = sWifiStatusHints.get(labelId);
+        if (statusHints == null) {
+            statusHints = new StatusHints(
                     context.getString(labelId),
                     Icon.createWithResource(
                             context.getResources(),
                             R.drawable.ic_signal_wifi_4_bar_24dp),
-                    null /* extras */));
-        } else {
-            setStatusHints(null);
+                    null /* extras */);
+            sWifiStatusHints.put(labelId, statusHints);
         }
+        return statusHints;
     }
 
     /**
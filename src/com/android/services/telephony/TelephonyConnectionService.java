@@ -126,7 +126,8 @@ public class TelephonyConnectionService extends ConnectionService {
     // call at one time. We also only access this cache from a TelephonyConnection that wishes to
     // redial, so we use a WeakReference that will become stale once the TelephonyConnection is
     // destroyed.
-    private Pair<WeakReference<TelephonyConnection>, List<Phone>> mEmergencyRetryCache;
+    @VisibleForTesting
+    Pair<WeakReference<TelephonyConnection>, List<Phone>> mEmergencyRetryCache;
 
     /**
      * Keeps track of the status of a SIM slot.
@@ -334,7 +335,9 @@ public class TelephonyConnectionService extends ConnectionService {
 
         // Convert into emergency number if necessary
         // This is required in some regions (e.g. Taiwan).
-        if (!PhoneNumberUtils.isLocalEmergencyNumber(this, number)) {
+        final EmergencyNumberClassifier classifier = EmergencyNumberClassifier.getInstance(this);
+        boolean isLocalEmergencyNumber = classifier.isLocalEmergencyNumber(number);
+        if (!isLocalEmergencyNumber) {
             final Phone phone = getPhoneForAccount(request.getAccountHandle(), false);
             // We only do the conversion if the phone is not in service. The un-converted
             // emergency numbers will go to the correct destination when the phone is in-service,
@@ -347,13 +350,13 @@ public class TelephonyConnectionService extends ConnectionService {
                     Log.i(this, "onCreateOutgoingConnection, converted to emergency number");
                     number = convertedNumber;
                     handle = Uri.fromParts(PhoneAccount.SCHEME_TEL, number, null);
+                    isLocalEmergencyNumber = classifier.isLocalEmergencyNumber(number);
                 }
             }
         }
         final String numberToDial = number;
 
-        final boolean isEmergencyNumber =
-                PhoneNumberUtils.isLocalEmergencyNumber(this, numberToDial);
+        final boolean isEmergencyNumber = isLocalEmergencyNumber;
 
         final boolean isAirplaneModeOn = Settings.Global.getInt(getContentResolver(),
                 Settings.Global.AIRPLANE_MODE_ON, 0) > 0;
@@ -596,6 +599,8 @@ public class TelephonyConnectionService extends ConnectionService {
                             "Invalid phone type"));
         }
         connection.setAddress(handle, PhoneConstants.PRESENTATION_ALLOWED);
+        connection.setDialedEmergencyNumber(number, EmergencyNumberClassifier.CHECK_LOCAL,
+                isEmergencyNumber);
         connection.setInitializing();
         connection.setVideoState(request.getVideoState());
 
@@ -842,7 +847,8 @@ public class TelephonyConnectionService extends ConnectionService {
         return result;
     }
 
-    private Pair<WeakReference<TelephonyConnection>, List<Phone>> makeCachedConnectionPhonePair(
+    @VisibleForTesting
+    Pair<WeakReference<TelephonyConnection>, List<Phone>> makeCachedConnectionPhonePair(
             TelephonyConnection c) {
         List<Phone> phones = new ArrayList<>(Arrays.asList(mPhoneFactoryProxy.getPhones()));
         return new Pair<>(new WeakReference<>(c), phones);
@@ -850,7 +856,8 @@ public class TelephonyConnectionService extends ConnectionService {
 
     // Check the mEmergencyRetryCache to see if it contains the TelephonyConnection. If it doesn't,
     // then it is stale. Create a new one!
-    private void updateCachedConnectionPhonePair(TelephonyConnection c) {
+    @VisibleForTesting
+    void updateCachedConnectionPhonePair(TelephonyConnection c) {
         if (mEmergencyRetryCache == null) {
             Log.i(this, "updateCachedConnectionPhonePair, cache is null. Generating new cache");
             mEmergencyRetryCache = makeCachedConnectionPhonePair(c);
@@ -872,7 +879,8 @@ public class TelephonyConnectionService extends ConnectionService {
      * phones.
      * @return the first Phone that is available to be used to retry the call.
      */
-    private Phone getPhoneForRedial(Phone phoneToExclude) {
+    @VisibleForTesting
+    Phone getPhoneForRedial(Phone phoneToExclude) {
         List<Phone> cachedPhones = mEmergencyRetryCache.second;
         if (cachedPhones.contains(phoneToExclude)) {
             Log.i(this, "getPhoneForRedial, removing Phone[" + phoneToExclude.getPhoneId() +
@@ -882,7 +890,8 @@ public class TelephonyConnectionService extends ConnectionService {
         return cachedPhones.isEmpty() ? null : cachedPhones.get(0);
     }
 
-    private void retryOutgoingOriginalConnection(TelephonyConnection c) {
+    @VisibleForTesting
+    void retryOutgoingOriginalConnection(TelephonyConnection c) {
         updateCachedConnectionPhonePair(c);
         Phone newPhoneToUse = getPhoneForRedial(c.getPhone());
         if (newPhoneToUse != null) {
@@ -20,6 +20,7 @@ import android.content.Context;
 
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneFactory;
+import com.android.internal.util.IndentingPrintWriter;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -67,4 +68,18 @@ public class TelephonyGlobals {
 
         TelecomAccountRegistry.getInstance(mContext).setupOnBoot();
     }
+
+    /**
+     * Dump the PSTN phone accounts registered with Telecom.
+     */
+    public void dumpAccounts(IndentingPrintWriter pw) {
+        TelecomAccountRegistry.getInstance(mContext).dump(pw);
+    }
+
+    /**
+     * Dump the time taken to make the radio ready for emergency calls.
+     */
+    public void dumpEmergencyDialStats(IndentingPrintWriter pw) {
+        EmergencyDialTimingStats.getInstance().dump(pw);
+    }
 }
@@ -16,14 +16,25 @@
 
 package com.android.phone.testapps.embmsmw;
 
+import android.os.SystemClock;
 import android.telephony.mbms.StreamingService;
 import android.telephony.mbms.StreamingServiceCallback;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
-// Tracks the states of the streams for a single (uid, appName, subscriptionId) tuple
+// Tracks the states of the streams for a single (uid, appName, subscriptionId) tuple.
+// State and method changes are not delivered right away: they are queued and delivered together
+// on the next tick of StreamStateTracker, and only the latest state and method of each stream
+// are delivered. All methods are synchronized since binder calls and the tick run on different
+// threads.
 public class AppActiveStreams {
     // Wrapper for a pair (StreamingServiceCallback, streaming state)
     private static class StreamCallbackWithState {
@@ -32,6 +43,12 @@ public class AppActiveStreams {
         private int mMethod;
         private boolean mMethodSet = false;
 
+        // Updates not yet delivered, and when the oldest of them was queued.
+        private boolean mStatePending;
+        private int mPendingReason;
+        private boolean mMethodPending;
+        private long mPendingSinceNanos;
+
         StreamCallbackWithState(StreamingServiceCallback callback, int state, int method) {
             mCallback = callback;
             mState = state;
@@ -66,50 +83,119 @@ public class AppActiveStreams {
 
     // Stores the state and callback per service ID.
     private final Map<String, StreamCallbackWithState> mStreamStates = new HashMap<>();
+    // The callbacks in mStreamStates, to reject reuse of a callback without a scan.
+    private final Set<StreamingServiceCallback> mCallbacksInUse =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+    // Streams with updates to deliver on the next tick, in the order they were first queued.
+    private final Map<String, StreamCallbackWithState> mPendingStreams = new LinkedHashMap<>();
     private final FrontendAppIdentifier mAppIdentifier;
-    private final Random mRand = new Random();
+    private final Random mRand;
 
-    public AppActiveStreams(FrontendAppIdentifier appIdentifier) {
+    public AppActiveStreams(FrontendAppIdentifier appIdentifier, long seed) {
         mAppIdentifier = appIdentifier;
+        mRand = new Random(seed);
     }
 
-    public int getStateForService(String serviceId) {
+    public synchronized int getStateForService(String serviceId) {
         StreamCallbackWithState callbackWithState = mStreamStates.get(serviceId);
         return callbackWithState == null ?
                 StreamingService.STATE_STOPPED : callbackWithState.getState();
     }
 
-    public void startStreaming(String serviceId, StreamingServiceCallback callback, int reason) {
+    public synchronized void startStreaming(String serviceId, StreamingServiceCallback callback,
+            int reason) {
         if (mStreamStates.get(serviceId) != null) {
             // error - already started
             return;
         }
-        for (StreamCallbackWithState c : mStreamStates.values()) {
-            if (c.getCallback() == callback) {
-                // error - callback already in use
-                return;
-            }
+        if (mCallbacksInUse.contains(callback)) {
+            // error - callback already in use
+            return;
         }
-        mStreamStates.put(serviceId,
-                new StreamCallbackWithState(callback, StreamingService.STATE_STARTED,
-                        StreamingService.UNICAST_METHOD));
-        callback.onStreamStateUpdated(StreamingService.STATE_STARTED, reason);
+        StreamCallbackWithState callbackWithState = new StreamCallbackWithState(callback,
+                StreamingService.STATE_STARTED, StreamingService.UNICAST_METHOD);
+        mStreamStates.put(serviceId, callbackWithState);
+        mCallbacksInUse.add(callback);
+        queueStateUpdate(serviceId, callbackWithState, reason);
         updateStreamingMethod(serviceId);
     }
 
-    public void stopStreaming(String serviceId, int reason) {
+    public synchronized void stopStreaming(String serviceId, int reason) {
         StreamCallbackWithState entry = mStreamStates.get(serviceId);
 
         if (entry != null) {
             if (entry.getState() != StreamingService.STATE_STOPPED) {
                 entry.setState(StreamingService.STATE_STOPPED);
-                entry.getCallback().onStreamStateUpdated(StreamingService.STATE_STOPPED, reason);
+                queueStateUpdate(serviceId, entry, reason);
+            }
+        }
+    }
+
+    public synchronized void dispose(String serviceId) {
+        StreamCallbackWithState entry = mStreamStates.remove(serviceId);
+        if (entry != null) {
+            mCallbacksInUse.remove(entry.getCallback());
+        }
+        mPendingStreams.remove(serviceId);
+    }
+
+    public synchronized int getStreamCount() {
+        return mStreamStates.size();
+    }
+
+    /**
+     * Switches the method of each started stream with a probability of
+     * {@code changePercent}%, using this app's seeded random source so that a run can be
+     * reproduced.
+     */
+    public synchronized void churnStreamingMethods(int changePercent) {
+        for (Map.Entry<String, StreamCallbackWithState> entry : mStreamStates.entrySet()) {
+            if (entry.getValue().getState() == StreamingService.STATE_STARTED
+                    && mRand.nextInt(100) < changePercent) {
+                updateStreamingMethod(entry.getKey());
             }
         }
     }
 
-    public void dispose(String serviceId) {
-        mStreamStates.remove(serviceId);
+    /**
+     * Delivers the queued updates.
+     *
+     * @param latenciesNanos receives, for each callback made, how long its update was queued.
+     * @return whether there were updates to deliver.
+     */
+    public synchronized boolean deliverCallbacks(List<Long> latenciesNanos) {
+        if (mPendingStreams.isEmpty()) {
+            return false;
+        }
+        long now = SystemClock.elapsedRealtimeNanos();
+        List<StreamCallbackWithState> pending = new ArrayList<>(mPendingStreams.values());
+        mPendingStreams.clear();
+        for (StreamCallbackWithState entry : pending) {
+            if (entry.mStatePending) {
+                entry.mStatePending = false;
+                entry.getCallback().onStreamStateUpdated(entry.getState(), entry.mPendingReason);
+                latenciesNanos.add(now - entry.mPendingSinceNanos);
+            }
+            if (entry.mMethodPending) {
+                entry.mMethodPending = false;
+                entry.getCallback().onStreamMethodUpdated(entry.getMethod());
+                latenciesNanos.add(now - entry.mPendingSinceNanos);
+            }
+        }
+        return true;
+    }
+
+    private void queueStateUpdate(String serviceId, StreamCallbackWithState entry, int reason) {
+        entry.mStatePending = true;
+        entry.mPendingReason = reason;
+        markPending(serviceId, entry);
+    }
+
+    private void markPending(String serviceId, StreamCallbackWithState entry) {
+        if (mPendingStreams.put(serviceId, entry) == null) {
+            entry.mPendingSinceNanos = SystemClock.elapsedRealtimeNanos();
+            StreamStateTracker.scheduleTick();
+        }
     }
 
     private void updateStreamingMethod(String serviceId) {
@@ -124,7 +210,8 @@ public class AppActiveStreams {
             }
             if (newMethod != oldMethod || callbackWithState.isMethodSet()) {
                 callbackWithState.setMethod(newMethod);
-                callbackWithState.getCallback().onStreamMethodUpdated(newMethod);
+                callbackWithState.mMethodPending = true;
+                markPending(serviceId, callbackWithState);
             }
         }
     }
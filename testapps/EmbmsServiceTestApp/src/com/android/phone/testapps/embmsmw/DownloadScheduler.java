@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone.testapps.embmsmw;
+
+import android.telephony.mbms.DownloadRequest;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Runs the file transfers of the sample download middleware on a fixed pool of worker threads.
+ *
+ * Each app has its own queue and the workers serve the apps in turn, so an app with a large
+ * request cannot starve the others. Cancelling a request drops its queued transfers; transfers
+ * already running are expected to check for cancellation themselves.
+ */
+public class DownloadScheduler {
+    private static final String LOG_TAG = "EmbmsDownloadScheduler";
+
+    private static class Task {
+        final FrontendAppIdentifier appKey;
+        final DownloadRequest request;
+        final Runnable runnable;
+
+        Task(FrontendAppIdentifier appKey, DownloadRequest request, Runnable runnable) {
+            this.appKey = appKey;
+            this.request = request;
+            this.runnable = runnable;
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final Map<FrontendAppIdentifier, ArrayDeque<Task>> mQueues = new HashMap<>();
+    // Apps with queued tasks, in the order they will be served.
+    private final ArrayDeque<FrontendAppIdentifier> mTurns = new ArrayDeque<>();
+    private final List<Thread> mWorkers = new ArrayList<>();
+    private boolean mShutdown;
+    private int mCompletedTasks;
+
+    public DownloadScheduler(int numWorkers) {
+        for (int i = 0; i < numWorkers; i++) {
+            Thread worker = new Thread(this::runWorker, "EmbmsDownloadWorker-" + i);
+            mWorkers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues a transfer for {@code request} of the app {@code appKey}.
+     */
+    public void enqueue(FrontendAppIdentifier appKey, DownloadRequest request,
+            Runnable runnable) {
+        synchronized (mLock) {
+            if (mShutdown) {
+                return;
+            }
+            ArrayDeque<Task> queue = mQueues.get(appKey);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                mQueues.put(appKey, queue);
+            }
+            if (queue.isEmpty()) {
+                mTurns.add(appKey);
+            }
+            queue.add(new Task(appKey, request, runnable));
+            mLock.notify();
+        }
+    }
+
+    /**
+     * Drops the queued transfers of {@code request}, or of every request of the app if
+     * {@code request} is null.
+     */
+    public void cancel(FrontendAppIdentifier appKey, DownloadRequest request) {
+        synchronized (mLock) {
+            ArrayDeque<Task> queue = mQueues.get(appKey);
+            if (queue == null) {
+                return;
+            }
+            queue.removeIf(task -> request == null || Objects.equals(request, task.request));
+            if (queue.isEmpty()) {
+                mQueues.remove(appKey);
+                mTurns.remove(appKey);
+            }
+        }
+    }
+
+    public int getCompletedTaskCount() {
+        synchronized (mLock) {
+            return mCompletedTasks;
+        }
+    }
+
+    /**
+     * Drops all queued transfers and stops the workers once their current transfer is done.
+     */
+    public void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            mQueues.clear();
+            mTurns.clear();
+            mLock.notifyAll();
+        }
+    }
+
+    private void runWorker() {
+        while (true) {
+            Task task;
+            synchronized (mLock) {
+                while (!mShutdown && mTurns.isEmpty()) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mShutdown) {
+                    return;
+                }
+                FrontendAppIdentifier appKey = mTurns.poll();
+                ArrayDeque<Task> queue = mQueues.get(appKey);
+                task = queue.poll();
+                if (queue.isEmpty()) {
+                    mQueues.remove(appKey);
+                } else {
+                    // Go to the back of the line.
+                    mTurns.add(appKey);
+                }
+            }
+            try {
+                task.runnable.run();
+            } catch (RuntimeException e) {
+                Log.w(LOG_TAG, "Transfer for app " + task.appKey + " failed", e);
+            }
+            synchronized (mLock) {
+                mCompletedTasks++;
+            }
+        }
+    }
+}
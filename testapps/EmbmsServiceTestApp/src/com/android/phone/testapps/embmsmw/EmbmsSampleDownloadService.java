@@ -22,6 +22,8 @@ import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
@@ -30,6 +32,7 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.telephony.MbmsDownloadSession;
 import android.telephony.mbms.DownloadRequest;
 import android.telephony.mbms.DownloadStateCallback;
@@ -43,18 +46,25 @@ import android.telephony.mbms.vendor.MbmsDownloadServiceBase;
 import android.telephony.mbms.vendor.VendorUtils;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class EmbmsSampleDownloadService extends Service {
     private static final Set<String> ALLOWED_PACKAGES = new HashSet<String>() {{
@@ -66,6 +76,10 @@ public class EmbmsSampleDownloadService extends Service {
     private static final long SEND_FILE_SERVICE_INFO_DELAY = 500;
     private static final long DOWNLOAD_DELAY_MS = 1000;
     private static final long FILE_SEPARATION_DELAY = 500;
+    private static final int TRANSFER_CHUNK_SIZE = 64 * 1024;
+    private static final int NUM_DOWNLOAD_WORKERS = 4;
+    // Synthetic apps get uids below this one, which no real app can have.
+    private static final int SYNTHETIC_UID_BASE = -1000;
 
     private final IMbmsDownloadService mBinder = new MbmsDownloadServiceBase() {
         @Override
@@ -154,11 +168,12 @@ public class EmbmsSampleDownloadService extends Service {
             FrontendAppIdentifier appKey = new FrontendAppIdentifier(
                     Binder.getCallingUid(), downloadRequest.getSubscriptionId());
             checkInitialized(appKey);
+            // Transfers already running stop at their next chunk once the request is inactive.
             if (!mActiveDownloadRequests.getOrDefault(
-                    appKey, Collections.emptySet()).contains(downloadRequest)) {
+                    appKey, Collections.emptySet()).remove(downloadRequest)) {
                 return MbmsErrors.DownloadErrors.ERROR_UNKNOWN_DOWNLOAD_REQUEST;
             }
-            mActiveDownloadRequests.get(appKey).remove(downloadRequest);
+            mScheduler.cancel(appKey, downloadRequest);
             return MbmsErrors.SUCCESS;
         }
 
@@ -168,16 +183,21 @@ public class EmbmsSampleDownloadService extends Service {
 
             Log.i(LOG_TAG, "Disposing app " + appKey + " due to binder death");
             mAppCallbacks.remove(appKey);
+            mActiveDownloadRequests.remove(appKey);
+            mScheduler.cancel(appKey, null);
             // TODO: call dispose
         }
     };
 
     private static EmbmsSampleDownloadService sInstance = null;
 
+    // These are read from the download workers, so they need to be concurrent.
     private final Map<FrontendAppIdentifier, MbmsDownloadSessionCallback> mAppCallbacks =
-            new HashMap<>();
-    private final Map<FrontendAppIdentifier, ComponentName> mAppReceivers = new HashMap<>();
-    private final Map<FrontendAppIdentifier, String> mAppTempFileRoots = new HashMap<>();
+            new ConcurrentHashMap<>();
+    private final Map<FrontendAppIdentifier, ComponentName> mAppReceivers =
+            new ConcurrentHashMap<>();
+    private final Map<FrontendAppIdentifier, String> mAppTempFileRoots =
+            new ConcurrentHashMap<>();
     private final Map<FrontendAppIdentifier, Set<DownloadRequest>> mActiveDownloadRequests =
             new ConcurrentHashMap<>();
     // A map of app-identifiers to (maps of service-ids to sets of temp file uris in use)
@@ -188,17 +208,33 @@ public class EmbmsSampleDownloadService extends Service {
 
     private HandlerThread mHandlerThread;
     private Handler mHandler;
+    private DownloadScheduler mScheduler;
     private int mDownloadDelayFactor = 1;
+    // Reused by every transfer of a download worker.
+    private static final ThreadLocal<ByteBuffer> sTransferBuffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(TRANSFER_CHUNK_SIZE));
 
     @Override
     public IBinder onBind(Intent intent) {
         mHandlerThread = new HandlerThread("EmbmsTestDownloadServiceWorker");
         mHandlerThread.start();
         mHandler = new Handler(mHandlerThread.getLooper());
+        mScheduler = new DownloadScheduler(NUM_DOWNLOAD_WORKERS);
         sInstance = this;
         return mBinder.asBinder();
     }
 
+    @Override
+    public void onDestroy() {
+        if (mScheduler != null) {
+            mScheduler.shutdown();
+        }
+        if (mHandlerThread != null) {
+            mHandlerThread.quitSafely();
+        }
+        super.onDestroy();
+    }
+
     public static EmbmsSampleDownloadService getInstance() {
         return sInstance;
     }
@@ -260,6 +296,56 @@ public class EmbmsSampleDownloadService extends Service {
         mDownloadDelayFactor = factor;
     }
 
+    /**
+     * Puts the download workers under load: {@code numApps} synthetic apps each download
+     * {@code numFiles} files of each of {@code numServices} file services, cycling through the
+     * services and files in the repository. The files are written to scratch files instead of an
+     * app's temp files, and the throughput is logged once all of them are done.
+     */
+    public void runSyntheticLoad(int numApps, int numServices, int numFiles) {
+        List<FileServiceInfo> services = FileServiceRepository.getInstance(this)
+                .getAllFileServices();
+        int totalFiles = numApps * numServices * numFiles;
+        if (services.isEmpty() || totalFiles <= 0) {
+            return;
+        }
+        File scratchDir = new File(getCacheDir(), "synthetic_load");
+        scratchDir.mkdirs();
+        AtomicInteger remainingFiles = new AtomicInteger(totalFiles);
+        AtomicLong transferredBytes = new AtomicLong();
+        long startTime = SystemClock.elapsedRealtime();
+        Log.i(LOG_TAG, "Starting synthetic load of " + totalFiles + " files");
+
+        for (int app = 0; app < numApps; app++) {
+            FrontendAppIdentifier appKey = new FrontendAppIdentifier(SYNTHETIC_UID_BASE - app, 0);
+            for (int service = 0; service < numServices; service++) {
+                List<FileInfo> files = services.get(service % services.size()).getFiles();
+                for (int file = 0; file < numFiles; file++) {
+                    int resourceId = FileServiceRepository.getInstance(this)
+                            .getResourceForFileUri(files.get(file % files.size()).getUri());
+                    File target = new File(scratchDir, app + "_" + service + "_" + file);
+                    mScheduler.enqueue(appKey, null, () -> {
+                        try (FileChannel destination =
+                                     new FileOutputStream(target).getChannel()) {
+                            transferResource(resourceId, destination, (current, total) -> true);
+                            transferredBytes.addAndGet(destination.size());
+                        } catch (IOException e) {
+                            Log.w(LOG_TAG, "Synthetic transfer to " + target + " failed", e);
+                        }
+                        target.delete();
+                        if (remainingFiles.decrementAndGet() == 0) {
+                            long elapsed = SystemClock.elapsedRealtime() - startTime;
+                            Log.i(LOG_TAG, "Synthetic load done: " + totalFiles + " files, "
+                                    + transferredBytes.get() + " bytes in " + elapsed + " ms ("
+                                    + (transferredBytes.get() / Math.max(elapsed, 1))
+                                    + " KB/s)");
+                        }
+                    });
+                }
+            }
+        }
+    }
+
     private void sendFdRequest(DownloadRequest request, FrontendAppIdentifier appKey) {
         int numFds = getNumFdsNeededForRequest(request);
         // Compose the FILE_DESCRIPTOR_REQUEST_INTENT
@@ -303,13 +389,11 @@ public class EmbmsSampleDownloadService extends Service {
             Log.w(LOG_TAG, "Different numbers of temp files and files to download...");
         }
 
-        if (!mActiveDownloadRequests.containsKey(appKey)) {
-            mActiveDownloadRequests.put(appKey, Collections.synchronizedSet(new HashSet<>()));
-        }
-        mActiveDownloadRequests.get(appKey).add(request);
+        mActiveDownloadRequests.computeIfAbsent(appKey, k -> ConcurrentHashMap.newKeySet())
+                .add(request);
 
-        // Go through the files one-by-one and send them to the frontend app with a delay between
-        // each one.
+        // Go through the files one-by-one and hand them to the download workers with a delay
+        // between each one, as if they were arriving off the network.
         for (int i = 0; i < tempFiles.size(); i++) {
             if (i >= filesToDownload.size()) {
                 break;
@@ -318,58 +402,63 @@ public class EmbmsSampleDownloadService extends Service {
             addTempFileInUse(appKey, request.getFileServiceId(),
                     tempFile.getFilePathUri());
             FileInfo fileToDownload = filesToDownload.get(i);
-            mHandler.postDelayed(() -> {
-                if (mActiveDownloadRequests.get(appKey) == null ||
-                        !mActiveDownloadRequests.get(appKey).contains(request)) {
+            mHandler.postDelayed(() -> mScheduler.enqueue(appKey, request, () -> {
+                if (!isRequestActive(appKey, request)) {
                     return;
                 }
                 downloadSingleFile(appKey, request, tempFile, fileToDownload);
                 removeTempFileInUse(appKey, request.getFileServiceId(),
                         tempFile.getFilePathUri());
-            }, FILE_SEPARATION_DELAY * i * mDownloadDelayFactor);
+            }), FILE_SEPARATION_DELAY * i * mDownloadDelayFactor);
         }
     }
 
+    /**
+     * Scales a byte count of a file of {@code total} bytes into int range for
+     * {@link DownloadStateCallback#onProgressUpdated}. Files up to 2 GiB are reported in bytes;
+     * larger ones in the smallest unit that fits, the same for both values.
+     */
+    private static int scaleProgress(long bytes, long total) {
+        long divisor = total / Integer.MAX_VALUE + 1;
+        return (int) (bytes / divisor);
+    }
+
     private void downloadSingleFile(FrontendAppIdentifier appKey, DownloadRequest request,
             UriPathPair tempFile, FileInfo fileToDownload) {
         int result = MbmsDownloadSession.RESULT_SUCCESSFUL;
         // Test Callback
         DownloadStateCallback c = mDownloadStateCallbacks.get(request);
-        if (c != null) {
-            c.onProgressUpdated(request, fileToDownload, 0, 10, 0, 10);
-        }
-        // Test Callback
         if (c != null) {
             c.onStateUpdated(request, fileToDownload,
                     MbmsDownloadSession.STATUS_ACTIVELY_DOWNLOADING);
         }
-        try {
-            // Get the ParcelFileDescriptor for the single temp file we requested
-            ParcelFileDescriptor tempFileFd = getContentResolver().openFileDescriptor(
-                    tempFile.getContentUri(), "rw");
-            OutputStream destinationStream =
-                    new ParcelFileDescriptor.AutoCloseOutputStream(tempFileFd);
-
+        // Get the ParcelFileDescriptor for the single temp file we requested
+        try (ParcelFileDescriptor tempFileFd = getContentResolver().openFileDescriptor(
+                tempFile.getContentUri(), "rw");
+             FileChannel destination =
+                     new FileOutputStream(tempFileFd.getFileDescriptor()).getChannel()) {
             // This is how you get the native fd
             Log.i(LOG_TAG, "Native fd: " + tempFileFd.getFd());
 
             int resourceId = FileServiceRepository.getInstance(this)
                     .getResourceForFileUri(fileToDownload.getUri());
-            // Open the picture we have in our res/raw directory
-            InputStream image = getResources().openRawResource(resourceId);
-
-            // Copy it into the temp file in the app's file space (crudely)
-            byte[] imageBuffer = new byte[image.available()];
-            image.read(imageBuffer);
-            destinationStream.write(imageBuffer);
-            destinationStream.flush();
+            // Copy the picture we have in our res/raw directory into the temp file in the app's
+            // file space, reporting progress after each chunk.
+            ProgressListener progressListener = (current, total) -> {
+                if (c != null) {
+                    int scaledCurrent = scaleProgress(current, total);
+                    int scaledTotal = scaleProgress(total, total);
+                    c.onProgressUpdated(request, fileToDownload, scaledCurrent, scaledTotal,
+                            scaledCurrent, scaledTotal);
+                }
+                return isRequestActive(appKey, request);
+            };
+            if (!transferResource(resourceId, destination, progressListener)) {
+                result = MbmsDownloadSession.RESULT_CANCELLED;
+            }
         } catch (IOException e) {
             result = MbmsDownloadSession.RESULT_CANCELLED;
         }
-        // Test Callback
-        if (c != null) {
-            c.onProgressUpdated(request, fileToDownload, 10, 10, 10, 10);
-        }
         // Take a round-trip through the download request serialization to exercise it
         DownloadRequest request1 = new DownloadRequest.Builder(request.getSourceUri())
                 .setSubscriptionId(request.getSubscriptionId())
@@ -407,6 +496,83 @@ public class EmbmsSampleDownloadService extends Service {
                 null /* initialExtras */);
     }
 
+    /**
+     * Receives the progress of a transfer after each chunk.
+     */
+    private interface ProgressListener {
+        /**
+         * @param current the number of bytes transferred so far.
+         * @param total the size of the file.
+         * @return whether to continue the transfer.
+         */
+        boolean onProgress(long current, long total);
+    }
+
+    /**
+     * Copies a raw resource into {@code destination} in chunks of {@link #TRANSFER_CHUNK_SIZE},
+     * so that files larger than memory can be served. Uncompressed resources are copied by the
+     * kernel with {@link FileChannel#transferTo}; others go through {@link #sTransferBuffer}.
+     *
+     * @return whether the whole resource was transferred, {@code false} if it was cancelled.
+     */
+    private boolean transferResource(int resourceId, FileChannel destination,
+            ProgressListener progressListener) throws IOException {
+        AssetFileDescriptor assetFd = null;
+        try {
+            assetFd = getResources().openRawResourceFd(resourceId);
+        } catch (Resources.NotFoundException e) {
+            // The resource is compressed in the APK and has no fd of its own.
+        }
+        if (assetFd != null && assetFd.getLength() != AssetFileDescriptor.UNKNOWN_LENGTH) {
+            try (FileInputStream input = new FileInputStream(assetFd.getFileDescriptor());
+                 FileChannel source = input.getChannel()) {
+                long total = assetFd.getLength();
+                long transferred = 0;
+                progressListener.onProgress(transferred, total);
+                while (transferred < total) {
+                    long count = source.transferTo(assetFd.getStartOffset() + transferred,
+                            Math.min(TRANSFER_CHUNK_SIZE, total - transferred), destination);
+                    if (count <= 0) {
+                        throw new IOException("Unexpected end of resource " + resourceId);
+                    }
+                    transferred += count;
+                    if (!progressListener.onProgress(transferred, total)) {
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                assetFd.close();
+            }
+        }
+
+        try (InputStream input = getResources().openRawResource(resourceId);
+             ReadableByteChannel source = Channels.newChannel(input)) {
+            // Only an estimate for compressed resources.
+            long total = input.available();
+            long transferred = 0;
+            progressListener.onProgress(transferred, total);
+            ByteBuffer buffer = sTransferBuffer.get();
+            buffer.clear();
+            while (source.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    transferred += destination.write(buffer);
+                }
+                buffer.clear();
+                if (!progressListener.onProgress(transferred, Math.max(total, transferred))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private boolean isRequestActive(FrontendAppIdentifier appKey, DownloadRequest request) {
+        Set<DownloadRequest> activeRequests = mActiveDownloadRequests.get(appKey);
+        return activeRequests != null && activeRequests.contains(request);
+    }
+
     private void checkInitialized(FrontendAppIdentifier appKey) {
         if (!mAppCallbacks.containsKey(appKey)) {
             throw new IllegalStateException("Not yet initialized");
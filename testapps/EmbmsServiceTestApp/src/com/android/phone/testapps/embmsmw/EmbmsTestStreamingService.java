@@ -56,8 +56,13 @@ public class EmbmsTestStreamingService extends Service {
     private final Map<FrontendAppIdentifier, MbmsStreamingSessionCallback> mAppCallbacks =
             new HashMap<>();
 
+    private static EmbmsTestStreamingService sInstance = null;
+
     private HandlerThread mHandlerThread;
     private Handler mHandler;
+    // Schedule in effect before the running stress test, restored once it is done.
+    private long mSavedScheduleSeed;
+    private int mSavedMethodChurnPercent;
     private Handler.Callback mWorkerCallback = (msg) -> {
         switch (msg.what) {
             case SEND_STREAMING_SERVICES_LIST:
@@ -200,9 +205,51 @@ public class EmbmsTestStreamingService extends Service {
         mHandlerThread = new HandlerThread("EmbmsTestStreamingServiceWorker");
         mHandlerThread.start();
         mHandler = new Handler(mHandlerThread.getLooper(), mWorkerCallback);
+        StreamStateTracker.setHandler(mHandler);
+        sInstance = this;
         return mBinder;
     }
 
+    public static EmbmsTestStreamingService getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Starts {@code numStreams} streams for each of {@code numApps} synthetic apps, changes their
+     * streaming method on the schedule given by {@code seed} and {@code methodChurnPercent} for
+     * {@code durationMillis}, then stops them and logs the callback metrics.
+     */
+    public void runStreamingStress(int numApps, int numStreams, long seed,
+            int methodChurnPercent, long durationMillis) {
+        mHandler.post(() -> {
+            Log.i(TAG, "Starting streaming stress: " + numApps + " apps x " + numStreams
+                    + " streams, seed " + seed);
+            StreamStateTracker.resetMetrics();
+            mSavedScheduleSeed = StreamStateTracker.getScheduleSeed();
+            mSavedMethodChurnPercent = StreamStateTracker.getMethodChurnPercent();
+            StreamStateTracker.setSchedule(seed, methodChurnPercent);
+            for (int app = 0; app < numApps; app++) {
+                FrontendAppIdentifier appKey = getStressAppKey(app);
+                for (int stream = 0; stream < numStreams; stream++) {
+                    StreamStateTracker.startStreaming(appKey, "StressServiceId[" + stream + "]",
+                            new StreamingServiceCallback() {},
+                            StreamingService.REASON_BY_USER_REQUEST);
+                }
+            }
+        });
+        mHandler.postDelayed(() -> {
+            StreamStateTracker.setSchedule(mSavedScheduleSeed, mSavedMethodChurnPercent);
+            for (int app = 0; app < numApps; app++) {
+                StreamStateTracker.disposeAll(getStressAppKey(app));
+            }
+            Log.i(TAG, "Streaming stress done: " + StreamStateTracker.getMetrics());
+        }, durationMillis);
+    }
+
+    private static FrontendAppIdentifier getStressAppKey(int app) {
+        return new FrontendAppIdentifier(StreamStateTracker.STRESS_UID_BASE - app, 0);
+    }
+
     private static void logd(String s) {
         Log.d(TAG, s);
     }
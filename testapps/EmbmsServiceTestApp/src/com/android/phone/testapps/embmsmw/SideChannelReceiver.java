@@ -33,15 +33,46 @@ public class SideChannelReceiver extends BroadcastReceiver {
             "com.android.phone.testapps.embmsmw.REQUEST_SPURIOUS_TEMP_FILES";
     public static final String ACTION_DELAY_DOWNLOAD =
             "com.android.phone.testapps.embmsmw.DELAY_DOWNLOAD";
+    public static final String ACTION_SYNTHETIC_LOAD =
+            "com.android.phone.testapps.embmsmw.SYNTHETIC_LOAD";
+    public static final String ACTION_STREAMING_STRESS =
+            "com.android.phone.testapps.embmsmw.STREAMING_STRESS";
 
     public static final String EXTRA_SERVICE_INFO =
             "com.android.phone.testapps.embmsmw.SERVICE_INFO";
     public static final String EXTRA_DELAY_FACTOR =
             "com.android.phone.testapps.embmsmw.DELAY_FACTOR";
+    public static final String EXTRA_NUM_APPS =
+            "com.android.phone.testapps.embmsmw.NUM_APPS";
+    public static final String EXTRA_NUM_SERVICES =
+            "com.android.phone.testapps.embmsmw.NUM_SERVICES";
+    public static final String EXTRA_NUM_FILES =
+            "com.android.phone.testapps.embmsmw.NUM_FILES";
+    public static final String EXTRA_NUM_STREAMS =
+            "com.android.phone.testapps.embmsmw.NUM_STREAMS";
+    public static final String EXTRA_SEED =
+            "com.android.phone.testapps.embmsmw.SEED";
+    public static final String EXTRA_METHOD_CHURN_PERCENT =
+            "com.android.phone.testapps.embmsmw.METHOD_CHURN_PERCENT";
+    public static final String EXTRA_DURATION_MILLIS =
+            "com.android.phone.testapps.embmsmw.DURATION_MILLIS";
 
     private static final String LOG_TAG = "EmbmsSampleMwSC";
     @Override
     public void onReceive(Context context, Intent intent) {
+        if (ACTION_STREAMING_STRESS.equals(intent.getAction())) {
+            EmbmsTestStreamingService streamingService = EmbmsTestStreamingService.getInstance();
+            if (streamingService == null) {
+                Log.w(LOG_TAG, "don't have instance of streaming service");
+                return;
+            }
+            streamingService.runStreamingStress(intent.getIntExtra(EXTRA_NUM_APPS, 1),
+                    intent.getIntExtra(EXTRA_NUM_STREAMS, 1000),
+                    intent.getLongExtra(EXTRA_SEED, 0),
+                    intent.getIntExtra(EXTRA_METHOD_CHURN_PERCENT, 10),
+                    intent.getLongExtra(EXTRA_DURATION_MILLIS, 10000));
+            return;
+        }
         EmbmsSampleDownloadService downloadService = EmbmsSampleDownloadService.getInstance();
         if (downloadService == null) {
             Log.w(LOG_TAG, "don't have instance of dl service");
@@ -59,6 +90,12 @@ public class SideChannelReceiver extends BroadcastReceiver {
                 // Increase download latency by a certain factor
                 downloadService.delayDownloads(intent.getIntExtra(EXTRA_DELAY_FACTOR, 1));
                 break;
+            case ACTION_SYNTHETIC_LOAD:
+                // Load the download workers with N apps x M services x K files
+                downloadService.runSyntheticLoad(intent.getIntExtra(EXTRA_NUM_APPS, 1),
+                        intent.getIntExtra(EXTRA_NUM_SERVICES, 1),
+                        intent.getIntExtra(EXTRA_NUM_FILES, 1));
+                break;
         }
     }
 }
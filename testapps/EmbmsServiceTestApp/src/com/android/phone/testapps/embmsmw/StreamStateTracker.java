@@ -16,19 +16,75 @@
 
 package com.android.phone.testapps.embmsmw;
 
+import android.os.Handler;
+import android.os.SystemClock;
 import android.telephony.mbms.StreamingService;
 import android.telephony.mbms.StreamingServiceCallback;
 import android.util.Log;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 // Singleton that keeps track of streaming states for all apps using the middleware.
+// Callbacks are delivered in batches, one per app per tick, on the handler given to setHandler().
 public class StreamStateTracker {
     private static final String LOG_TAG = "MbmsStreamStateTracker";
 
+    private static final long TICK_MILLIS = 50;
+
+    // Stress test apps get uids from this one down, which no real app can have.
+    public static final int STRESS_UID_BASE = -2000;
+
     private static final Map<FrontendAppIdentifier, AppActiveStreams>
-            sPerAppStreamStates = new HashMap<>();
+            sPerAppStreamStates = new ConcurrentHashMap<>();
+
+    private static final Object sLock = new Object();
+    private static Handler sHandler;
+    private static boolean sTickScheduled;
+    // Seeds the random source of each app, so that a schedule of method changes can be replayed.
+    private static long sSeed;
+    // Chance, per tick and started stream of a stress test app, of the streaming method changing.
+    private static int sMethodChurnPercent;
+
+    // Delivery metrics since the last resetMetrics().
+    private static long sMetricsStartMillis = SystemClock.elapsedRealtime();
+    private static long sCallbackCount;
+    private static long sBatchCount;
+    private static long sTotalLatencyNanos;
+    private static long sMaxLatencyNanos;
+
+    public static void setHandler(Handler handler) {
+        synchronized (sLock) {
+            sHandler = handler;
+            sTickScheduled = false;
+        }
+    }
+
+    /**
+     * Sets the seed of the random source of apps that start streaming from now on, and how
+     * often the streaming method of started streams of stress test apps changes.
+     */
+    public static void setSchedule(long seed, int methodChurnPercent) {
+        synchronized (sLock) {
+            sSeed = seed;
+            sMethodChurnPercent = methodChurnPercent;
+        }
+        if (methodChurnPercent > 0) {
+            scheduleTick();
+        }
+    }
+
+    public static long getScheduleSeed() {
+        return getSeed();
+    }
+
+    public static int getMethodChurnPercent() {
+        synchronized (sLock) {
+            return sMethodChurnPercent;
+        }
+    }
 
     public static int getStreamingState(FrontendAppIdentifier appIdentifier, String serviceId) {
         AppActiveStreams appStreams = sPerAppStreamStates.get(appIdentifier);
@@ -40,11 +96,8 @@ public class StreamStateTracker {
 
     public static void startStreaming(FrontendAppIdentifier appIdentifier, String serviceId,
             StreamingServiceCallback callback, int reason) {
-        AppActiveStreams appStreams = sPerAppStreamStates.get(appIdentifier);
-        if (appStreams == null) {
-            appStreams = new AppActiveStreams(appIdentifier);
-            sPerAppStreamStates.put(appIdentifier, appStreams);
-        }
+        AppActiveStreams appStreams = sPerAppStreamStates.computeIfAbsent(appIdentifier,
+                key -> new AppActiveStreams(key, getSeed() ^ key.hashCode()));
 
         appStreams.startStreaming(serviceId, callback, reason);
     }
@@ -73,6 +126,77 @@ public class StreamStateTracker {
         sPerAppStreamStates.remove(appIdentifier);
     }
 
+    /**
+     * Makes sure a tick runs soon to deliver queued callbacks.
+     */
+    static void scheduleTick() {
+        synchronized (sLock) {
+            if (sTickScheduled || sHandler == null) {
+                return;
+            }
+            sTickScheduled = true;
+            sHandler.postDelayed(StreamStateTracker::tick, TICK_MILLIS);
+        }
+    }
+
+    private static void tick() {
+        int churnPercent;
+        synchronized (sLock) {
+            sTickScheduled = false;
+            churnPercent = sMethodChurnPercent;
+        }
+        List<Long> latencies = new ArrayList<>();
+        int batches = 0;
+        for (Map.Entry<FrontendAppIdentifier, AppActiveStreams> entry
+                : sPerAppStreamStates.entrySet()) {
+            AppActiveStreams appStreams = entry.getValue();
+            if (churnPercent > 0 && entry.getKey().getUid() <= STRESS_UID_BASE) {
+                appStreams.churnStreamingMethods(churnPercent);
+            }
+            if (appStreams.deliverCallbacks(latencies)) {
+                batches++;
+            }
+        }
+        synchronized (sLock) {
+            sBatchCount += batches;
+            sCallbackCount += latencies.size();
+            for (long latency : latencies) {
+                sTotalLatencyNanos += latency;
+                sMaxLatencyNanos = Math.max(sMaxLatencyNanos, latency);
+            }
+        }
+        if (churnPercent > 0 && !sPerAppStreamStates.isEmpty()) {
+            scheduleTick();
+        }
+    }
+
+    public static void resetMetrics() {
+        synchronized (sLock) {
+            sMetricsStartMillis = SystemClock.elapsedRealtime();
+            sCallbackCount = 0;
+            sBatchCount = 0;
+            sTotalLatencyNanos = 0;
+            sMaxLatencyNanos = 0;
+        }
+    }
+
+    public static String getMetrics() {
+        synchronized (sLock) {
+            long elapsedMillis = Math.max(SystemClock.elapsedRealtime() - sMetricsStartMillis, 1);
+            return "callbacks=" + sCallbackCount + " batches=" + sBatchCount
+                    + " callbacksPerSec=" + (sCallbackCount * 1000 / elapsedMillis)
+                    + " avgLatencyMs="
+                    + (sCallbackCount == 0 ? 0 : sTotalLatencyNanos / sCallbackCount / 1000000)
+                    + " maxLatencyMs=" + (sMaxLatencyNanos / 1000000);
+        }
+    }
+
+    private static long getSeed() {
+        synchronized (sLock) {
+            return sSeed;
+        }
+    }
+
     // Do not instantiate
     private StreamStateTracker() {}
 }
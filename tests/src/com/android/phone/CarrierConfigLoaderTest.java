@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.phone;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.PersistableBundle;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for the change detection of {@link CarrierConfigLoader}. */
+@RunWith(AndroidJUnit4.class)
+public final class CarrierConfigLoaderTest {
+
+    @Test
+    public void testIdenticalConfigsHaveNoChangedKeys() {
+        PersistableBundle a = newConfig();
+        PersistableBundle b = newConfig();
+
+        assertThat(CarrierConfigLoader.getChangedKeys(a, b)).isEmpty();
+    }
+
+    @Test
+    public void testChangedAddedAndRemovedKeys() {
+        PersistableBundle a = newConfig();
+        PersistableBundle b = newConfig();
+        b.putIntArray("int_array", new int[] {1, 2, 4});
+        b.remove("string");
+        b.putBoolean("new_boolean", false);
+
+        assertThat(CarrierConfigLoader.getChangedKeys(a, b))
+                .containsExactly("int_array", "string", "new_boolean");
+    }
+
+    @Test
+    public void testNestedBundlesAreComparedByValue() {
+        PersistableBundle a = newConfig();
+        PersistableBundle b = newConfig();
+
+        assertThat(CarrierConfigLoader.getChangedKeys(a, b)).isEmpty();
+
+        b.getPersistableBundle("nested").putString("inner", "other");
+        assertThat(CarrierConfigLoader.getChangedKeys(a, b)).containsExactly("nested");
+    }
+
+    private static PersistableBundle newConfig() {
+        PersistableBundle config = new PersistableBundle();
+        config.putString("string", "value");
+        config.putIntArray("int_array", new int[] {1, 2, 3});
+        config.putStringArray("string_array", new String[] {"a", "b"});
+        PersistableBundle nested = new PersistableBundle();
+        nested.putString("inner", "value");
+        config.putPersistableBundle("nested", nested);
+        return config;
+    }
+}
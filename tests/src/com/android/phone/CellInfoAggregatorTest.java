@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.os.WorkSource;
+import android.support.test.runner.AndroidJUnit4;
+import android.telephony.CellInfo;
+
+import com.android.internal.telephony.Phone;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** Unit tests for {@link CellInfoAggregator}. */
+@RunWith(AndroidJUnit4.class)
+public final class CellInfoAggregatorTest {
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final WorkSource mWorkSource = new WorkSource();
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    private CellInfoAggregator newAggregator(final long maxAgeMillis) {
+        return new CellInfoAggregator(mExecutor) {
+            @Override
+            long getMaxAgeMillis() {
+                return maxAgeMillis;
+            }
+        };
+    }
+
+    private static Phone newPhone(int phoneId, List<CellInfo> cellInfo) {
+        Phone phone = mock(Phone.class);
+        when(phone.getPhoneId()).thenReturn(phoneId);
+        when(phone.getAllCellInfo(any())).thenReturn(cellInfo);
+        return phone;
+    }
+
+    @Test
+    public void testFreshReadIsReused() {
+        CellInfo cell0 = mock(CellInfo.class);
+        CellInfo cell1 = mock(CellInfo.class);
+        Phone phone0 = newPhone(0, Collections.singletonList(cell0));
+        Phone phone1 = newPhone(1, Collections.singletonList(cell1));
+        Phone[] phones = {phone0, phone1};
+        CellInfoAggregator aggregator = newAggregator(60 * 1000);
+
+        assertThat(aggregator.getAllCellInfo(phones, mWorkSource))
+                .containsExactly(cell0, cell1).inOrder();
+        assertThat(aggregator.getAllCellInfo(phones, mWorkSource))
+                .containsExactly(cell0, cell1).inOrder();
+
+        verify(phone0, times(1)).getAllCellInfo(any());
+        verify(phone1, times(1)).getAllCellInfo(any());
+    }
+
+    @Test
+    public void testStaleReadIsRepeated() {
+        Phone phone = newPhone(0, Collections.singletonList(mock(CellInfo.class)));
+        Phone[] phones = {phone};
+        CellInfoAggregator aggregator = newAggregator(0);
+
+        aggregator.getAllCellInfo(phones, mWorkSource);
+        aggregator.getAllCellInfo(phones, mWorkSource);
+
+        verify(phone, times(2)).getAllCellInfo(any());
+    }
+
+    @Test
+    public void testConcurrentCallersShareRead() throws Exception {
+        final CellInfo cell = mock(CellInfo.class);
+        final CountDownLatch readStarted = new CountDownLatch(1);
+        final CountDownLatch finishRead = new CountDownLatch(1);
+        final Phone phone = mock(Phone.class);
+        when(phone.getPhoneId()).thenReturn(0);
+        when(phone.getAllCellInfo(any())).thenAnswer(invocation -> {
+            readStarted.countDown();
+            finishRead.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            return Collections.singletonList(cell);
+        });
+        final Phone[] phones = {phone};
+        final CellInfoAggregator aggregator = newAggregator(0);
+        final AtomicReference<List<CellInfo>> first = new AtomicReference<>();
+        final AtomicReference<List<CellInfo>> second = new AtomicReference<>();
+
+        Thread firstCaller = new Thread(() -> first.set(
+                aggregator.getAllCellInfo(phones, mWorkSource)));
+        firstCaller.start();
+        assertThat(readStarted.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)).isTrue();
+        Thread secondCaller = new Thread(() -> second.set(
+                aggregator.getAllCellInfo(phones, mWorkSource)));
+        secondCaller.start();
+        // The second caller parks on the read of the first one.
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (secondCaller.getState() != Thread.State.WAITING
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        finishRead.countDown();
+        firstCaller.join(TIMEOUT_MILLIS);
+        secondCaller.join(TIMEOUT_MILLIS);
+
+        assertThat(first.get()).containsExactly(cell);
+        assertThat(second.get()).containsExactly(cell);
+        verify(phone, times(1)).getAllCellInfo(any());
+    }
+
+    @Test
+    public void testFailedReadIsRethrownAndNotKept() {
+        CellInfo cell1 = mock(CellInfo.class);
+        Phone phone0 = mock(Phone.class);
+        when(phone0.getPhoneId()).thenReturn(0);
+        when(phone0.getAllCellInfo(any())).thenThrow(new IllegalStateException("modem"));
+        Phone phone1 = newPhone(1, Arrays.asList(cell1));
+        Phone[] phones = {phone0, phone1};
+        CellInfoAggregator aggregator = newAggregator(60 * 1000);
+
+        // phone0 is read on the executor, phone1 on the calling thread.
+        for (int i = 0; i < 2; i++) {
+            try {
+                aggregator.getAllCellInfo(phones, mWorkSource);
+                fail("Expected the failure of phone0");
+            } catch (IllegalStateException e) {
+                assertThat(e.getMessage()).isEqualTo("modem");
+            }
+        }
+
+        verify(phone0, times(2)).getAllCellInfo(any());
+        verify(phone1, times(1)).getAllCellInfo(any());
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.phone;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.ArraySet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Unit tests for {@link LineNumberMergeIndex}. */
+@RunWith(AndroidJUnit4.class)
+public final class LineNumberMergeIndexTest {
+    private static final String PREFS_NAME = "LineNumberMergeIndexTest";
+
+    private SharedPreferences mPrefs;
+    private final List<LineNumberMergeIndex> mIndexes = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mPrefs = InstrumentationRegistry.getTargetContext().getSharedPreferences(PREFS_NAME,
+                Context.MODE_PRIVATE);
+        mPrefs.edit().clear().commit();
+    }
+
+    @After
+    public void tearDown() {
+        // So that a delayed flush does not write into the next test.
+        for (LineNumberMergeIndex index : mIndexes) {
+            index.flush();
+        }
+        mPrefs.edit().clear().commit();
+    }
+
+    private LineNumberMergeIndex newIndex() {
+        LineNumberMergeIndex index = new LineNumberMergeIndex(mPrefs);
+        mIndexes.add(index);
+        return index;
+    }
+
+    @Test
+    public void testMergedSubscribersShareLineNumber() {
+        LineNumberMergeIndex index = newIndex();
+        index.update("iccid1", null, "5551234", "imsi1");
+        index.update("iccid2", null, "5551234", "imsi2");
+        index.update("iccid3", null, "5559999", "imsi3");
+
+        assertThat(index.getMergedSubscriberIds(new ArraySet<>(Arrays.asList("imsi1"))))
+                .containsExactly("imsi1", "imsi2");
+        assertThat(index.getNumber("iccid3")).isEqualTo("5559999");
+    }
+
+    @Test
+    public void testNoOverrideForActiveSubscriber() {
+        LineNumberMergeIndex index = newIndex();
+        index.update("iccid1", null, "5551234", "imsi1");
+
+        assertThat(index.getMergedSubscriberIds(new ArraySet<>(Arrays.asList("imsi9"))))
+                .isNull();
+    }
+
+    @Test
+    public void testClearingNumberRemovesFromMerge() {
+        LineNumberMergeIndex index = newIndex();
+        index.update("iccid1", null, "5551234", "imsi1");
+        index.update("iccid2", null, "5551234", "imsi2");
+        index.update("iccid2", null, null, null);
+
+        assertThat(index.getMergedSubscriberIds(new ArraySet<>(Arrays.asList("imsi1"))))
+                .containsExactly("imsi1");
+        assertThat(index.getNumber("iccid2")).isNull();
+    }
+
+    @Test
+    public void testReloadFromPersistedIndex() {
+        LineNumberMergeIndex index = newIndex();
+        index.update("iccid1", "tag", "555,1234", "imsi1");
+        index.flush();
+
+        LineNumberMergeIndex reloaded = newIndex();
+        assertThat(reloaded.getNumber("iccid1")).isEqualTo("555,1234");
+        assertThat(reloaded.getAlphaTag("iccid1")).isEqualTo("tag");
+    }
+
+    @Test
+    public void testUpdatesAreVisibleBeforeFlush() {
+        LineNumberMergeIndex index = newIndex();
+        index.update("iccid1", "tag", "5551234", "imsi1");
+        index.update("iccid1", "other tag", "5559999", "imsi1");
+
+        assertThat(index.getNumber("iccid1")).isEqualTo("5559999");
+        assertThat(index.getAlphaTag("iccid1")).isEqualTo("other tag");
+        assertThat(mPrefs.contains(LineNumberMergeIndex.PREF_CARRIERS_NUMBER_PREFIX + "iccid1"))
+                .isFalse();
+
+        index.flush();
+        assertThat(mPrefs.getString(LineNumberMergeIndex.PREF_CARRIERS_NUMBER_PREFIX + "iccid1",
+                null)).isEqualTo("5559999");
+    }
+
+    @Test
+    public void testMigrateFromPerIccIdKeys() {
+        mPrefs.edit()
+                .putString(LineNumberMergeIndex.PREF_CARRIERS_NUMBER_PREFIX + "iccid1", "5551234")
+                .putString(LineNumberMergeIndex.PREF_CARRIERS_SUBSCRIBER_PREFIX + "iccid1",
+                        "imsi1")
+                .commit();
+
+        LineNumberMergeIndex index = newIndex();
+        assertThat(index.getMergedSubscriberIds(new ArraySet<>(Arrays.asList("imsi1"))))
+                .containsExactly("imsi1");
+        assertThat(mPrefs.contains(LineNumberMergeIndex.PREF_CARRIERS_MERGE_INDEX)).isTrue();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.provider.Settings;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for the invalidation paths of {@link ModemResultCache}. */
+@RunWith(AndroidJUnit4.class)
+public final class ModemResultCacheTest {
+    // Far from any real subscription, so the observed setting is never written by the device.
+    private static final int SUB_ID = 1000;
+    private static final int OTHER_SUB_ID = 1001;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private static final String NETWORK_TYPE_KEY =
+            ModemResultCache.key(ModemResultCache.TYPE_PREFERRED_NETWORK_TYPE, 0);
+    private static final String NV_KEY_1 = ModemResultCache.key(ModemResultCache.TYPE_NV_ITEM, 1);
+    private static final String NV_KEY_2 = ModemResultCache.key(ModemResultCache.TYPE_NV_ITEM, 2);
+    private static final String PLMN_KEY =
+            ModemResultCache.key(ModemResultCache.TYPE_FORBIDDEN_PLMNS, 0);
+
+    private ModemResultCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new ModemResultCache(InstrumentationRegistry.getTargetContext());
+    }
+
+    @After
+    public void tearDown() {
+        // Also unregisters the setting observers.
+        mCache.invalidateAll();
+    }
+
+    /** Reads {@code value} from the "modem" the way PhoneInterfaceManager does on a miss. */
+    private void readThrough(int subId, int type, String key, Object value) {
+        assertThat(mCache.get(subId, type, key)).isNull();
+        mCache.putIfUnchanged(subId, type, key, value, mCache.getGeneration());
+    }
+
+    @Test
+    public void testReadIsCached() {
+        readThrough(SUB_ID, ModemResultCache.TYPE_NV_ITEM, NV_KEY_1, "a");
+
+        assertThat(mCache.get(SUB_ID, ModemResultCache.TYPE_NV_ITEM, NV_KEY_1)).isEqualTo("a");
+        assertThat(mCache.getHitCount(ModemResultCache.TYPE_NV_ITEM)).isEqualTo(1);
+    }
+
+    @Test
+    public void testReadRacingWithInvalidationIsNotStored() {
+        long generation = mCache.getGeneration();
+        mCache.invalidate(SUB_ID, NV_KEY_2);
+        mCache.putIfUnchanged(SUB_ID, ModemResultCache.TYPE_NV_ITEM, NV_KEY_1, "stale",
+                generation);
+
+        assertThat(mCache.get(SUB_ID, ModemResultCache.TYPE_NV_ITEM, NV_KEY_1)).isNull();
+    }
+
+    @Test
+    public void testReadRacingWithWriteIsNotStored() {
+        long generation = mCache.getGeneration();
+        mCache.put(SUB_ID, ModemResultCache.TYPE_NV_ITEM, NV_KEY_1, "written");
+        mCache.putIfUnchanged(SUB_ID, ModemResultCache.TYPE_NV_ITEM, NV_KEY_1, "stale",
+                generation);
+
+        assertThat(mCache.get(SUB_ID, ModemResultCache.TYPE_NV_ITEM, NV_KEY_1))
+                .isEqualTo("written");
+    }
+
+    @Test
+    public void testInvalidateKeepsOtherKeys() {
+        mCache.put(SUB_ID, ModemResultCache.TYPE_NV_ITEM, NV_KEY_1, "a");
+        mCache.put(SUB_ID, ModemResultCache.TYPE_NV_ITEM, NV_KEY_2, "b");
+
+        mCache.invalidate(SUB_ID, NV_KEY_1);
+
+        assertThat(mCache.get(SUB_ID, ModemResultCache.TYPE_NV_ITEM, NV_KEY_1)).isNull();
+        assertThat(mCache.get(SUB_ID, ModemResultCache.TYPE_NV_ITEM, NV_KEY_2)).isEqualTo("b");
+    }
+
+    @Test
+    public void testInvalidateTypeKeepsOtherTypesAndSubIds() {
+        mCache.put(SUB_ID, ModemResultCache.TYPE_NV_ITEM, NV_KEY_1, "a");
+        mCache.put(SUB_ID, ModemResultCache.TYPE_FORBIDDEN_PLMNS, PLMN_KEY, "plmn");
+        mCache.put(OTHER_SUB_ID, ModemResultCache.TYPE_FORBIDDEN_PLMNS, PLMN_KEY, "other");
+
+        mCache.invalidateType(SUB_ID, ModemResultCache.TYPE_FORBIDDEN_PLMNS);
+
+        assertThat(mCache.get(SUB_ID, ModemResultCache.TYPE_FORBIDDEN_PLMNS, PLMN_KEY)).isNull();
+        assertThat(mCache.get(SUB_ID, ModemResultCache.TYPE_NV_ITEM, NV_KEY_1)).isEqualTo("a");
+        assertThat(mCache.get(OTHER_SUB_ID, ModemResultCache.TYPE_FORBIDDEN_PLMNS, PLMN_KEY))
+                .isEqualTo("other");
+    }
+
+    @Test
+    public void testInvalidateAllDropsEntriesAndObservers() {
+        readThrough(SUB_ID, ModemResultCache.TYPE_PREFERRED_NETWORK_TYPE, NETWORK_TYPE_KEY, 9);
+        mCache.put(OTHER_SUB_ID, ModemResultCache.TYPE_NV_ITEM, NV_KEY_1, "a");
+        assertThat(mCache.isObservingNetworkMode(SUB_ID)).isTrue();
+
+        mCache.invalidateAll();
+
+        assertThat(mCache.get(SUB_ID, ModemResultCache.TYPE_PREFERRED_NETWORK_TYPE,
+                NETWORK_TYPE_KEY)).isNull();
+        assertThat(mCache.get(OTHER_SUB_ID, ModemResultCache.TYPE_NV_ITEM, NV_KEY_1)).isNull();
+        // Registered again by the miss above.
+        assertThat(mCache.isObservingNetworkMode(SUB_ID)).isTrue();
+    }
+
+    @Test
+    public void testNetworkTypeObservedBeforeRead() {
+        assertThat(mCache.get(SUB_ID, ModemResultCache.TYPE_PREFERRED_NETWORK_TYPE,
+                NETWORK_TYPE_KEY)).isNull();
+
+        assertThat(mCache.isObservingNetworkMode(SUB_ID)).isTrue();
+    }
+
+    @Test
+    public void testNetworkTypeNotStoredAfterObserverRemoved() {
+        assertThat(mCache.get(SUB_ID, ModemResultCache.TYPE_PREFERRED_NETWORK_TYPE,
+                NETWORK_TYPE_KEY)).isNull();
+        mCache.invalidateAll();
+        long generation = mCache.getGeneration();
+        mCache.putIfUnchanged(SUB_ID, ModemResultCache.TYPE_PREFERRED_NETWORK_TYPE,
+                NETWORK_TYPE_KEY, 9, generation);
+
+        assertThat(mCache.get(SUB_ID, ModemResultCache.TYPE_PREFERRED_NETWORK_TYPE,
+                NETWORK_TYPE_KEY)).isNull();
+    }
+
+    @Test
+    public void testSettingChangeInvalidatesNetworkType() throws Exception {
+        readThrough(SUB_ID, ModemResultCache.TYPE_PREFERRED_NETWORK_TYPE, NETWORK_TYPE_KEY, 9);
+        mCache.put(SUB_ID, ModemResultCache.TYPE_NV_ITEM, NV_KEY_1, "a");
+
+        InstrumentationRegistry.getTargetContext().getContentResolver().notifyChange(
+                Settings.Global.getUriFor(Settings.Global.PREFERRED_NETWORK_MODE + SUB_ID), null);
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mCache.get(SUB_ID, ModemResultCache.TYPE_PREFERRED_NETWORK_TYPE,
+                NETWORK_TYPE_KEY) != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(mCache.get(SUB_ID, ModemResultCache.TYPE_PREFERRED_NETWORK_TYPE,
+                NETWORK_TYPE_KEY)).isNull();
+        assertThat(mCache.get(SUB_ID, ModemResultCache.TYPE_NV_ITEM, NV_KEY_1)).isEqualTo("a");
+    }
+}
@@ -34,6 +34,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.isNull;
 import static org.mockito.Mockito.never;
@@ -173,6 +174,38 @@ public class EmergencyCallStateListenerTest extends TelephonyTestBase {
         verify(mCallback).onComplete(eq(mListener), eq(true));
     }
 
+    /**
+     * Prerequisites:
+     *  - Phone is OUT_OF_SERVICE
+     *  - Radio is on
+     *
+     * Test: Send RADIO_STATE_CHANGED message (no ServiceState changed message)
+     *
+     * Result: callback's onComplete is called with the isRadioReady=true without waiting for the
+     * service state to change or the retry timer to expire, and the radio-on stage is recorded.
+     */
+    @Test
+    @SmallTest
+    public void testRadioStateChanged_RadioOn() {
+        ServiceState state = new ServiceState();
+        state.setState(ServiceState.STATE_OUT_OF_SERVICE);
+        when(mMockPhone.getState()).thenReturn(PhoneConstants.State.IDLE);
+        when(mMockPhone.getServiceState()).thenReturn(state);
+        when(mMockPhone.getServiceStateTracker()).thenReturn(mMockServiceStateTracker);
+        when(mMockServiceStateTracker.isRadioOn()).thenReturn(true);
+        EmergencyDialTimingStats stats = new EmergencyDialTimingStats();
+        mListener.setTimingStats(stats);
+        mListener.waitForRadioOn(mMockPhone, mCallback);
+        waitForHandlerAction(mListener.getHandler(), TIMEOUT_MS);
+
+        mListener.getHandler().sendEmptyMessage(
+                EmergencyCallStateListener.MSG_RADIO_STATE_CHANGED);
+
+        waitForHandlerAction(mListener.getHandler(), TIMEOUT_MS);
+        verify(mCallback).onComplete(eq(mListener), eq(true));
+        assertEquals(1, stats.getCount(EmergencyDialTimingStats.STAGE_RADIO_ON));
+    }
+
     /**
      * Prerequisites:
      *  - Phone is OUT_OF_SERVICE (emergency calls only)
@@ -234,4 +267,42 @@ public class EmergencyCallStateListenerTest extends TelephonyTestBase {
         verify(mMockPhone, times(2)).setRadioPower(eq(true));
     }
 
+    /**
+     * Prerequisites:
+     *  - Phone is POWER_OFF
+     *  - Radio is off
+     *
+     * Test: Keep sending RADIO_STATE_CHANGED and SERVICE_STATE_CHANGED messages that show the
+     * radio is still not ready, more often than the retry timer would expire.
+     *
+     * Result: the events do not hold off the retries: setRadioPower is sent once per retry and
+     * callback's onComplete is called with isRadioReady=false after the last one.
+     */
+    @Test
+    @FlakyTest
+    @SmallTest
+    public void testNotReadyEvents_DoNotDelayRetries() {
+        ServiceState state = new ServiceState();
+        state.setState(ServiceState.STATE_POWER_OFF);
+        when(mMockPhone.getState()).thenReturn(PhoneConstants.State.IDLE);
+        when(mMockPhone.getServiceState()).thenReturn(state);
+        when(mMockPhone.getServiceStateTracker()).thenReturn(mMockServiceStateTracker);
+        when(mMockServiceStateTracker.isRadioOn()).thenReturn(false);
+        mListener.setTimeBetweenRetriesMillis(50);
+        mListener.setMaxNumRetries(2);
+
+        mListener.waitForRadioOn(mMockPhone, mCallback);
+        for (int delayMs = 10; delayMs < 400; delayMs += 10) {
+            mListener.getHandler().sendEmptyMessageDelayed(
+                    EmergencyCallStateListener.MSG_RADIO_STATE_CHANGED, delayMs);
+            mListener.getHandler().sendMessageDelayed(mListener.getHandler().obtainMessage(
+                    EmergencyCallStateListener.MSG_SERVICE_STATE_CHANGED,
+                    new AsyncResult(null, state, null)), delayMs + 5);
+        }
+        waitForHandlerActionDelayed(mListener.getHandler(), TIMEOUT_MS, 500);
+
+        verify(mCallback).onComplete(eq(mListener), eq(false));
+        verify(mMockPhone, times(2)).setRadioPower(eq(true));
+    }
+
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests that the compiled lists of {@link EmergencyNumberClassifier} match numbers the way
+ * {@link android.telephony.PhoneNumberUtils} matches them against the same list.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EmergencyNumberClassifierTest {
+
+    @Test
+    public void testExactMatch() {
+        EmergencyNumberClassifier.SlotMatcher matcher =
+                new EmergencyNumberClassifier.SlotMatcher("112,911,*911,08");
+
+        assertTrue(matcher.matches("911", true));
+        assertTrue(matcher.matches("*911", true));
+        assertTrue(matcher.matches("08", true));
+        assertFalse(matcher.matches("91", true));
+        assertFalse(matcher.matches("9111", true));
+        assertFalse(matcher.matches("", true));
+    }
+
+    @Test
+    public void testPrefixMatch() {
+        EmergencyNumberClassifier.SlotMatcher matcher =
+                new EmergencyNumberClassifier.SlotMatcher("112,911");
+
+        assertTrue(matcher.matches("911", false));
+        assertTrue(matcher.matches("9111234", false));
+        assertFalse(matcher.matches("91", false));
+        assertFalse(matcher.matches("1911", false));
+    }
+
+    @Test
+    public void testEmptyEntryMatchesAnyPrefix() {
+        // "112,,911".split(",") has an empty entry, which every number starts with.
+        EmergencyNumberClassifier.SlotMatcher matcher =
+                new EmergencyNumberClassifier.SlotMatcher("112,,911");
+
+        assertTrue(matcher.matches("5551234", false));
+        assertFalse(matcher.matches("5551234", true));
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.services.telephony;
+
+import static junit.framework.Assert.assertNotNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.telecom.TelecomManager;
+import android.telephony.RadioAccessFamily;
+import android.telephony.ServiceState;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.TelephonyTestBase;
+import com.android.internal.telephony.Phone;
+import com.android.internal.telephony.PhoneConstants;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Microbenchmarks for the phone selection of emergency calls in
+ * {@link TelephonyConnectionService}, for 1 to 4 slots and a few service state mixes.
+ *
+ * <p>Each case reports the time and the number of allocations per operation to logcat and as
+ * instrumentation status, so runs of different builds can be compared. The phones are Mockito
+ * stubs, whose own cost is included in the numbers. Cases that change the state of the service
+ * set it up again before each operation, outside of the measured time and allocations.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TelephonyConnectionServiceBenchmark extends TelephonyTestBase {
+    private static final String TAG = "TelephonyConnServiceBenchmark";
+
+    private static final int MAX_SLOTS = 4;
+    private static final int WARMUP_ITERATIONS = 1000;
+    private static final int ITERATIONS = 10000;
+
+    // The service states the phones are put in.
+    private static final int MIX_DEFAULT_IN_SERVICE = 0;
+    private static final int MIX_LAST_IN_SERVICE = 1;
+    private static final int MIX_EMERGENCY_ONLY = 2;
+    private static final int MIX_OUT_OF_SERVICE = 3;
+    private static final int MIX_LOCKED = 4;
+    private static final String[] MIX_NAMES = {
+            "defaultInService", "lastInService", "emergencyOnly", "outOfService", "locked"};
+
+    /**
+     * Fixed answers for the proxies; plain fakes rather than mocks so that only the code under
+     * test and the phones show up in the numbers.
+     */
+    private static final class FakeDevice implements
+            TelephonyConnectionService.SubscriptionManagerProxy,
+            TelephonyConnectionService.TelephonyManagerProxy,
+            TelephonyConnectionService.PhoneFactoryProxy {
+        final Phone[] mPhones;
+        final int[] mSimStates;
+
+        FakeDevice(int slots) {
+            mPhones = new Phone[slots];
+            mSimStates = new int[slots];
+        }
+
+        @Override
+        public int getDefaultVoicePhoneId() {
+            return 0;
+        }
+
+        @Override
+        public int getSimStateForSlotIdx(int slotId) {
+            return mSimStates[slotId];
+        }
+
+        @Override
+        public int getPhoneId(int subId) {
+            return subId < mPhones.length ? subId : SubscriptionManager.INVALID_PHONE_INDEX;
+        }
+
+        @Override
+        public int getPhoneCount() {
+            return mPhones.length;
+        }
+
+        @Override
+        public boolean hasIccCard(int slotId) {
+            return true;
+        }
+
+        @Override
+        public Phone getPhone(int index) {
+            return index < mPhones.length ? mPhones[index] : null;
+        }
+
+        @Override
+        public Phone getDefaultPhone() {
+            return mPhones[0];
+        }
+
+        @Override
+        public Phone[] getPhones() {
+            return mPhones;
+        }
+    }
+
+    /**
+     * A connection on a given phone that is not attached to Telecom.
+     */
+    private static final class RedialConnection extends TelephonyConnection {
+        private final Phone mPhone;
+
+        RedialConnection(Phone phone) {
+            super(null, null, true);
+            mPhone = phone;
+            setAddress(Uri.fromParts("tel", "112", null), TelecomManager.PRESENTATION_ALLOWED);
+        }
+
+        @Override
+        Phone getPhone() {
+            return mPhone;
+        }
+
+        @Override
+        public TelephonyConnection cloneConnection() {
+            return this;
+        }
+    }
+
+    private final Bundle mResults = new Bundle();
+    private TelephonyConnectionService mService;
+    private FakeDevice mDevice;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mService = new TelephonyConnectionService();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (!mResults.isEmpty()) {
+            InstrumentationRegistry.getInstrumentation().sendStatus(0, mResults);
+        }
+        mService = null;
+        super.tearDown();
+    }
+
+    @Test
+    @LargeTest
+    public void benchmarkGetFirstPhoneForEmergencyCall() {
+        for (int slots = 1; slots <= MAX_SLOTS; slots++) {
+            for (int mix = 0; mix < MIX_NAMES.length; mix++) {
+                setUpDevice(slots, mix);
+                assertNotNull(mService.getFirstPhoneForEmergencyCall());
+                measure("getFirstPhoneForEmergencyCall_" + slots + "slots_" + MIX_NAMES[mix],
+                        () -> mService.getFirstPhoneForEmergencyCall());
+            }
+        }
+    }
+
+    @Test
+    @LargeTest
+    public void benchmarkMakeCachedConnectionPhonePair() {
+        for (int slots = 1; slots <= MAX_SLOTS; slots++) {
+            setUpDevice(slots, MIX_OUT_OF_SERVICE);
+            final TelephonyConnection connection = new RedialConnection(mDevice.mPhones[0]);
+            measure("makeCachedConnectionPhonePair_" + slots + "slots",
+                    () -> mService.makeCachedConnectionPhonePair(connection));
+        }
+    }
+
+    @Test
+    @LargeTest
+    public void benchmarkGetPhoneForRedial() {
+        for (int slots = 1; slots <= MAX_SLOTS; slots++) {
+            setUpDevice(slots, MIX_OUT_OF_SERVICE);
+            final Phone failedPhone = mDevice.mPhones[0];
+            // The first failure on a phone, which removes it from the phones left to try.
+            measure("getPhoneForRedial_firstExclusion_" + slots + "slots",
+                    () -> {
+                        mService.mEmergencyRetryCache = null;
+                        mService.updateCachedConnectionPhonePair(
+                                new RedialConnection(failedPhone));
+                    },
+                    () -> mService.getPhoneForRedial(failedPhone));
+            // A phone that was already removed.
+            mService.getPhoneForRedial(failedPhone);
+            measure("getPhoneForRedial_alreadyExcluded_" + slots + "slots",
+                    () -> mService.getPhoneForRedial(failedPhone));
+        }
+    }
+
+    @Test
+    @LargeTest
+    public void benchmarkRetryOutgoingOriginalConnection() {
+        for (int slots = 1; slots <= MAX_SLOTS; slots++) {
+            setUpDevice(slots, MIX_OUT_OF_SERVICE);
+            final Phone failedPhone = mDevice.mPhones[0];
+            final TelephonyConnection[] connection = new TelephonyConnection[1];
+            // The first retry of a new call after its dial on the first phone failed; the dial
+            // on the next phone fails too, or the call is given up with a single slot.
+            measure("retryOutgoingOriginalConnection_" + slots + "slots",
+                    () -> {
+                        mService.mEmergencyRetryCache = null;
+                        connection[0] = new RedialConnection(failedPhone);
+                    },
+                    () -> mService.retryOutgoingOriginalConnection(connection[0]));
+        }
+    }
+
+    private void setUpDevice(int slots, int mix) {
+        mDevice = new FakeDevice(slots);
+        for (int i = 0; i < slots; i++) {
+            int state = ServiceState.STATE_OUT_OF_SERVICE;
+            boolean emergencyOnly = false;
+            if ((mix == MIX_DEFAULT_IN_SERVICE && i == 0)
+                    || (mix == MIX_LAST_IN_SERVICE && i == slots - 1)) {
+                state = ServiceState.STATE_IN_SERVICE;
+            } else if (mix == MIX_EMERGENCY_ONLY && i == slots - 1) {
+                emergencyOnly = true;
+            }
+            mDevice.mPhones[i] = makePhone(i, state, emergencyOnly,
+                    i % 2 == 0 ? RadioAccessFamily.RAF_LTE : RadioAccessFamily.RAF_GSM);
+            mDevice.mSimStates[i] = mix == MIX_LOCKED && i % 2 == 0
+                    ? TelephonyManager.SIM_STATE_PIN_REQUIRED : TelephonyManager.SIM_STATE_READY;
+        }
+        mService.setSubscriptionManagerProxy(mDevice);
+        mService.setTelephonyManagerProxy(mDevice);
+        mService.setPhoneFactoryProxy(mDevice);
+    }
+
+    private static Phone makePhone(int phoneId, int state, boolean emergencyOnly,
+            int radioAccessFamily) {
+        // Stub only, so the mock does not keep every call made to it.
+        Phone phone = mock(Phone.class, withSettings().stubOnly());
+        ServiceState serviceState = new ServiceState();
+        serviceState.setState(state);
+        serviceState.setEmergencyOnly(emergencyOnly);
+        when(phone.getServiceState()).thenReturn(serviceState);
+        when(phone.getPhoneId()).thenReturn(phoneId);
+        when(phone.getRadioAccessFamily()).thenReturn(radioAccessFamily);
+        when(phone.getPhoneType()).thenReturn(PhoneConstants.PHONE_TYPE_CDMA);
+        return phone;
+    }
+
+    /**
+     * Runs {@code op} repeatedly and records its time and allocations per run.
+     */
+    @SuppressWarnings("deprecation")
+    private void measure(String name, Runnable op) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            op.run();
+        }
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            op.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+        report(name, elapsed, allocations);
+    }
+
+    /**
+     * Like {@link #measure(String, Runnable)}, but runs {@code setUp} before every run of
+     * {@code op} and leaves it out of the numbers. Each run is timed on its own, so the cost of
+     * reading the clock and the allocation count is measured with an empty operation and
+     * subtracted.
+     */
+    @SuppressWarnings("deprecation")
+    private void measure(String name, Runnable setUp, Runnable op) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            setUp.run();
+            op.run();
+        }
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long elapsed = 0;
+        long allocations = 0;
+        long overhead = 0;
+        long allocationOverhead = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            setUp.run();
+            long allocationsBefore = Debug.getThreadAllocCount();
+            long start = System.nanoTime();
+            op.run();
+            elapsed += System.nanoTime() - start;
+            allocations += Debug.getThreadAllocCount() - allocationsBefore;
+
+            allocationsBefore = Debug.getThreadAllocCount();
+            start = System.nanoTime();
+            overhead += System.nanoTime() - start;
+            allocationOverhead += Debug.getThreadAllocCount() - allocationsBefore;
+        }
+        Debug.stopAllocCounting();
+        report(name, Math.max(0, elapsed - overhead),
+                Math.max(0, allocations - allocationOverhead));
+    }
+
+    private void report(String name, long elapsed, long allocations) {
+        long nsPerOp = elapsed / ITERATIONS;
+        double allocationsPerOp = (double) allocations / ITERATIONS;
+        Log.i(TAG, name + ": " + nsPerOp + " ns/op, " + allocationsPerOp + " allocs/op");
+        mResults.putLong(name + "_ns_per_op", nsPerOp);
+        mResults.putDouble(name + "_allocs_per_op", allocationsPerOp);
+    }
+}
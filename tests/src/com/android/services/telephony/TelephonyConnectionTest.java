@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.services.telephony;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import android.os.Looper;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests the emergency number checks of {@link TelephonyConnection}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TelephonyConnectionTest {
+    // Not an emergency number in any list, so only a recorded answer can make it one.
+    private static final String SHORT_NUMBER = "12345";
+
+    private MockTelephonyConnection mConnection;
+
+    @Before
+    public void setUp() throws Exception {
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+        mConnection = new MockTelephonyConnection();
+        when(mConnection.mMockPhone.getContext())
+                .thenReturn(InstrumentationRegistry.getTargetContext());
+    }
+
+    /**
+     * Without an ecclist the local check also accepts the country's short emergency numbers,
+     * which the global check does not; the answer recorded for the dial must only be reused for
+     * the local check.
+     */
+    @Test
+    @SmallTest
+    public void testDialedLocalAnswer_NoEccList_NotReusedForGlobalCheck() {
+        mConnection.setDialedEmergencyNumber(SHORT_NUMBER, EmergencyNumberClassifier.CHECK_LOCAL,
+                true);
+
+        assertTrue(mConnection.isLocalEmergencyNumber(SHORT_NUMBER));
+        assertFalse(mConnection.isEmergencyNumber(SHORT_NUMBER));
+    }
+
+    @Test
+    @SmallTest
+    public void testDialedGlobalAnswer_ReusedForGlobalCheckOnly() {
+        mConnection.setDialedEmergencyNumber(SHORT_NUMBER,
+                EmergencyNumberClassifier.CHECK_EMERGENCY, true);
+
+        assertTrue(mConnection.isEmergencyNumber("1-2345"));
+        assertFalse(mConnection.isLocalEmergencyNumber(SHORT_NUMBER));
+    }
+}